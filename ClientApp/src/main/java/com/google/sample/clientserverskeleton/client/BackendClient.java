@@ -34,6 +34,7 @@ import com.google.sample.clientserverskeleton.model.ServerPlayer;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
 
 /**
  * BackendClient encapsulates the configuration and the interactions
@@ -53,6 +54,13 @@ public class BackendClient {
 
     private static HashMap<String, String> sessionIds = new HashMap<>();
 
+    // Header used to let the server recognize retries of the same request.
+    private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+    // Retries of the authCode POST.  These are safe because every attempt
+    // carries the same idempotency key.
+    private static final int AUTH_CODE_MAX_RETRIES = 3;
+
     // Static GSON object used to serialze/deserialize the objects passed via
     // the API.
     private static Gson GSON =
@@ -104,12 +112,15 @@ public class BackendClient {
                 new VolleyListener<>(listener)
         );
 
-        // Exchanging the authcode is a one time thing.  It can't be cached,
-        // and in most cases cannot be retried.
+        // Exchanging the authcode is a one time thing, so it can't be cached.
+        // It can be retried though: the idempotency key is the same for every
+        // attempt of this request, and the server answers a retry with the
+        // result of the exchange that already ran.
         req.setShouldCache(false);
+        req.setIdempotencyKey(UUID.randomUUID().toString());
         req.setRetryPolicy(new DefaultRetryPolicy(
                 DefaultRetryPolicy.DEFAULT_TIMEOUT_MS,
-                0,
+                AUTH_CODE_MAX_RETRIES,
                 DefaultRetryPolicy.DEFAULT_BACKOFF_MULT));
 
         queue.add(req);
@@ -187,6 +198,7 @@ public class BackendClient {
     private static class BackendRequest<T> extends JsonRequest<T> {
 
         private Class<T> type;
+        private String idempotencyKey;
 
         BackendRequest(int method, String url, String requestBody,
                        Class<T> type, VolleyListener<T> listener) {
@@ -194,6 +206,16 @@ public class BackendClient {
             this.type = type;
         }
 
+        /**
+         * Sets the key sent in the Idempotency-Key header.  Volley reuses
+         * the request object on retries, so every attempt sends the same key.
+         *
+         * @param idempotencyKey - the key, unique to this request.
+         */
+        void setIdempotencyKey(String idempotencyKey) {
+            this.idempotencyKey = idempotencyKey;
+        }
+
         @Override
         protected Response<T> parseNetworkResponse(NetworkResponse response) {
             handleSessionCookie(response.headers);
@@ -233,7 +255,7 @@ public class BackendClient {
         }
 
         /**
-         * Add the session cookie to the requests.
+         * Add the session cookie and idempotency key to the requests.
          *
          * @return Headers for the request.
          * @throws AuthFailureError
@@ -242,6 +264,9 @@ public class BackendClient {
         public Map<String, String> getHeaders() throws AuthFailureError {
             Map<String, String> headers = new HashMap<>();
             headers.putAll(super.getHeaders());
+            if (idempotencyKey != null) {
+                headers.put(IDEMPOTENCY_KEY_HEADER, idempotencyKey);
+            }
             for (Map.Entry<String, String> ent : sessionIds.entrySet()) {
                 if (this.getUrl().contains(ent.getKey())) {
                     if (headers.containsKey("Cookie")) {
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mortbay.component.AbstractLifeCycle;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.RequestLog;
+import org.mortbay.jetty.Response;
+
+import static org.apache.logging.log4j.util.Unbox.box;
+
+/**
+ * Structured access log for the GameServer, written through the "access"
+ * log4j logger.
+ * <p>
+ * log4j2.xml configures that logger as an async logger, so the request
+ * thread only hands the event to a ring buffer and the file is written on a
+ * background thread.  Messages are parameterized with boxed primitives from
+ * {@link org.apache.logging.log4j.util.Unbox}, which keeps logging
+ * garbage-free.
+ * </p>
+ * <p>
+ * Each line has the method, the request path, the status, the response
+ * size, the total time and the time spent in each {@link StageTimings}
+ * stage.  Only the path is logged; the query string, headers and body
+ * (which carry session ids and authCodes) never are.
+ * </p>
+ */
+public class AccessLog extends AbstractLifeCycle implements RequestLog {
+
+    private static final Logger accessLogger = LogManager.getLogger("access");
+
+    @Override
+    public void log(Request request, Response response) {
+        if (!accessLogger.isInfoEnabled()) {
+            return;
+        }
+        long totalMs = System.currentTimeMillis() - request.getTimeStamp();
+        StageTimings timings = StageTimings.peek(request);
+        long decode = 0;
+        long token = 0;
+        long verify = 0;
+        long profile = 0;
+        if (timings != null) {
+            decode = timings.micros(StageTimings.Stage.DECODE);
+            token = timings.micros(StageTimings.Stage.TOKEN);
+            verify = timings.micros(StageTimings.Stage.VERIFY);
+            profile = timings.micros(StageTimings.Stage.PROFILE);
+        }
+        accessLogger.info("method={} path={} status={} bytes={} ms={} " +
+                        "decodeUs={} tokenUs={} verifyUs={} profileUs={}",
+                request.getMethod(), request.getRequestURI(),
+                box(response.getStatus()), box(response.getContentCount()),
+                box(totalMs), box(decode), box(token), box(verify),
+                box(profile));
+    }
+}
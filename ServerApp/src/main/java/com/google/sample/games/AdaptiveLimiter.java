@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games;
+
+import com.google.api.client.http.HttpResponseException;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of concurrent outbound calls to Google, adapting the
+ * limit to the latency of the calls.
+ * <p>
+ * This uses a gradient algorithm: the latency of each call is compared to a
+ * slow moving average of past latencies.  While they are about the same,
+ * the limit keeps growing by roughly its square root.  When latency rises
+ * above the average, the limit shrinks in proportion (by at most half per
+ * sample), and calls that time out or are throttled cut it by a further
+ * tenth.  Calls over the limit are rejected immediately rather than queued.
+ * </p>
+ */
+public class AdaptiveLimiter {
+
+    public static final int DEFAULT_INITIAL_LIMIT = 20;
+    public static final int DEFAULT_MIN_LIMIT = 4;
+    public static final int DEFAULT_MAX_LIMIT = 200;
+
+    // How much slower than the long term average a call may be before the
+    // limit starts to shrink.
+    private static final double TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+    private static final double LONG_RTT_ALPHA = 0.01;
+    private static final double BACKOFF_RATIO = 0.9;
+
+    /**
+     * Thrown when a call is rejected because the limit has been reached.
+     */
+    public static class LimitExceededException extends IOException {
+        public LimitExceededException() {
+            super("Outbound concurrency limit reached");
+        }
+    }
+
+    /**
+     * A granted slot for one call.  One of the release methods must be
+     * called when the call finishes, or {@link #abandon()} when the caller
+     * stops waiting for it; only the first of these counts.
+     */
+    public final class Permit {
+        private final long start = System.nanoTime();
+        private final int inFlightAtStart;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Permit(int inFlightAtStart) {
+            this.inFlightAtStart = inFlightAtStart;
+        }
+
+        /**
+         * Releases the slot after a call that got a response.
+         */
+        public void release() {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            onSample(System.nanoTime() - start, inFlightAtStart, false);
+        }
+
+        /**
+         * Releases the slot after a failed call.  Throttling, server errors
+         * and transport failures are treated as a sign of overload; other
+         * errors count as normal responses.
+         *
+         * @param failure - the reason the call failed.
+         */
+        public void release(Throwable failure) {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            boolean dropped = true;
+            if (failure instanceof HttpResponseException) {
+                int status = ((HttpResponseException) failure).getStatusCode();
+                dropped = status == 429 || status >= 500;
+            }
+            onSample(System.nanoTime() - start, inFlightAtStart, dropped);
+        }
+
+        /**
+         * Frees the slot of a call that is still running but no longer
+         * wanted, such as a hedged request that lost.  Cancelling it does
+         * not stop blocking I/O, so its thread may hold on for a while;
+         * the slot should not.  The call says nothing about latency, so the
+         * limit is left as it is.
+         */
+        public void abandon() {
+            if (released.compareAndSet(false, true)) {
+                onAbandon();
+            }
+        }
+    }
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    private double estimatedLimit;
+    private double longRttNanos;
+    private int inFlight;
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    public AdaptiveLimiter() {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT);
+    }
+
+    /**
+     * Creates a limiter.
+     *
+     * @param initialLimit - the limit to start from.
+     * @param minLimit     - the limit never drops below this.
+     * @param maxLimit     - the limit never grows above this.
+     */
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this.estimatedLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * Registers the limiter's metrics under the given name prefix.
+     */
+    public void registerMetrics(String prefix) {
+        Metrics.register(prefix + ".limit", this::getLimit);
+        Metrics.register(prefix + ".inFlight", this::getInFlight);
+        Metrics.register(prefix + ".rejected", rejected::get);
+    }
+
+    /**
+     * @return a permit for one call, or null if the limit has been reached.
+     */
+    public synchronized Permit tryAcquire() {
+        if (inFlight >= (int) estimatedLimit) {
+            rejected.incrementAndGet();
+            return null;
+        }
+        inFlight++;
+        return new Permit(inFlight);
+    }
+
+    /**
+     * Like {@link #tryAcquire()}, but throws when the limit has been reached.
+     *
+     * @return a permit for one call.
+     * @throws LimitExceededException if the limit has been reached.
+     */
+    public Permit acquire() throws LimitExceededException {
+        Permit permit = tryAcquire();
+        if (permit == null) {
+            throw new LimitExceededException();
+        }
+        return permit;
+    }
+
+    /**
+     * Grants a permit even when the limit has been reached, for calls that
+     * must go ahead because work that can't be undone depends on them.  The
+     * call still counts as in flight, so others are turned away meanwhile,
+     * and its latency still moves the limit.
+     *
+     * @return a permit for one call.
+     */
+    public synchronized Permit acquireUnlimited() {
+        inFlight++;
+        return new Permit(inFlight);
+    }
+
+    public synchronized int getLimit() {
+        return (int) estimatedLimit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    private synchronized void onAbandon() {
+        inFlight--;
+    }
+
+    private synchronized void onSample(long rttNanos, int inFlightAtStart,
+                                       boolean dropped) {
+        inFlight--;
+        if (dropped) {
+            estimatedLimit = Math.max(minLimit, estimatedLimit * BACKOFF_RATIO);
+            return;
+        }
+
+        double shortRtt = Math.max(1, rttNanos);
+        longRttNanos = longRttNanos == 0 ? shortRtt :
+                longRttNanos + LONG_RTT_ALPHA * (shortRtt - longRttNanos);
+
+        // After a long period of high latency the average lags behind;
+        // pull it down faster once latency recovers.
+        if (longRttNanos / shortRtt > 2) {
+            longRttNanos *= 0.95;
+        }
+
+        // Don't grow the limit when we are not using it.
+        if (inFlightAtStart < estimatedLimit / 2) {
+            return;
+        }
+
+        double gradient = Math.max(0.5,
+                Math.min(1.0, TOLERANCE * longRttNanos / shortRtt));
+        double newLimit = estimatedLimit * gradient +
+                Math.sqrt(estimatedLimit);
+        newLimit = estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games;
+
+import org.mortbay.jetty.handler.HandlerWrapper;
+import org.mortbay.thread.QueuedThreadPool;
+import org.mortbay.thread.ThreadPool;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Handler that sheds load by priority before requests reach the servlets.
+ * <p>
+ * Each request is matched to a {@link Route}, which gives it a priority,
+ * a latency target and an optional in-flight limit.  When the server is
+ * saturated, either because requests are queueing for a thread or because
+ * a route's requests are taking longer than its latency target, low
+ * priority work (the expensive authCode POST) is turned away early with 503
+ * and a Retry-After header.  High priority reads are only shed when the
+ * queue is much deeper.
+ * Critical routes, such as the health check, are never shed.
+ * </p>
+ */
+public class AdmissionController extends HandlerWrapper {
+
+    /**
+     * How important a request is to keep serving under load.
+     */
+    public enum Priority {
+        CRITICAL, HIGH, LOW
+    }
+
+    /**
+     * Admission settings for requests matching a method and path prefix.
+     */
+    public static final class Route {
+        private final String method;
+        private final String pathPrefix;
+        private final Priority priority;
+        private final int maxInFlight;
+        private final long latencyTargetMs;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong shed = new AtomicLong();
+        // Moving average of this route's latency, so one slow route can't
+        // get another shed.
+        private volatile double latencyEwmaMs;
+
+        /**
+         * Creates a route with the default latency target.
+         *
+         * @param method      - the HTTP method, or null for any method.
+         * @param pathPrefix  - the prefix the request path must start with.
+         * @param priority    - the priority of matching requests.
+         * @param maxInFlight - the most matching requests allowed in flight,
+         *                    or 0 for no limit.
+         */
+        public Route(String method, String pathPrefix, Priority priority,
+                     int maxInFlight) {
+            this(method, pathPrefix, priority, maxInFlight,
+                    DEFAULT_LATENCY_TARGET_MS);
+        }
+
+        /**
+         * @param method          - the HTTP method, or null for any method.
+         * @param pathPrefix      - the prefix the request path must start
+         *                        with.
+         * @param priority        - the priority of matching requests.
+         * @param maxInFlight     - the most matching requests allowed in
+         *                        flight, or 0 for no limit.
+         * @param latencyTargetMs - shed matching low priority requests while
+         *                        their average latency is above this.
+         */
+        public Route(String method, String pathPrefix, Priority priority,
+                     int maxInFlight, long latencyTargetMs) {
+            this.method = method;
+            this.pathPrefix = pathPrefix;
+            this.priority = priority;
+            this.maxInFlight = maxInFlight;
+            this.latencyTargetMs = latencyTargetMs;
+        }
+
+        boolean matches(HttpServletRequest req, String target) {
+            return (method == null || method.equals(req.getMethod()))
+                    && target.startsWith(pathPrefix);
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        public long getShedCount() {
+            return shed.get();
+        }
+
+        public double getLatencyEwmaMs() {
+            return latencyEwmaMs;
+        }
+
+        private synchronized void recordLatency(double millis) {
+            latencyEwmaMs += LATENCY_ALPHA * (millis - latencyEwmaMs);
+        }
+
+        // The dotted metric name, such as "POST./player/".
+        private String metricName() {
+            return (method == null ? "ANY" : method) + '.' + pathPrefix;
+        }
+    }
+
+    public static final int DEFAULT_LOW_QUEUE_DEPTH = 8;
+    public static final int DEFAULT_HIGH_QUEUE_DEPTH = 64;
+    public static final long DEFAULT_LATENCY_TARGET_MS = 2000;
+    public static final int DEFAULT_RETRY_AFTER_SECONDS = 2;
+
+    // Weight of each new sample in the latency moving average.
+    private static final double LATENCY_ALPHA = 0.1;
+
+    // Request attribute marking time spent waiting rather than working.
+    private static final String EXCLUDE_LATENCY_ATTRIBUTE =
+            AdmissionController.class.getName() + ".excludeLatency";
+
+    private static final Route DEFAULT_ROUTE =
+            new Route(null, "/", Priority.HIGH, 0);
+
+    private final List<Route> routes = new CopyOnWriteArrayList<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong[] shedByPriority = {
+            new AtomicLong(), new AtomicLong(), new AtomicLong()};
+
+    private int lowQueueDepth = DEFAULT_LOW_QUEUE_DEPTH;
+    private int highQueueDepth = DEFAULT_HIGH_QUEUE_DEPTH;
+    private int retryAfterSeconds = DEFAULT_RETRY_AFTER_SECONDS;
+
+    public AdmissionController() {
+        Metrics.register("admission.inFlight", inFlight::get);
+        Metrics.register("admission.admitted", admitted::get);
+        Metrics.register("admission.queueDepth", this::queueDepth);
+        for (Priority priority : Priority.values()) {
+            Metrics.register("admission.shed." +
+                            priority.name().toLowerCase(),
+                    shedByPriority[priority.ordinal()]::get);
+        }
+    }
+
+    /**
+     * Adds a route.  Routes are matched in the order they were added, and
+     * requests matching none are treated as {@link Priority#HIGH} with no
+     * in-flight limit.
+     *
+     * @param route - the route to add.
+     */
+    public void addRoute(Route route) {
+        routes.add(route);
+        Metrics.register("admission.latencyEwmaMs." + route.metricName(),
+                route::getLatencyEwmaMs);
+    }
+
+    /**
+     * Leaves the request out of its route's latency average, for requests
+     * that spent their time waiting on another request rather than working,
+     * such as an idempotent retry waiting for the original's result.
+     *
+     * @param request - the request being handled.
+     */
+    public static void excludeFromLatency(HttpServletRequest request) {
+        request.setAttribute(EXCLUDE_LATENCY_ATTRIBUTE, Boolean.TRUE);
+    }
+
+    /**
+     * @param lowQueueDepth  - shed low priority requests once this many
+     *                       requests are waiting for a thread.
+     * @param highQueueDepth - shed high priority requests once this many
+     *                       requests are waiting for a thread.
+     */
+    public void setQueueDepthLimits(int lowQueueDepth, int highQueueDepth) {
+        this.lowQueueDepth = lowQueueDepth;
+        this.highQueueDepth = highQueueDepth;
+    }
+
+    public void setRetryAfterSeconds(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * @return the number of requests currently being handled.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public void handle(String target, HttpServletRequest request,
+                       HttpServletResponse response, int dispatch)
+            throws IOException, ServletException {
+        // Forwards, includes and error dispatches were admitted already.
+        if (dispatch != REQUEST) {
+            super.handle(target, request, response, dispatch);
+            return;
+        }
+
+        Route route = route(request, target);
+        if (!admit(route)) {
+            shedByPriority[route.priority.ordinal()].incrementAndGet();
+            route.shed.incrementAndGet();
+            response.setHeader("Retry-After",
+                    Integer.toString(retryAfterSeconds));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "Server busy");
+            return;
+        }
+
+        admitted.incrementAndGet();
+        inFlight.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            super.handle(target, request, response, dispatch);
+        } finally {
+            route.inFlight.decrementAndGet();
+            inFlight.decrementAndGet();
+            if (request.getAttribute(EXCLUDE_LATENCY_ATTRIBUTE) == null) {
+                route.recordLatency((System.nanoTime() - start) / 1000000.0);
+            }
+        }
+    }
+
+    private Route route(HttpServletRequest request, String target) {
+        for (Route route : routes) {
+            if (route.matches(request, target)) {
+                return route;
+            }
+        }
+        return DEFAULT_ROUTE;
+    }
+
+    // Decides whether to admit the request, and if so counts it against the
+    // route's in-flight limit.
+    private boolean admit(Route route) {
+        if (route.priority != Priority.CRITICAL) {
+            int queued = queueDepth();
+            // The latency average only moves when requests complete, so it
+            // is ignored when none of the route's requests are in flight.
+            boolean slow = route.latencyEwmaMs > route.latencyTargetMs
+                    && route.inFlight.get() > 0;
+            if (route.priority == Priority.LOW && (queued > lowQueueDepth
+                    || slow)) {
+                return false;
+            }
+            if (queued > highQueueDepth) {
+                return false;
+            }
+        }
+        if (route.maxInFlight <= 0) {
+            route.inFlight.incrementAndGet();
+            return true;
+        }
+        while (true) {
+            int current = route.inFlight.get();
+            if (current >= route.maxInFlight) {
+                return false;
+            }
+            if (route.inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private int queueDepth() {
+        ThreadPool pool = getServer() == null ? null :
+                getServer().getThreadPool();
+        if (pool instanceof QueuedThreadPool) {
+            return ((QueuedThreadPool) pool).getQueueSize();
+        }
+        return 0;
+    }
+}
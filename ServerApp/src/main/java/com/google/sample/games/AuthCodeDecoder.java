@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Reads the authCode posted to /player/{playerid}.  The body is a single
+ * JSON string, such as <code>"4/AAB..."</code>.
+ * <p>
+ * Instead of handing the reader to Gson, the body is read into a small
+ * per-thread buffer with a hard size limit, and the quoted string is parsed
+ * directly from the bytes.  Oversized bodies are rejected from the
+ * Content-Length header before anything is read when possible.
+ * </p>
+ */
+final class AuthCodeDecoder {
+
+    // Auth codes are a few hundred characters at most.
+    static final int MAX_PAYLOAD_BYTES = 2048;
+
+    private static final ThreadLocal<byte[]> BUFFERS =
+            ThreadLocal.withInitial(() -> new byte[MAX_PAYLOAD_BYTES + 1]);
+
+    /**
+     * Thrown when the payload is rejected.  Carries the HTTP status to
+     * return to the client.
+     */
+    static final class PayloadException extends Exception {
+        private final int status;
+
+        PayloadException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        int getStatus() {
+            return status;
+        }
+    }
+
+    private AuthCodeDecoder() {
+    }
+
+    /**
+     * Decodes the authCode from the request body.
+     *
+     * @param req - the POST request.
+     * @return the authCode, or null if the body is empty or the JSON literal
+     * null.
+     * @throws PayloadException with status 413 if the body is too large, or
+     *                          400 if it is not a single JSON string.
+     * @throws IOException      if the body could not be read.
+     */
+    static String decode(HttpServletRequest req)
+            throws PayloadException, IOException {
+        if (req.getContentLength() > MAX_PAYLOAD_BYTES) {
+            throw tooLarge();
+        }
+
+        byte[] buf = BUFFERS.get();
+        InputStream in = req.getInputStream();
+        int len = 0;
+        int n;
+        while (len < buf.length &&
+                (n = in.read(buf, len, buf.length - len)) != -1) {
+            len += n;
+        }
+        if (len > MAX_PAYLOAD_BYTES) {
+            throw tooLarge();
+        }
+        return parse(buf, len);
+    }
+
+    private static String parse(byte[] buf, int len) throws PayloadException {
+        int start = skipWhitespace(buf, 0, len);
+        if (start == len) {
+            return null;
+        }
+        if (len - start >= 4 && buf[start] == 'n' && buf[start + 1] == 'u'
+                && buf[start + 2] == 'l' && buf[start + 3] == 'l') {
+            expectEnd(buf, start + 4, len);
+            return null;
+        }
+        if (buf[start] != '"') {
+            throw malformed();
+        }
+
+        // Fast path: plain ASCII with no escapes, which is what auth codes
+        // look like.
+        int i = start + 1;
+        boolean simple = true;
+        while (i < len && buf[i] != '"') {
+            if (buf[i] == '\\') {
+                simple = false;
+                i += 2;
+            } else {
+                if (buf[i] < 0x20) {
+                    simple = false;
+                }
+                i++;
+            }
+        }
+        if (i >= len) {
+            throw malformed();
+        }
+        expectEnd(buf, i + 1, len);
+        if (simple) {
+            return new String(buf, start + 1, i - start - 1,
+                    StandardCharsets.US_ASCII);
+        }
+        return unescape(new String(buf, start + 1, i - start - 1,
+                StandardCharsets.UTF_8));
+    }
+
+    private static String unescape(String s) throws PayloadException {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x20) {
+                throw malformed();
+            }
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (++i >= s.length()) {
+                throw malformed();
+            }
+            char e = s.charAt(i);
+            switch (e) {
+                case '"':
+                case '\\':
+                case '/':
+                    sb.append(e);
+                    break;
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 >= s.length()) {
+                        throw malformed();
+                    }
+                    try {
+                        sb.append((char) Integer.parseInt(
+                                s.substring(i + 1, i + 5), 16));
+                    } catch (NumberFormatException ex) {
+                        throw malformed();
+                    }
+                    i += 4;
+                    break;
+                default:
+                    throw malformed();
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void expectEnd(byte[] buf, int from, int len)
+            throws PayloadException {
+        if (skipWhitespace(buf, from, len) != len) {
+            throw malformed();
+        }
+    }
+
+    private static int skipWhitespace(byte[] buf, int from, int len) {
+        while (from < len && (buf[from] == ' ' || buf[from] == '\t'
+                || buf[from] == '\n' || buf[from] == '\r')) {
+            from++;
+        }
+        return from;
+    }
+
+    private static PayloadException tooLarge() {
+        return new PayloadException(
+                HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                "Request contents too large");
+    }
+
+    private static PayloadException malformed() {
+        return new PayloadException(HttpServletResponse.SC_BAD_REQUEST,
+                "Could not parse request contents");
+    }
+}
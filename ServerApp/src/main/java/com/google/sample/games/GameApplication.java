@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games;
+
+import com.google.api.client.auth.oauth2.StoredCredential;
+import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.store.DataStore;
+import com.google.sample.games.store.PlayerStore;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One game (Play Games Services application) served by the server.
+ * <p>
+ * Each application has its own client secret, HTTP transport (and so its
+ * own connection pool to Google), player store, credential store, Games
+ * client cache and metrics.  Players of different applications never share
+ * state, even if they have the same player id.
+ * </p>
+ * <p>
+ * The client secret is read from its file once and cached; it is read
+ * again only if the file changes.
+ * </p>
+ */
+public class GameApplication {
+
+    // The application serving requests that don't name one, and its secret,
+    // which is expected in the root of the sample (at the same level as the
+    // top level build.gradle file).
+    public static final String DEFAULT_NAME = "default";
+    public static final String DEFAULT_SECRET_FILE = "client_secret.json";
+
+    private final String name;
+    private final File secretFile;
+    private final PlayerStore playerStore;
+    private final DataStore<StoredCredential> credentialStore;
+    private final NetHttpTransport transport = new NetHttpTransport();
+    private final GamesClientCache gamesClients;
+
+    private final AtomicLong exchanges = new AtomicLong();
+    private final AtomicLong failedExchanges = new AtomicLong();
+
+    // The cached secret and the modification time of the file it was read
+    // from.
+    private GoogleClientSecrets clientSecrets;
+    private long secretModified;
+
+    /**
+     * @param name            - the application's name, used to pick it for
+     *                        a request and to prefix its metrics.
+     * @param secretFile      - the client_secret.json downloaded from the
+     *                        Google API console for the application.
+     * @param playerStore     - where the application's players are stored.
+     * @param credentialStore - where the players' tokens are persisted, or
+     *                        null.
+     */
+    public GameApplication(String name, File secretFile,
+                           PlayerStore playerStore,
+                           DataStore<StoredCredential> credentialStore) {
+        this(name, secretFile, playerStore, credentialStore, null);
+    }
+
+    /**
+     * @param name            - the application's name, used to pick it for
+     *                        a request and to prefix its metrics.
+     * @param secretFile      - the client_secret.json downloaded from the
+     *                        Google API console for the application.
+     * @param playerStore     - where the application's players are stored.
+     * @param credentialStore - where the players' tokens are persisted, or
+     *                        null.
+     * @param timers          - expires the application's idle or stale
+     *                        Games clients, or null.
+     */
+    public GameApplication(String name, File secretFile,
+                           PlayerStore playerStore,
+                           DataStore<StoredCredential> credentialStore,
+                           TimingWheel timers) {
+        this.name = name;
+        this.secretFile = secretFile;
+        this.playerStore = playerStore;
+        this.credentialStore = credentialStore;
+        this.gamesClients = new GamesClientCache(transport,
+                JacksonFactory.getDefaultInstance(),
+                GamesClientCache.DEFAULT_MAX_CLIENTS, credentialStore,
+                playerStore, timers);
+    }
+
+    /**
+     * Registers the application's metrics.
+     *
+     * @param prefix - prepended to each metric name, such as "" or
+     *               "mygame.".
+     */
+    public void registerMetrics(String prefix) {
+        Metrics.register(prefix + "exchanges", exchanges::get);
+        Metrics.register(prefix + "exchanges.failed", failedExchanges::get);
+        Metrics.register(prefix + "gamesClients.size", gamesClients::size);
+        Metrics.register(prefix + "gamesClients.hits", gamesClients::hitCount);
+        Metrics.register(prefix + "gamesClients.builds",
+                gamesClients::buildCount);
+        Metrics.register(prefix + "gamesClients.avgBuildMicros",
+                gamesClients::averageBuildMicros);
+        Metrics.register(prefix + "gamesClients.expired",
+                gamesClients::expiredCount);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public File getSecretFile() {
+        return secretFile;
+    }
+
+    public PlayerStore getPlayerStore() {
+        return playerStore;
+    }
+
+    public DataStore<StoredCredential> getCredentialStore() {
+        return credentialStore;
+    }
+
+    public NetHttpTransport getTransport() {
+        return transport;
+    }
+
+    public GamesClientCache getGamesClients() {
+        return gamesClients;
+    }
+
+    /**
+     * @return the client secret, or null if the secret file does not exist.
+     * @throws IOException if the file could not be read.
+     */
+    public synchronized GoogleClientSecrets getClientSecrets()
+            throws IOException {
+        if (!secretFile.exists()) {
+            return null;
+        }
+        long modified = secretFile.lastModified();
+        if (clientSecrets == null || modified != secretModified) {
+            try (Reader reader = new FileReader(secretFile)) {
+                clientSecrets = GoogleClientSecrets.load(
+                        JacksonFactory.getDefaultInstance(), reader);
+            }
+            secretModified = modified;
+        }
+        return clientSecrets;
+    }
+
+    /**
+     * Records the outcome of an authCode exchange.
+     *
+     * @param ok - true if the exchange succeeded.
+     */
+    void recordExchange(boolean ok) {
+        exchanges.incrementAndGet();
+        if (!ok) {
+            failedExchanges.incrementAndGet();
+        }
+    }
+
+    /**
+     * Small helper function to parse the client id string and extract the
+     * application Id to use with the Games API.
+     *
+     * @param clientId - the client id for the web app.
+     * @return the applicationId, or empty string if a problem.
+     */
+    static String extractApplicationId(String clientId) {
+        // Grab the digits before the -.
+        int idx = clientId.indexOf("-");
+        return (idx > 0) ? clientId.substring(0, idx) : "";
+    }
+}
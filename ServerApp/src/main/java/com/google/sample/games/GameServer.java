@@ -15,13 +15,42 @@
  */
 package com.google.sample.games;
 
+import com.google.api.client.auth.oauth2.StoredCredential;
+import com.google.api.client.util.store.DataStore;
+import com.google.sample.games.replication.ReplicaClient;
+import com.google.sample.games.replication.ReplicationServer;
+import com.google.sample.games.store.BloomFilterPlayerStore;
+import com.google.sample.games.store.InMemoryPlayerStore;
+import com.google.sample.games.store.JdbcPlayerStore;
+import com.google.sample.games.store.MappedDataStoreFactory;
+import com.google.sample.games.store.PlayerStore;
+import com.google.sample.games.store.ReplicaPlayerStore;
+import com.google.sample.games.store.TieredPlayerStore;
+import com.google.sample.games.store.WalPlayerStore;
+import com.google.sample.games.store.WriteBehindPlayerStore;
+import com.google.sample.games.trace.FileSpanExporter;
+import com.google.sample.games.trace.Tracer;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.mortbay.jetty.Server;
 import org.mortbay.jetty.handler.ContextHandler;
+import org.mortbay.jetty.handler.RequestLogHandler;
 import org.mortbay.jetty.servlet.ServletHandler;
+import org.mortbay.jetty.servlet.ServletHolder;
 import org.mortbay.jetty.servlet.SessionHandler;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
 /**
  * This is a simplistic Servlet server implemented using Jetty.
  * It is not intended to be a fully featured web server application, but
@@ -34,6 +63,29 @@ public class GameServer {
     // Port to handle HTTP requests on, change as needed.
     private static final int DEFAULT_HTTP_PORT = 8765;
 
+    // Most authCode exchanges handled at once; more are shed with a 503.
+    private static final int MAX_EXCHANGES_IN_FLIGHT = 32;
+
+    // Average authCode exchange latency above which new exchanges are shed.
+    // Each one is a round trip to Google, so this is set for that alone.
+    private static final long EXCHANGE_LATENCY_TARGET_MS = 2000;
+
+    // How long a session lasts without requests.
+    private static final int SESSION_IDLE_SECONDS = 30 * 60;
+
+    // How long to wait for in-flight work when shutting down.
+    private static final int DEFAULT_DRAIN_SECONDS = 30;
+
+    // Key the persisted credentials are encrypted with.  Like
+    // client_secret.json it is kept in the working directory, apart from the
+    // data it protects.
+    private static final String CREDENTIAL_KEY_FILE = "credentials.key";
+
+    // Names of additional games, used in the X-Games-Application header,
+    // metric names and table names.
+    private static final Pattern GAME_NAME =
+            Pattern.compile("[A-Za-z0-9_]{1,32}");
+
     private static final Logger logger = LogManager.getLogger();
 
     /**
@@ -43,47 +95,325 @@ public class GameServer {
      */
     public static void main(String[] args) throws Exception {
         int port = DEFAULT_HTTP_PORT;
-        for(int i=0;i<args.length;i++) {
-            if (args[i].equalsIgnoreCase("-p")) {
-                if (i +1 < args.length) {
-                    try {
-                        port = Integer.parseInt(args[i + 1]);
-                        i++;
-                    } catch (NumberFormatException e) {
+        int drainSeconds = DEFAULT_DRAIN_SECONDS;
+        String traceFile = null;
+        String storeUrl = null;
+        double bloomFpp = BloomFilterPlayerStore.DEFAULT_FPP;
+        int maxHotPlayers = 0;
+        File logDir = null;
+        int replicationPort = 0;
+        String primaryHost = null;
+        int primaryPort = 0;
+        String credentialDir = null;
+        Map<String, String> gameSecrets = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                usage();
+                return;
+            }
+            String flag = args[i];
+            String value = args[++i];
+            try {
+                switch (flag.toLowerCase()) {
+                    case "-p":
+                        port = Integer.parseInt(value);
+                        break;
+                    case "-d":
+                        drainSeconds = Integer.parseInt(value);
+                        break;
+                    case "-t":
+                        traceFile = value;
+                        break;
+                    case "-s":
+                        storeUrl = value;
+                        break;
+                    case "-f":
+                        bloomFpp = Double.parseDouble(value);
+                        if (!(bloomFpp > 0 && bloomFpp < 1)) {
+                            usage();
+                            return;
+                        }
+                        break;
+                    case "-m":
+                        maxHotPlayers = Integer.parseInt(value);
+                        if (maxHotPlayers < 1) {
+                            usage();
+                            return;
+                        }
+                        break;
+                    case "-w":
+                        logDir = new File(value);
+                        break;
+                    case "-l":
+                        replicationPort = Integer.parseInt(value);
+                        break;
+                    case "-r":
+                        int colon = value.lastIndexOf(':');
+                        if (colon < 1) {
+                            usage();
+                            return;
+                        }
+                        primaryHost = value.substring(0, colon);
+                        primaryPort = Integer.parseInt(
+                                value.substring(colon + 1));
+                        break;
+                    case "-c":
+                        credentialDir = value;
+                        break;
+                    case "-g":
+                        int eq = value.indexOf('=');
+                        String name = eq < 0 ? "" : value.substring(0, eq);
+                        if (!GAME_NAME.matcher(name).matches() ||
+                                name.equals(GameApplication.DEFAULT_NAME)) {
+                            usage();
+                            return;
+                        }
+                        gameSecrets.put(name, value.substring(eq + 1));
+                        break;
+                    default:
                         usage();
                         return;
-                    }
-                } else {
-                    usage();
-                    return;
                 }
-            } else {
+            } catch (NumberFormatException e) {
                 usage();
                 return;
             }
         }
+        // Players moved to disk leave their tokens behind, so they must be
+        // kept in a credential store.
+        if (maxHotPlayers > 0 && credentialDir == null && storeUrl == null &&
+                primaryHost == null) {
+            usage();
+            return;
+        }
+        // A primary ships the logs of in-memory stores.  A replica only
+        // holds copies of the primary's players; tokens stay on the primary.
+        if (replicationPort > 0 && (logDir == null || storeUrl != null) ||
+                primaryHost != null && (storeUrl != null || logDir != null ||
+                        replicationPort > 0)) {
+            usage();
+            return;
+        }
+        boolean replica = primaryHost != null;
+        if (replica) {
+            credentialDir = null;
+        }
 
         logger.atInfo().log("Starting a server on port {}", port);
 
+        if (traceFile != null) {
+            Tracer.setExporter(new FileSpanExporter(new File(traceFile)));
+        }
+
+        // One wheel holds the server's expiry timers: sessions, idempotency
+        // records and cached Games clients.
+        TimingWheel timers = new TimingWheel();
+        timers.registerMetrics("timers");
+
         Server server = new Server(port);
         ServletHandler servletHandler = new ServletHandler();
-        SessionHandler sessionHandler = new SessionHandler();
+        WheelSessionManager sessionManager = new WheelSessionManager(timers);
+        sessionManager.setMaxInactiveInterval(SESSION_IDLE_SECONDS);
+        SessionHandler sessionHandler = new SessionHandler(sessionManager);
         ContextHandler contextHandler = new ContextHandler();
         contextHandler.addHandler(servletHandler);
         sessionHandler.setHandler(contextHandler);
-        server.addHandler(sessionHandler);
+
+        // Shed load by priority before requests reach the servlets.  The
+        // health check and metrics are always served, reads are kept alive
+        // as long as possible, and the expensive authCode exchange goes
+        // first.
+        AdmissionController admissionController = new AdmissionController();
+        admissionController.addRoute(new AdmissionController.Route("GET",
+                "/player/test", AdmissionController.Priority.CRITICAL, 0));
+        admissionController.addRoute(new AdmissionController.Route("GET",
+                "/metrics", AdmissionController.Priority.CRITICAL, 0));
+        admissionController.addRoute(new AdmissionController.Route("GET",
+                "/player/", AdmissionController.Priority.HIGH, 0));
+        admissionController.addRoute(new AdmissionController.Route("POST",
+                "/player/", AdmissionController.Priority.LOW,
+                MAX_EXCHANGES_IN_FLIGHT, EXCHANGE_LATENCY_TARGET_MS));
+        admissionController.setHandler(sessionHandler);
+
+        // Log every request, including the ones that were shed.
+        RequestLogHandler requestLogHandler = new RequestLogHandler();
+        requestLogHandler.setRequestLog(new AccessLog());
+        requestLogHandler.setHandler(admissionController);
+        server.addHandler(requestLogHandler);
 
         // Map the servlets to the REST API.
-        servletHandler.addServletWithMapping(PlayerServlet.class, "/player/*");
+        Map<String, PlayerStore> tables = new LinkedHashMap<>();
+        PlayerStore playerStore = newPlayerStore(storeUrl,
+                JdbcPlayerStore.DEFAULT_TABLE, bloomFpp, maxHotPlayers,
+                logDir, replica);
+        playerStore.registerMetrics("");
+        tables.put(JdbcPlayerStore.DEFAULT_TABLE, playerStore);
+        MappedDataStoreFactory credentialFactory = null;
+        DataStore<StoredCredential> credentialStore = null;
+        if (credentialDir != null) {
+            credentialFactory = new MappedDataStoreFactory(
+                    new File(credentialDir),
+                    MappedDataStoreFactory.loadOrCreateKey(
+                            new File(CREDENTIAL_KEY_FILE)));
+            credentialStore = StoredCredential.getDefaultDataStore(
+                    credentialFactory);
+        }
+        GameApplication defaultGame = new GameApplication(
+                GameApplication.DEFAULT_NAME,
+                new File(GameApplication.DEFAULT_SECRET_FILE), playerStore,
+                credentialStore, timers);
+        defaultGame.registerMetrics("");
+
+        // Each additional game has its own players, in its own table and
+        // credential store, and its own metrics.
+        List<GameApplication> games = new ArrayList<>();
+        for (Map.Entry<String, String> entry : gameSecrets.entrySet()) {
+            String name = entry.getKey();
+            String table = JdbcPlayerStore.DEFAULT_TABLE + "_" + name;
+            PlayerStore store = newPlayerStore(storeUrl, table, bloomFpp,
+                    maxHotPlayers, logDir, replica);
+            store.registerMetrics(name + ".");
+            tables.put(table, store);
+            DataStore<StoredCredential> credentials = credentialFactory ==
+                    null ? null : credentialFactory.<StoredCredential>
+                    getDataStore(StoredCredential.DEFAULT_DATA_STORE_ID +
+                            "_" + name);
+            GameApplication game = new GameApplication(name,
+                    new File(entry.getValue()), store, credentials, timers);
+            game.registerMetrics(name + ".");
+            games.add(game);
+            logger.atInfo().log("Serving game {} with secret {}", name,
+                    entry.getValue());
+        }
+
+        // A primary streams its logs and sessions to the replicas; a replica
+        // follows the primary.
+        ReplicationServer replicationServer = null;
+        if (replicationPort > 0) {
+            Map<String, WalPlayerStore> logs = new LinkedHashMap<>();
+            for (Map.Entry<String, PlayerStore> entry : tables.entrySet()) {
+                logs.put(entry.getKey(), (WalPlayerStore) entry.getValue());
+            }
+            replicationServer = new ReplicationServer(replicationPort, port,
+                    logs);
+            replicationServer.registerMetrics("replication");
+            sessionManager.addEventListener(replicationServer);
+        }
+        ReplicaClient replicaClient = null;
+        if (replica) {
+            List<ReplicaPlayerStore> copies = new ArrayList<>();
+            for (PlayerStore store : tables.values()) {
+                copies.add((ReplicaPlayerStore) store);
+            }
+            replicaClient = new ReplicaClient(primaryHost, primaryPort,
+                    copies);
+            replicaClient.registerMetrics("replication");
+            logger.atInfo().log("Replicating from {}:{}", primaryHost,
+                    primaryPort);
+        }
+
+        AdaptiveLimiter outboundLimiter = new AdaptiveLimiter();
+        outboundLimiter.registerMetrics("outbound");
+        servletHandler.addServletWithMapping(new ServletHolder(
+                new PlayerServlet(defaultGame, games, outboundLimiter,
+                        timers, replicaClient)),
+                "/player/*");
+        servletHandler.addServletWithMapping(MetricsServlet.class, "/metrics");
+
+        // Drain and flush on shutdown instead of cutting requests off.
+        GracefulShutdown shutdown = new GracefulShutdown(server,
+                admissionController, outboundLimiter, playerStore,
+                TimeUnit.SECONDS.toMillis(drainSeconds));
+        for (GameApplication game : games) {
+            shutdown.closeOnShutdown(game.getPlayerStore());
+        }
+        if (credentialFactory != null) {
+            shutdown.closeOnShutdown(credentialFactory);
+        }
+        if (replicationServer != null) {
+            shutdown.closeOnShutdown(replicationServer);
+        }
+        if (replicaClient != null) {
+            shutdown.closeOnShutdown(replicaClient);
+        }
+        shutdown.closeOnShutdown(timers);
+        Runtime.getRuntime().addShutdownHook(shutdown);
 
         // Start the server, and then wait for it to end.
         server.start();
         server.join();
     }
 
+    // With a database, saves are batched by the write-behind layer so
+    // sign-ins don't wait on the disk, and lookups of unknown players are
+    // answered by a Bloom filter without a query.  The filter is saved next
+    // to the server as <table>.bloom.  Without one, players are kept in
+    // memory, with those over maxHotPlayers (if set) spilled to
+    // <table>.spill, and made durable by a log in logDir (if set).  A
+    // replica keeps its copies of the primary's players in memory.
+    private static PlayerStore newPlayerStore(String storeUrl, String table,
+                                              double bloomFpp,
+                                              int maxHotPlayers, File logDir,
+                                              boolean replica)
+            throws SQLException, IOException {
+        if (replica) {
+            return new ReplicaPlayerStore(table, new InMemoryPlayerStore());
+        }
+        if (storeUrl == null) {
+            PlayerStore store = maxHotPlayers > 0 ? new TieredPlayerStore(
+                    maxHotPlayers, new File(table + ".spill"))
+                    : new InMemoryPlayerStore();
+            if (logDir != null) {
+                Files.createDirectories(logDir.toPath());
+                store = new WalPlayerStore(store,
+                        new File(logDir, table + ".wal"), true);
+            }
+            return store;
+        }
+        return new BloomFilterPlayerStore(new WriteBehindPlayerStore(
+                new JdbcPlayerStore(storeUrl, table,
+                        JdbcPlayerStore.DEFAULT_MAX_CONNECTIONS,
+                        JdbcPlayerStore.DEFAULT_CACHE_SIZE)),
+                new File(table + ".bloom"), bloomFpp);
+    }
+
     private static void usage() {
         logger.atError().log("Usage: " + GameServer.class.getName());
         logger.atError().log("\t [-p portnum]\t listens on <portnum> for " +
             "requests.  Uses " + DEFAULT_HTTP_PORT + " if not specified");
+        logger.atError().log("\t [-d seconds]\t waits up to <seconds> for " +
+            "in-flight requests on shutdown.  Uses " + DEFAULT_DRAIN_SECONDS +
+            " if not specified");
+        logger.atError().log("\t [-t tracefile]\t appends trace spans to " +
+            "<tracefile>.  Spans are not recorded if not specified");
+        logger.atError().log("\t [-s jdbcurl]\t stores players in the " +
+            "database at <jdbcurl>, such as jdbc:h2:./players.  Players are " +
+            "kept in memory if not specified");
+        logger.atError().log("\t [-f rate]\t keeps the false positive " +
+            "rate of the database's player id filter under <rate>.  Uses " +
+            BloomFilterPlayerStore.DEFAULT_FPP + " if not specified");
+        logger.atError().log("\t [-m players]\t keeps at most <players> " +
+            "players in memory, moving the least recently used to disk.  " +
+            "All players are kept in memory if not specified.  Requires " +
+            "-c, as players moved to disk keep their tokens only there.  " +
+            "Ignored with -s");
+        logger.atError().log("\t [-w directory]\t logs every player " +
+            "change to <directory> before acknowledging it, and replays the " +
+            "log on start.  Players kept in memory are lost on restart if " +
+            "not specified.  Ignored with -s");
+        logger.atError().log("\t [-l port]\t streams the players' " +
+            "logs to replicas connecting to <port> on the loopback " +
+            "interface.  Requires -w");
+        logger.atError().log("\t [-r host:port]\t runs as a read " +
+            "replica of the primary replicating on <host>:<port>, serving " +
+            "GETs from a copy of its players and forwarding POSTs to it.  " +
+            "Not allowed with -s, -w or -l; -m and -c are ignored");
+        logger.atError().log("\t [-c directory]\t keeps the players' OAuth " +
+            "tokens, encrypted with the key in " + CREDENTIAL_KEY_FILE +
+            ", in <directory>.  Tokens are kept in memory if not specified");
+        logger.atError().log("\t [-g name=secretfile]\t also serves the " +
+            "game <name>, whose client secret is <secretfile>, to requests " +
+            "with the header " + PlayerServlet.APPLICATION_HEADER + ": " +
+            "<name>.  May be repeated");
     }
 }
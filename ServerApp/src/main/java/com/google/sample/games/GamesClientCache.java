@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.StoredCredential;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.util.store.DataStore;
+import com.google.api.services.games.Games;
+import com.google.sample.games.model.Player;
+import com.google.sample.games.store.PlayerStore;
+import com.google.sample.games.trace.Tracer;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded LRU cache of ready-to-use Games service clients, keyed by
+ * player id.
+ * <p>
+ * Players only store their tokens, so each entry also holds the Credential
+ * its client was built with.  When the player's tokens change (for example
+ * after a new authCode exchange) they are copied into that Credential and
+ * the client is reused.  Only the cached players carry a full Credential.
+ * Players loaded without tokens get them back from the cached client too.
+ * </p>
+ * <p>
+ * With a {@link TimingWheel}, clients are also dropped once they have not
+ * been used for a while, or as soon as their access token has expired with
+ * no refresh token to renew it, as such a client can only fail.
+ * </p>
+ */
+public class GamesClientCache {
+
+    public static final int DEFAULT_MAX_CLIENTS = 1000;
+    public static final long DEFAULT_IDLE_MINUTES = 30;
+
+    private final HttpTransport transport;
+    private final JsonFactory jsonFactory;
+    private final DataStore<StoredCredential> credentialStore;
+    private final PlayerStore playerStore;
+    private final Map<String, Entry> clients;
+    private final TimingWheel timers;
+    private final long idleMs = TimeUnit.MINUTES.toMillis(
+            DEFAULT_IDLE_MINUTES);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong builds = new AtomicLong();
+    private final AtomicLong buildNanos = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    /**
+     * Creates the cache.
+     *
+     * @param transport   - the HTTP transport used by every client.
+     * @param jsonFactory - the JSON factory used by every client.
+     * @param maxClients  - the maximum number of clients to keep.
+     */
+    public GamesClientCache(HttpTransport transport, JsonFactory jsonFactory,
+                            final int maxClients) {
+        this(transport, jsonFactory, maxClients, null, null, null);
+    }
+
+    /**
+     * Creates the cache, persisting refreshed tokens.
+     *
+     * @param transport       - the HTTP transport used by every client.
+     * @param jsonFactory     - the JSON factory used by every client.
+     * @param maxClients      - the maximum number of clients to keep.
+     * @param credentialStore - where tokens refreshed by the clients are
+     *                        persisted, keyed by player id, or null.
+     * @param playerStore     - where players with tokens refreshed by the
+     *                        clients are saved, or null.
+     * @param timers          - the wheel the expiry timers are set on, or
+     *                        null to keep clients until they are the least
+     *                        recently used.
+     */
+    public GamesClientCache(HttpTransport transport, JsonFactory jsonFactory,
+                            final int maxClients,
+                            DataStore<StoredCredential> credentialStore,
+                            PlayerStore playerStore, TimingWheel timers) {
+        this.transport = transport;
+        this.jsonFactory = jsonFactory;
+        this.credentialStore = credentialStore;
+        this.playerStore = playerStore;
+        this.timers = timers;
+        this.clients = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> e) {
+                if (size() > maxClients) {
+                    e.getValue().cancel();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the Games client for the player's current tokens, building
+     * one if there is none cached.
+     *
+     * @param player - the player, which must have an access token.
+     * @return the Games client.
+     */
+    public Games get(Player player) {
+        String playerId = player.getPlayerId();
+        synchronized (this) {
+            Entry entry = clients.get(playerId);
+            if (entry != null) {
+                PlayerCredentials.copyTokens(player, entry.credential);
+                entry.lastUsed = System.currentTimeMillis();
+                hits.incrementAndGet();
+                return entry.games;
+            }
+        }
+
+        long start = System.nanoTime();
+        Credential credential = PlayerCredentials.build(player, transport,
+                jsonFactory, credentialStore, playerStore);
+        // Besides authorizing the request, pass the trace context along.
+        Games games = new Games.Builder(transport, jsonFactory, request -> {
+            credential.initialize(request);
+            Tracer.inject(request.getHeaders());
+        })
+                .setApplicationName("ClientServerSkeleton")
+                .build();
+        buildNanos.addAndGet(System.nanoTime() - start);
+        builds.incrementAndGet();
+
+        Entry entry = new Entry(credential, games);
+        synchronized (this) {
+            Entry replaced = clients.put(playerId, entry);
+            if (replaced != null) {
+                replaced.cancel();
+            }
+            schedule(playerId, entry);
+        }
+        return games;
+    }
+
+    /**
+     * Gives a player loaded without tokens, such as after a restart, the
+     * tokens of its cached client, or failing that the persisted ones.  In
+     * the latter case a client is cached for the player, so the persisted
+     * tokens are read once rather than on each request.
+     *
+     * @param player - the player.
+     * @return the player with the tokens, or the player itself if it has
+     * tokens or there are none for it.
+     * @throws IOException if the persisted tokens could not be read.
+     */
+    public Player restoreTokens(Player player) throws IOException {
+        if (player.hasCredential()) {
+            return player;
+        }
+        synchronized (this) {
+            Entry entry = clients.get(player.getPlayerId());
+            if (entry != null) {
+                entry.lastUsed = System.currentTimeMillis();
+                hits.incrementAndGet();
+                Credential credential = entry.credential;
+                return player.toBuilder().setTokens(
+                        credential.getAccessToken(),
+                        credential.getRefreshToken(),
+                        credential.getExpirationTimeMilliseconds()).build();
+            }
+        }
+        Player restored = PlayerCredentials.restore(player, credentialStore);
+        if (restored != player) {
+            get(restored);
+        }
+        return restored;
+    }
+
+    /**
+     * Drops the cached client for the player, if any.
+     */
+    public synchronized void invalidate(String playerId) {
+        Entry entry = clients.remove(playerId);
+        if (entry != null) {
+            entry.cancel();
+        }
+    }
+
+    public synchronized int size() {
+        return clients.size();
+    }
+
+    public long hitCount() {
+        return hits.get();
+    }
+
+    public long buildCount() {
+        return builds.get();
+    }
+
+    /**
+     * @return the average time spent building a client, in microseconds.
+     * Each cache hit saves about this much.
+     */
+    public double averageBuildMicros() {
+        long n = builds.get();
+        return n == 0 ? 0.0 : buildNanos.get() / 1000.0 / n;
+    }
+
+    /**
+     * @return the number of clients dropped for being idle or holding an
+     * expired token that can't be refreshed.
+     */
+    public long expiredCount() {
+        return expired.get();
+    }
+
+    // Must hold the lock.  Sets the entry's timer for when it would next
+    // expire.  Uses of the entry don't move the timer; when it fires early
+    // it is set again.
+    private void schedule(String playerId, Entry entry) {
+        if (timers == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long expiresAt = entry.lastUsed + idleMs;
+        Long tokenExpiry = entry.credential.getExpirationTimeMilliseconds();
+        if (entry.credential.getRefreshToken() == null &&
+                tokenExpiry != null) {
+            expiresAt = Math.min(expiresAt, tokenExpiry);
+        }
+        entry.timeout = timers.schedule(() -> expire(playerId, entry),
+                expiresAt - now, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void expire(String playerId, Entry entry) {
+        // Skip entries that have been replaced or dropped since.
+        if (clients.get(playerId) != entry) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Long tokenExpiry = entry.credential.getExpirationTimeMilliseconds();
+        boolean stale = entry.credential.getRefreshToken() == null &&
+                tokenExpiry != null && tokenExpiry <= now;
+        if (stale || now - entry.lastUsed >= idleMs) {
+            clients.remove(playerId);
+            expired.incrementAndGet();
+        } else {
+            schedule(playerId, entry);
+        }
+    }
+
+    private static class Entry {
+        final Credential credential;
+        final Games games;
+        // Guarded by the cache.
+        long lastUsed = System.currentTimeMillis();
+        TimingWheel.Timeout timeout;
+
+        Entry(Credential credential, Games games) {
+            this.credential = credential;
+            this.games = games;
+        }
+
+        void cancel() {
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+    }
+}
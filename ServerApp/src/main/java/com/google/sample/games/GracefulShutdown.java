@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games;
+
+import com.google.sample.games.store.PlayerStore;
+import com.google.sample.games.trace.Tracer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mortbay.jetty.Connector;
+import org.mortbay.jetty.Server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shuts the server down without cutting off work in progress.  Registered
+ * as a JVM shutdown hook, so it runs on SIGTERM (for example on a deploy).
+ * <ol>
+ *     <li>Stop accepting new connections.</li>
+ *     <li>Wait for in-flight requests and outbound calls to Google to
+ *     finish, up to a deadline.</li>
+ *     <li>Stop the server, then flush and close the player store and any
+ *     other registered resources, flush the traces and log the final
+ *     metrics.</li>
+ *     <li>Shut logging down, writing out any queued access log events.
+ *     log4j2's own shutdown hook is disabled in log4j2.xml, as it would
+ *     otherwise stop logging while the server drains.</li>
+ * </ol>
+ * The drain time and the number of requests still running at the deadline
+ * (which are dropped) are logged.
+ */
+public class GracefulShutdown extends Thread {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final long POLL_MS = 50;
+
+    private final Server server;
+    private final AdmissionController admissionController;
+    private final AdaptiveLimiter outboundLimiter;
+    private final PlayerStore playerStore;
+    private final long drainTimeoutMs;
+    private final List<Closeable> resources = new ArrayList<>();
+
+    /**
+     * @param server              - the server to stop.
+     * @param admissionController - tracks the requests in flight.
+     * @param outboundLimiter     - tracks the calls to Google in flight.
+     * @param playerStore         - the store to flush once drained.
+     * @param drainTimeoutMs      - how long to wait for in-flight work.
+     */
+    public GracefulShutdown(Server server,
+                            AdmissionController admissionController,
+                            AdaptiveLimiter outboundLimiter,
+                            PlayerStore playerStore, long drainTimeoutMs) {
+        super("graceful-shutdown");
+        this.server = server;
+        this.admissionController = admissionController;
+        this.outboundLimiter = outboundLimiter;
+        this.playerStore = playerStore;
+        this.drainTimeoutMs = drainTimeoutMs;
+    }
+
+    /**
+     * Adds a resource to close after the player store, in the order added.
+     *
+     * @param resource - the resource to close.
+     */
+    public void closeOnShutdown(Closeable resource) {
+        resources.add(resource);
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        logger.atInfo().log("Shutting down, draining for up to {} ms",
+                drainTimeoutMs);
+
+        // 1. Stop accepting connections.  Connections already open keep
+        // being served.
+        for (Connector connector : server.getConnectors()) {
+            try {
+                connector.close();
+            } catch (IOException e) {
+                logger.atWarn().withThrowable(e).log("Could not close {}",
+                        connector.getName());
+            }
+        }
+
+        // 2. Drain in-flight requests and outbound calls.
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMs);
+        while (inFlight() > 0 && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        int dropped = admissionController.getInFlight();
+        long drainMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        logger.atInfo().log("Drained in {} ms, dropping {} requests and {} " +
+                        "outbound calls", drainMs, dropped,
+                outboundLimiter.getInFlight());
+
+        try {
+            server.stop();
+        } catch (Exception e) {
+            logger.atWarn().withThrowable(e).log("Error stopping server");
+        }
+
+        // 3. Flush the player store and the metrics.
+        try {
+            playerStore.flush();
+        } catch (IOException e) {
+            logger.atError().withThrowable(e).log("Could not flush the " +
+                    "player store");
+        }
+        // Closed even if the flush failed, which only waits so long.
+        try {
+            playerStore.close();
+        } catch (IOException e) {
+            logger.atError().withThrowable(e).log("Could not close the " +
+                    "player store");
+        }
+        for (Closeable resource : resources) {
+            try {
+                resource.close();
+            } catch (IOException e) {
+                logger.atError().withThrowable(e).log("Could not close {}",
+                        resource);
+            }
+        }
+        try {
+            Tracer.flush();
+        } catch (IOException e) {
+            logger.atWarn().withThrowable(e).log("Could not flush traces");
+        }
+        logger.atInfo().log("Final metrics: {}", Metrics.snapshot());
+        logger.atInfo().log("Shutdown complete in {} ms",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        // 4. Nothing is logged after this.
+        LogManager.shutdown();
+    }
+
+    private int inFlight() {
+        return admissionController.getInFlight() +
+                outboundLimiter.getInFlight();
+    }
+}
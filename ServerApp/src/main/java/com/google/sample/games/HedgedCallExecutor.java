@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.sample.games.trace.Span;
+import com.google.sample.games.trace.Tracer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs idempotent Games API reads (such as applications.verify and
+ * players.get) with hedging and deadline-aware retries.
+ * <p>
+ * Each attempt is started once.  If it has not answered by the time the
+ * configured latency percentile of recent calls has passed, a second
+ * (hedged) request is sent and whichever answers first wins.  Failed
+ * attempts that are worth retrying are retried with exponential backoff
+ * and full jitter, but never past the overall deadline of the call.
+ * </p>
+ * <p>
+ * Only use this for calls that are safe to repeat.  The authCode exchange
+ * is one-time and must never be hedged or retried.
+ * </p>
+ */
+public class HedgedCallExecutor {
+
+    public static final double DEFAULT_HEDGE_PERCENTILE = 0.95;
+    public static final int DEFAULT_MAX_RETRIES = 2;
+    public static final long DEFAULT_DEADLINE_MS = 5000;
+
+    // Backoff before retry n is a random value in [0, base * 2^n), capped.
+    private static final long BASE_BACKOFF_MS = 50;
+    private static final long MAX_BACKOFF_MS = 1000;
+
+    // Hedge delay used until enough samples have been recorded, and the
+    // lower bound so a very fast history does not double every call.
+    private static final long INITIAL_HEDGE_DELAY_MS = 500;
+    private static final long MIN_HEDGE_DELAY_MS = 20;
+    private static final int MIN_SAMPLES = 20;
+    private static final int SAMPLE_WINDOW = 128;
+
+    private final ExecutorService executor;
+    private final AdaptiveLimiter limiter;
+    private final boolean rejectOverLimit;
+    private final double hedgePercentile;
+    private final int maxRetries;
+    private final long deadlineMs;
+
+    // Ring buffer of recent successful attempt latencies, in milliseconds.
+    private final long[] samples = new long[SAMPLE_WINDOW];
+    private int sampleCount;
+    private int sampleIndex;
+
+    /**
+     * Creates an executor using the default percentile, retries and deadline.
+     */
+    public HedgedCallExecutor() {
+        this(null);
+    }
+
+    /**
+     * Creates an executor using the default percentile, retries and deadline,
+     * running every attempt under the given concurrency limiter.
+     *
+     * @param limiter - limits concurrent attempts, or null for no limit.
+     */
+    public HedgedCallExecutor(AdaptiveLimiter limiter) {
+        this(limiter, true);
+    }
+
+    /**
+     * Creates an executor using the default percentile, retries and deadline,
+     * counting every attempt against the given concurrency limiter.
+     *
+     * @param limiter         - limits concurrent attempts, or null for no
+     *                        limit.
+     * @param rejectOverLimit - whether an attempt over the limit fails.  If
+     *                        not, it runs anyway; use this for reads that
+     *                        follow a call that can't be repeated.
+     */
+    public HedgedCallExecutor(AdaptiveLimiter limiter,
+                              boolean rejectOverLimit) {
+        this(DEFAULT_HEDGE_PERCENTILE, DEFAULT_MAX_RETRIES,
+                DEFAULT_DEADLINE_MS, limiter, rejectOverLimit);
+    }
+
+    /**
+     * Creates an executor.
+     *
+     * @param hedgePercentile - the latency percentile (0 to 1) of recent
+     *                        calls after which a hedged request is sent.
+     * @param maxRetries      - the number of retries after the first attempt.
+     * @param deadlineMs      - the overall time budget for a call, including
+     *                        hedges, retries and backoff.
+     * @param limiter         - limits concurrent attempts, or null for no
+     *                        limit.  A first attempt over the limit fails
+     *                        without being retried; a hedge over the limit
+     *                        is not sent.
+     */
+    public HedgedCallExecutor(double hedgePercentile, int maxRetries,
+                              long deadlineMs, AdaptiveLimiter limiter) {
+        this(hedgePercentile, maxRetries, deadlineMs, limiter, true);
+    }
+
+    private HedgedCallExecutor(double hedgePercentile, int maxRetries,
+                               long deadlineMs, AdaptiveLimiter limiter,
+                               boolean rejectOverLimit) {
+        if (hedgePercentile <= 0 || hedgePercentile > 1) {
+            throw new IllegalArgumentException("hedgePercentile must be in " +
+                    "(0, 1]: " + hedgePercentile);
+        }
+        this.hedgePercentile = hedgePercentile;
+        this.maxRetries = maxRetries;
+        this.deadlineMs = deadlineMs;
+        this.limiter = limiter;
+        this.rejectOverLimit = rejectOverLimit;
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "games-read");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Executes the call, hedging and retrying as needed.
+     *
+     * @param call - builds and executes one attempt of the request.  It is
+     *             invoked once per attempt, possibly concurrently, so it must
+     *             create a new request each time.
+     * @param <T>  - the response type.
+     * @return the first successful response.
+     * @throws IOException the last failure if every attempt failed, or an
+     *                     InterruptedIOException if the deadline passed.
+     */
+    public <T> T execute(Callable<T> call) throws IOException {
+        long deadline = System.nanoTime() +
+                TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+        int attempt = 0;
+        while (true) {
+            try {
+                return executeHedged(call, deadline);
+            } catch (IOException e) {
+                if (e instanceof InterruptedIOException || !isRetryable(e)
+                        || attempt >= maxRetries) {
+                    throw e;
+                }
+                long cap = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << attempt);
+                long backoff = ThreadLocalRandom.current().nextLong(cap + 1);
+                long remaining = TimeUnit.NANOSECONDS.toMillis(
+                        deadline - System.nanoTime());
+                if (backoff >= remaining) {
+                    throw e;
+                }
+                attempt++;
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted during " +
+                            "backoff");
+                }
+            }
+        }
+    }
+
+    private <T> T executeHedged(Callable<T> call, long deadline)
+            throws IOException {
+        CompletionService<T> completion =
+                new ExecutorCompletionService<>(executor);
+        List<Attempt<T>> attempts = new ArrayList<>(2);
+        AdaptiveLimiter.Permit first = limiter == null ? null
+                : rejectOverLimit ? limiter.acquire()
+                : limiter.acquireUnlimited();
+        attempts.add(start(completion, call, false, first));
+        boolean hedged = false;
+        IOException failure = null;
+
+        try {
+            while (!attempts.isEmpty()) {
+                long now = System.nanoTime();
+                if (now >= deadline) {
+                    throw new InterruptedIOException("Deadline exceeded");
+                }
+                long wait = deadline - now;
+                if (!hedged) {
+                    wait = Math.min(wait,
+                            TimeUnit.MILLISECONDS.toNanos(hedgeDelayMs()));
+                }
+                Future<T> done = completion.poll(wait, TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    if (!hedged) {
+                        hedged = true;
+                        // A hedge is only worth sending if there is room for
+                        // it; otherwise keep waiting for the first attempt.
+                        AdaptiveLimiter.Permit permit = limiter == null
+                                ? null : limiter.tryAcquire();
+                        if (limiter == null || permit != null) {
+                            attempts.add(start(completion, call, true,
+                                    permit));
+                        }
+                    }
+                    continue;
+                }
+                Attempt<T> attempt = remove(attempts, done);
+                try {
+                    T result = done.get();
+                    // Only the winner's latency; a loser that answers later
+                    // is cancelled before it is looked at.
+                    recordLatency(TimeUnit.NANOSECONDS.toMillis(
+                            attempt.elapsedNanos));
+                    return result;
+                } catch (ExecutionException e) {
+                    failure = asIOException(e.getCause());
+                    // If the first attempt failed outright there is no point
+                    // in hedging it; let the retry loop decide.
+                    hedged = true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for reply");
+        } finally {
+            // Interrupting the losers does not stop blocking HTTP reads, so
+            // give their permits back now rather than when their threads
+            // finally return.
+            for (Attempt<T> attempt : attempts) {
+                attempt.future.cancel(true);
+                if (attempt.permit != null) {
+                    attempt.permit.abandon();
+                }
+            }
+        }
+        throw failure;
+    }
+
+    // Submits one attempt, with a trace span that is a child of the caller's
+    // current span.
+    private static <T> Attempt<T> start(CompletionService<T> completion,
+                                        Callable<T> call, boolean hedge,
+                                        AdaptiveLimiter.Permit permit) {
+        Attempt<T> attempt = new Attempt<>(call, hedge, permit);
+        attempt.future = completion.submit(Tracer.wrap(attempt));
+        return attempt;
+    }
+
+    private static <T> Attempt<T> remove(List<Attempt<T>> attempts,
+                                         Future<T> future) {
+        for (int i = 0; i < attempts.size(); i++) {
+            if (attempts.get(i).future == future) {
+                return attempts.remove(i);
+            }
+        }
+        throw new IllegalStateException("Unknown attempt");
+    }
+
+    /**
+     * One attempt of a call, holding its limiter permit (if any) and, once
+     * it has succeeded, how long it took.
+     */
+    private static final class Attempt<T> implements Callable<T> {
+        private final Callable<T> call;
+        private final boolean hedge;
+        private final AdaptiveLimiter.Permit permit;
+        private Future<T> future;
+        private volatile long elapsedNanos;
+
+        Attempt(Callable<T> call, boolean hedge,
+                AdaptiveLimiter.Permit permit) {
+            this.call = call;
+            this.hedge = hedge;
+            this.permit = permit;
+        }
+
+        @Override
+        public T call() throws Exception {
+            try (Span span = Tracer.startSpan("attempt")) {
+                span.setAttribute("hedge", hedge);
+                long start = System.nanoTime();
+                T result;
+                try {
+                    result = call.call();
+                } catch (Exception e) {
+                    span.setAttribute("error", e.getClass().getSimpleName());
+                    if (permit != null) {
+                        permit.release(e);
+                    }
+                    throw e;
+                }
+                elapsedNanos = System.nanoTime() - start;
+                if (permit != null) {
+                    permit.release();
+                }
+                return result;
+            }
+        }
+    }
+
+    private synchronized void recordLatency(long millis) {
+        samples[sampleIndex] = millis;
+        sampleIndex = (sampleIndex + 1) % samples.length;
+        if (sampleCount < samples.length) {
+            sampleCount++;
+        }
+    }
+
+    /**
+     * @return the current hedge delay, which is the configured percentile of
+     * the recent latencies.
+     */
+    public synchronized long hedgeDelayMs() {
+        if (sampleCount < MIN_SAMPLES) {
+            return INITIAL_HEDGE_DELAY_MS;
+        }
+        long[] sorted = Arrays.copyOf(samples, sampleCount);
+        Arrays.sort(sorted);
+        int idx = (int) Math.ceil(hedgePercentile * sorted.length) - 1;
+        return Math.max(MIN_HEDGE_DELAY_MS, sorted[Math.max(0, idx)]);
+    }
+
+    /**
+     * Server errors, throttling and transport failures are retryable; other
+     * HTTP errors (such as 401 or 404) will not change by asking again, and
+     * retrying a call rejected by the limiter would only add to the load.
+     */
+    private static boolean isRetryable(IOException e) {
+        if (e instanceof AdaptiveLimiter.LimitExceededException) {
+            return false;
+        }
+        if (e instanceof HttpResponseException) {
+            int status = ((HttpResponseException) e).getStatusCode();
+            return status == 429 || status >= 500;
+        }
+        return true;
+    }
+
+    private static IOException asIOException(Throwable t) {
+        if (t instanceof IOException) {
+            return (IOException) t;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new IOException(t);
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the outcome of requests sent with an Idempotency-Key header, so
+ * a client can safely retry a POST whose response was lost.
+ * <p>
+ * The first request with a given key claims it and runs normally; its
+ * status and body are then recorded.  A retry with the same key waits for
+ * the first one to finish if needed, and is answered with the recorded
+ * result instead of running again.  A fingerprint of the request is kept
+ * with the key, so a key cannot be used to fetch the result of a different
+ * request.
+ * </p>
+ * <p>
+ * The table is bounded, and entries expire a fixed time after they were
+ * claimed.  Entries still in flight are only dropped once expired.  With a
+ * {@link TimingWheel}, each entry is removed by its own timer; otherwise
+ * expired entries are dropped when the next key is claimed.
+ * </p>
+ */
+public class IdempotencyTable {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    public static final long DEFAULT_TTL_MINUTES = 10;
+
+    /**
+     * A recorded response.
+     */
+    public static final class Result {
+        private final int status;
+        private final byte[] body;
+        private final String playerId;
+
+        public Result(int status, byte[] body, String playerId) {
+            this.status = status;
+            this.body = body;
+            this.playerId = playerId;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public String getPlayerId() {
+            return playerId;
+        }
+    }
+
+    /**
+     * A claimed key.  The result completes when the request that claimed it
+     * finishes.
+     */
+    public static final class Entry {
+        private final byte[] fingerprint;
+        private final long created;
+        private final CompletableFuture<Result> result =
+                new CompletableFuture<>();
+        // Removes the entry when it expires, if the table has a wheel.
+        private TimingWheel.Timeout timeout;
+
+        Entry(byte[] fingerprint, long created) {
+            this.fingerprint = fingerprint;
+            this.created = created;
+        }
+
+        /**
+         * @return true if the entry was claimed by the same request.
+         */
+        public boolean matches(byte[] fingerprint) {
+            return Arrays.equals(this.fingerprint, fingerprint);
+        }
+
+        public CompletableFuture<Result> getResult() {
+            return result;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final TimingWheel timers;
+
+    // Insertion ordered, which is also expiry order.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+
+    public IdempotencyTable() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Creates the table.
+     *
+     * @param maxEntries - the maximum number of keys remembered.
+     * @param ttl        - how long a key is remembered after it is claimed.
+     * @param unit       - the unit of ttl.
+     */
+    public IdempotencyTable(int maxEntries, long ttl, TimeUnit unit) {
+        this(maxEntries, ttl, unit, null);
+    }
+
+    /**
+     * Creates a table whose entries are expired by timers.
+     *
+     * @param maxEntries - the maximum number of keys remembered.
+     * @param ttl        - how long a key is remembered after it is claimed.
+     * @param unit       - the unit of ttl.
+     * @param timers     - the wheel the expiry timers are set on, or null to
+     *                   expire entries when keys are claimed.
+     */
+    public IdempotencyTable(int maxEntries, long ttl, TimeUnit unit,
+                            TimingWheel timers) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.timers = timers;
+    }
+
+    /**
+     * Claims the key for a request, unless it is already claimed.
+     *
+     * @param key         - the idempotency key, scoped by the caller (for
+     *                    example to the player id).
+     * @param fingerprint - identifies the request contents.
+     * @return null if the caller claimed the key and must call
+     * {@link #complete} or {@link #abandon}, otherwise the existing entry.
+     */
+    public synchronized Entry claim(String key, byte[] fingerprint) {
+        long now = System.nanoTime();
+        if (timers == null) {
+            expire(now);
+        }
+        Entry existing = entries.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        Entry entry = new Entry(fingerprint, now);
+        entries.put(key, entry);
+        if (timers != null) {
+            entry.timeout = timers.schedule(() -> expire(key, entry),
+                    ttlNanos, TimeUnit.NANOSECONDS);
+        }
+        if (entries.size() > maxEntries) {
+            // Drop the oldest finished entry.  Entries still in flight are
+            // kept so their retries are not orphaned.
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry oldest = it.next();
+                if (oldest.result.isDone()) {
+                    it.remove();
+                    cancelTimeout(oldest);
+                    break;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records the result for a claimed key and releases any waiting retries.
+     */
+    public void complete(String key, Result result) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry != null) {
+            entry.result.complete(result);
+        }
+    }
+
+    /**
+     * Releases a claimed key without a result, for example when the request
+     * failed before doing anything.  A retry will then run again.
+     */
+    public void abandon(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.remove(key);
+        }
+        if (entry != null) {
+            cancelTimeout(entry);
+            entry.result.cancel(false);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // Called by the entry's timer.
+    private synchronized void expire(String key, Entry entry) {
+        entries.remove(key, entry);
+    }
+
+    private static void cancelTimeout(Entry entry) {
+        if (entry.timeout != null) {
+            entry.timeout.cancel();
+        }
+    }
+
+    private void expire(long now) {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (now - entry.created < ttlNanos) {
+                break;
+            }
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Writes JSON responses without the intermediate String and charset encoder
+ * of <code>resp.getWriter().append(gson.toJson(...))</code>.
+ * <p>
+ * Gson serializes straight into a per-thread UTF-8 byte buffer that is
+ * reused across requests.  The exact Content-Length is then set and the
+ * bytes are written to the ServletOutputStream in one call, so the
+ * container does not need to fall back to chunked encoding.
+ * </p>
+ */
+public final class JsonResponseWriter {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Buffers that grew past this for an unusually large response are not
+    // kept, so one big response does not pin memory on every thread.
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<Utf8Buffer> BUFFERS =
+            ThreadLocal.withInitial(Utf8Buffer::new);
+
+    private JsonResponseWriter() {
+    }
+
+    /**
+     * Serializes the object as JSON and writes it as the response body.  The
+     * status and content type should be set before calling this.
+     *
+     * @param resp - the response to write.
+     * @param gson - the Gson instance to serialize with.
+     * @param src  - the object to serialize, may be null.
+     * @throws IOException if the response could not be written.
+     */
+    public static void write(HttpServletResponse resp, Gson gson, Object src)
+            throws IOException {
+        Utf8Buffer buffer = encode(gson, src);
+        try {
+            resp.setContentLength(buffer.size());
+            resp.getOutputStream().write(buffer.bytes(), 0, buffer.size());
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Serializes the object as JSON into a new byte array, for responses that
+     * need to be kept and replayed later.
+     *
+     * @param gson - the Gson instance to serialize with.
+     * @param src  - the object to serialize, may be null.
+     * @return the UTF-8 encoded JSON.
+     */
+    public static byte[] toBytes(Gson gson, Object src) {
+        Utf8Buffer buffer = encode(gson, src);
+        try {
+            return Arrays.copyOf(buffer.bytes(), buffer.size());
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Writes already encoded JSON as the response body.
+     *
+     * @param resp - the response to write.
+     * @param body - the UTF-8 encoded JSON.
+     * @throws IOException if the response could not be written.
+     */
+    public static void write(HttpServletResponse resp, byte[] body)
+            throws IOException {
+        resp.setContentLength(body.length);
+        resp.getOutputStream().write(body);
+    }
+
+    private static Utf8Buffer encode(Gson gson, Object src) {
+        Utf8Buffer buffer = BUFFERS.get();
+        buffer.reset();
+        gson.toJson(src, buffer);
+        return buffer;
+    }
+
+    /**
+     * A Writer that encodes characters as UTF-8 into a growable byte array.
+     * Not thread safe; each thread has its own.
+     */
+    private static final class Utf8Buffer extends Writer {
+
+        private byte[] bytes = new byte[INITIAL_CAPACITY];
+        private int count;
+
+        byte[] bytes() {
+            return bytes;
+        }
+
+        int size() {
+            return count;
+        }
+
+        void reset() {
+            count = 0;
+        }
+
+        void release() {
+            count = 0;
+            if (bytes.length > MAX_RETAINED_CAPACITY) {
+                bytes = new byte[INITIAL_CAPACITY];
+            }
+        }
+
+        @Override
+        public void write(int c) {
+            ensureCapacity(3);
+            encode((char) c);
+        }
+
+        @Override
+        public void write(char[] chars, int off, int len) {
+            // Worst case is 3 bytes per char (a surrogate pair is 4 bytes
+            // for 2 chars).
+            ensureCapacity(len * 3);
+            for (int i = off; i < off + len; i++) {
+                char c = chars[i];
+                if (Character.isHighSurrogate(c) && i + 1 < off + len
+                        && Character.isLowSurrogate(chars[i + 1])) {
+                    encodeCodePoint(Character.toCodePoint(c, chars[++i]));
+                } else {
+                    encode(c);
+                }
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            ensureCapacity(len * 3);
+            for (int i = off; i < off + len; i++) {
+                char c = str.charAt(i);
+                if (Character.isHighSurrogate(c) && i + 1 < off + len
+                        && Character.isLowSurrogate(str.charAt(i + 1))) {
+                    encodeCodePoint(Character.toCodePoint(c,
+                            str.charAt(++i)));
+                } else {
+                    encode(c);
+                }
+            }
+        }
+
+        private void encode(char c) {
+            if (c < 0x80) {
+                bytes[count++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[count++] = (byte) (0xc0 | (c >> 6));
+                bytes[count++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate, same replacement as the JDK encoder.
+                bytes[count++] = (byte) '?';
+            } else {
+                bytes[count++] = (byte) (0xe0 | (c >> 12));
+                bytes[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+
+        private void encodeCodePoint(int cp) {
+            bytes[count++] = (byte) (0xf0 | (cp >> 18));
+            bytes[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+            bytes[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+            bytes[count++] = (byte) (0x80 | (cp & 0x3f));
+        }
+
+        private void ensureCapacity(int extra) {
+            if (count + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes,
+                        Math.max(bytes.length << 1, count + extra));
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+/**
+ * A minimal registry of named server metrics.  Components register a
+ * supplier for each value they want to expose, and the values are read when
+ * a snapshot is taken (for example by {@link MetricsServlet}).
+ */
+public final class Metrics {
+
+    private static final Map<String, Supplier<? extends Number>> registry =
+            new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Registers (or replaces) a metric.
+     *
+     * @param name  - the dotted name of the metric, such as
+     *              "profileCache.hitRatio".
+     * @param value - supplies the current value when a snapshot is taken.
+     */
+    public static void register(String name, Supplier<? extends Number> value) {
+        registry.put(name, value);
+    }
+
+    /**
+     * @return the current value of every registered metric, sorted by name.
+     */
+    public static SortedMap<String, Number> snapshot() {
+        SortedMap<String, Number> values = new TreeMap<>();
+        for (Map.Entry<String, Supplier<? extends Number>> entry :
+                registry.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        return values;
+    }
+}
@@ -19,9 +19,15 @@ import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.services.games.Games;
 import com.google.api.services.games.model.ApplicationVerifyResponse;
+import com.google.sample.games.cache.StringPool;
+import com.google.sample.games.cache.TinyLfuCache;
 import com.google.sample.games.model.Player;
+import com.google.sample.games.model.PlayerProfile;
+import com.google.sample.games.trace.Span;
+import com.google.sample.games.trace.Tracer;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -31,9 +37,41 @@ import java.io.IOException;
  */
 public class PlayGamesAPI {
 
+    // Shared by all instances so the hedge delay is learned from every call.
+    private static final HedgedCallExecutor DEFAULT_READ_EXECUTOR =
+            new HedgedCallExecutor();
+
+    // Profiles returned by players.get, keyed by application and requested
+    // player id.  Shared by all the applications the server hosts.
+    // Popular players are refreshed in the background before they expire.
+    private static final int PROFILE_CACHE_SIZE = 10000;
+    private static final long PROFILE_TTL_MINUTES = 10;
+    private static final long PROFILE_REFRESH_MINUTES = 8;
+    private static final TinyLfuCache<String, PlayerProfile> PROFILE_CACHE =
+            new TinyLfuCache<>(PROFILE_CACHE_SIZE, PROFILE_TTL_MINUTES,
+                    PROFILE_REFRESH_MINUTES, TimeUnit.MINUTES);
+
+    // Titles come from a small set and display names repeat a lot, so the
+    // copies in each response are replaced with shared instances.
+    private static final int STRING_POOL_SIZE = 16384;
+    private static final StringPool STRING_POOL =
+            new StringPool(STRING_POOL_SIZE);
+
+    static {
+        Metrics.register("stringPool.hits", STRING_POOL::hitCount);
+        Metrics.register("stringPool.misses", STRING_POOL::missCount);
+        Metrics.register("profileCache.hitRatio", PROFILE_CACHE::hitRatio);
+        Metrics.register("profileCache.hits", PROFILE_CACHE::hitCount);
+        Metrics.register("profileCache.misses", PROFILE_CACHE::missCount);
+        Metrics.register("profileCache.evictions",
+                PROFILE_CACHE::evictionCount);
+        Metrics.register("profileCache.size", PROFILE_CACHE::size);
+    }
+
     private Player player;
     private String applicationId;
     private Games gamesAPI;
+    private HedgedCallExecutor readExecutor;
 
     /**
      * Creates an instance of the PlayGamesAPI.  This instance is specific
@@ -47,12 +85,53 @@ public class PlayGamesAPI {
      */
     public PlayGamesAPI(Player player, String applicationId, NetHttpTransport
             transport, JsonFactory jsonFactory) {
+        this(player, applicationId, transport, jsonFactory,
+                DEFAULT_READ_EXECUTOR);
+    }
+
+    /**
+     * Creates an instance of the PlayGamesAPI that runs its reads on the
+     * given executor.
+     *
+     * @param player        - the player including credentials representing the
+     *                      client-side player.
+     * @param applicationId - the application id of the game configuration.
+     * @param transport     - the HTTP transport factory the API should use.
+     * @param jsonFactory   - the JSON serializer factory the API should use.
+     * @param readExecutor  - hedges and retries the idempotent API reads.
+     */
+    public PlayGamesAPI(Player player, String applicationId, NetHttpTransport
+            transport, JsonFactory jsonFactory,
+                        HedgedCallExecutor readExecutor) {
+        this(player, applicationId, new Games(transport, jsonFactory,
+                PlayerCredentials.build(player, transport, jsonFactory,
+                        null, null)),
+                readExecutor);
+    }
+
+    /**
+     * Creates an instance of the PlayGamesAPI around an existing Games
+     * client.
+     *
+     * @param player        - the player including credentials representing the
+     *                      client-side player.
+     * @param applicationId - the application id of the game configuration.
+     * @param gamesAPI      - a Games client built with the player's credential,
+     *                      such as one from a {@link GamesClientCache}.
+     * @param readExecutor  - hedges and retries the idempotent API reads.
+     */
+    public PlayGamesAPI(Player player, String applicationId, Games gamesAPI,
+                        HedgedCallExecutor readExecutor) {
         this.player = player;
         this.applicationId = applicationId;
-        this.gamesAPI = new Games(transport, jsonFactory, player
-                .getCredential());
+        this.gamesAPI = gamesAPI;
+        this.readExecutor = readExecutor;
     }
 
+    /**
+     * @return the latest version of the player, including the changes made
+     * by the calls so far.  Nothing is saved until the caller saves it.
+     */
     public Player getPlayer() {
         return player;
     }
@@ -61,7 +140,7 @@ public class PlayGamesAPI {
      * Calls Games.applications.verify.  This verifies the credentials with the
      * game configuration found using the application Id.  The player id
      * returned from verify must match the playerId or alternate player id in
-     * the player object.
+     * the player object, whose alternate id is then updated.
      *
      * @return true if successful, false if the ids returned do not match the
      * ids in the player object.
@@ -69,19 +148,27 @@ public class PlayGamesAPI {
      */
     public boolean verifyPlayer() throws IOException {
 
-        ApplicationVerifyResponse resp = gamesAPI.applications().verify
-                (applicationId).execute();
-        if (player.getPlayerId().equals(resp.getPlayerId()) ||
-                player.getAltPlayerId().equals(resp.getAlternatePlayerId())) {
-            player.setAltPlayerId(resp.getAlternatePlayerId());
-            return true;
+        try (Span span = Tracer.startSpan("PlayGamesAPI.verifyPlayer")) {
+            // verify is a read, so it is safe to hedge and retry.
+            ApplicationVerifyResponse resp = readExecutor.execute(() ->
+                    gamesAPI.applications().verify(applicationId).execute());
+            if (player.getPlayerId().equals(resp.getPlayerId()) ||
+                    player.getAltPlayerId().equals(
+                            resp.getAlternatePlayerId())) {
+                player = player.toBuilder()
+                        .setAltPlayerId(resp.getAlternatePlayerId())
+                        .build();
+                return true;
+            }
+            span.setAttribute("mismatch", true);
+            return false;
         }
-        return false;
     }
 
     /**
-     * Calls Games.players.get() using the player object's player Id.
-     * The response is used to set some fields on the player object.
+     * Calls Games.players.get() using the player object's player Id, unless
+     * the profile was fetched recently and is still in the profile cache.
+     * The response is used to build a new version of the player.
      *
      * @return true if successful, false if the ids returned do not match the
      * ids in the player object.
@@ -89,27 +176,38 @@ public class PlayGamesAPI {
      */
     public boolean updatePlayerInfo() throws IOException {
 
-        com.google.api.services.games.model.Player gpgPlayer =
-                gamesAPI.players().get(player.getPlayerId()).execute();
+        String playerId = player.getPlayerId();
+        PlayerProfile profile;
+        try (Span span = Tracer.startSpan("PlayGamesAPI.updatePlayerInfo")) {
+            boolean[] cached = {true};
+            String cacheKey = applicationId + '/' + playerId;
+            profile = PROFILE_CACHE.get(cacheKey, () -> {
+                cached[0] = false;
+                return PlayerProfile.from(readExecutor.execute(() ->
+                        gamesAPI.players().get(playerId).execute()));
+            });
+            span.setAttribute("cached", cached[0]);
+        }
 
-        player.setDisplayName(gpgPlayer.getDisplayName());
-        player.setVisibleProfile(gpgPlayer.getProfileSettings()
-                .getProfileVisible());
-        player.setTitle(gpgPlayer.getTitle());
+        Player.Builder builder = player.toBuilder()
+                .setDisplayName(STRING_POOL.dedup(profile.getDisplayName()))
+                .setVisibleProfile(profile.isVisibleProfile())
+                .setTitle(STRING_POOL.dedup(profile.getTitle()));
 
         // Handle 'games-lite' player id migration.
-        if (!player.getPlayerId().equals(gpgPlayer.getPlayerId())) {
+        if (!playerId.equals(profile.getPlayerId())) {
             // Check the original player id and set the alternate id to it.
-            if (player.getPlayerId().equals(gpgPlayer.getOriginalPlayerId())) {
-                player.setAltPlayerId(gpgPlayer.getPlayerId());
+            if (playerId.equals(profile.getOriginalPlayerId())) {
+                builder.setAltPlayerId(profile.getPlayerId());
             } else {
                 return false;
             }
-        } else if (gpgPlayer.getOriginalPlayerId() != null &&
-                !gpgPlayer.getOriginalPlayerId().equals(player.getAltPlayerId())) {
-            player.setAltPlayerId(gpgPlayer.getOriginalPlayerId());
+        } else if (profile.getOriginalPlayerId() != null &&
+                !profile.getOriginalPlayerId().equals(player.getAltPlayerId())) {
+            builder.setAltPlayerId(profile.getOriginalPlayerId());
         }
 
+        player = builder.build();
         return true;
     }
 }
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.CredentialRefreshListener;
+import com.google.api.client.auth.oauth2.DataStoreCredentialRefreshListener;
+import com.google.api.client.auth.oauth2.StoredCredential;
+import com.google.api.client.auth.oauth2.TokenErrorResponse;
+import com.google.api.client.auth.oauth2.TokenResponse;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.util.store.DataStore;
+import com.google.sample.games.model.Player;
+import com.google.sample.games.store.PlayerStore;
+
+import java.io.IOException;
+
+/**
+ * Builds OAuth2 Credentials from the tokens stored in a {@link Player}.
+ * <p>
+ * Players only keep their tokens, so a Credential is built when a Games
+ * client is needed.  When the Credential refreshes its access token, the new
+ * tokens are copied back into the player and, if there is one, into the
+ * credential data store.
+ * </p>
+ */
+final class PlayerCredentials {
+
+    static final String TOKEN_SERVER_URL =
+            "https://www.googleapis.com/oauth2/v4/token";
+
+    private PlayerCredentials() {
+    }
+
+    /**
+     * Builds a Credential holding the player's current tokens.
+     *
+     * @param player          - the player, which must have an access token.
+     * @param transport       - the HTTP transport used to refresh the token.
+     * @param jsonFactory     - the JSON factory used to refresh the token.
+     * @param credentialStore - where refreshed tokens are persisted, keyed
+     *                        by player id, or null.
+     * @param playerStore     - where a new version of the player with the
+     *                        refreshed tokens is saved, or null.
+     * @return the new Credential.
+     */
+    static Credential build(Player player, HttpTransport transport,
+                            JsonFactory jsonFactory,
+                            DataStore<StoredCredential> credentialStore,
+                            PlayerStore playerStore) {
+        String playerId = player.getPlayerId();
+        Credential.Builder builder = new Credential.Builder(
+                BearerToken.authorizationHeaderAccessMethod())
+                .setJsonFactory(jsonFactory)
+                .setTransport(transport)
+                .setTokenServerEncodedUrl(TOKEN_SERVER_URL)
+                .setClientAuthentication(request -> {
+                })
+                .addRefreshListener(new CredentialRefreshListener() {
+                    @Override
+                    public void onTokenResponse(Credential credential,
+                                                TokenResponse tokenResponse) {
+                        if (playerStore == null) {
+                            return;
+                        }
+                        // Build on the stored version rather than the one
+                        // the credential was made from, which may be out
+                        // of date by now.
+                        Player current = playerStore.get(playerId);
+                        if (current != null) {
+                            playerStore.save(current.toBuilder().setTokens(
+                                    credential.getAccessToken(),
+                                    credential.getRefreshToken(),
+                                    credential.getExpirationTimeMilliseconds())
+                                    .build());
+                        }
+                    }
+
+                    @Override
+                    public void onTokenErrorResponse(Credential credential,
+                            TokenErrorResponse tokenErrorResponse) {
+                    }
+                });
+        if (credentialStore != null) {
+            builder.addRefreshListener(new DataStoreCredentialRefreshListener(
+                    playerId, credentialStore));
+        }
+        Credential credential = builder.build();
+        copyTokens(player, credential);
+        return credential;
+    }
+
+    /**
+     * Persists the player's current tokens.
+     *
+     * @param player          - the player.
+     * @param credentialStore - the credential data store, or null.
+     * @throws IOException if the tokens could not be stored.
+     */
+    static void store(Player player,
+                      DataStore<StoredCredential> credentialStore)
+            throws IOException {
+        if (credentialStore == null || !player.hasCredential()) {
+            return;
+        }
+        credentialStore.set(player.getPlayerId(), new StoredCredential()
+                .setAccessToken(player.getAccessToken())
+                .setRefreshToken(player.getRefreshToken())
+                .setExpirationTimeMilliseconds(
+                        player.getExpirationTimeMillis()));
+    }
+
+    /**
+     * Gives a player loaded without tokens, such as after a restart, the
+     * tokens persisted for it.
+     *
+     * @param player          - the player.
+     * @param credentialStore - the credential data store, or null.
+     * @return a new version of the player with the persisted tokens, or the
+     * player itself if it has tokens or none were persisted.
+     * @throws IOException if the tokens could not be read.
+     */
+    static Player restore(Player player,
+                          DataStore<StoredCredential> credentialStore)
+            throws IOException {
+        if (credentialStore == null || player.hasCredential()) {
+            return player;
+        }
+        StoredCredential stored = credentialStore.get(player.getPlayerId());
+        if (stored == null || stored.getAccessToken() == null) {
+            return player;
+        }
+        return player.toBuilder().setTokens(stored.getAccessToken(),
+                stored.getRefreshToken(),
+                stored.getExpirationTimeMilliseconds()).build();
+    }
+
+    /**
+     * Copies the player's tokens into the Credential if they differ, such as
+     * after a new authCode exchange.  Tokens expiring before the
+     * Credential's are left alone; they come from a version of the player
+     * made before the Credential refreshed its token.
+     */
+    static void copyTokens(Player player, Credential credential) {
+        String accessToken = player.getAccessToken();
+        if (accessToken != null &&
+                accessToken.equals(credential.getAccessToken())) {
+            return;
+        }
+        Long expiry = player.getExpirationTimeMillis();
+        Long current = credential.getExpirationTimeMilliseconds();
+        if (expiry != null && current != null && expiry < current) {
+            return;
+        }
+        credential.setAccessToken(accessToken);
+        credential.setRefreshToken(player.getRefreshToken());
+        credential.setExpirationTimeMilliseconds(
+                player.getExpirationTimeMillis());
+    }
+}
@@ -15,23 +15,38 @@
  */
 package com.google.sample.games;
 
-import com.google.api.client.auth.oauth2.BearerToken;
-import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.StoredCredential;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeTokenRequest;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.googleapis.auth.oauth2.GoogleTokenResponse;
-import com.google.api.client.http.HttpExecuteInterceptor;
-import com.google.api.client.http.HttpRequest;
-import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.store.DataStore;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.sample.games.model.Player;
+import com.google.sample.games.replication.ReplicaClient;
+import com.google.sample.games.store.InMemoryPlayerStore;
+import com.google.sample.games.store.PlayerStore;
+import com.google.sample.games.trace.Span;
+import com.google.sample.games.trace.Tracer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
@@ -48,25 +63,171 @@ import javax.servlet.http.HttpSession;
  */
 public class PlayerServlet extends HttpServlet {
 
-    // Session attribute keys.
+    private static final Logger logger = LogManager.getLogger();
+
+    // Session attribute keys.  Applications other than the default one add
+    // their name, so a session can hold a player per application.
     private static final String PLAYER_ID_KEY = "p";
 
+    // Header naming the application a request is for.  Requests without it
+    // go to the default application.
+    static final String APPLICATION_HEADER = "X-Games-Application";
+
+    // Header the client sends so the authCode POST can be retried safely.
+    private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 128;
+
+    // How long a retry waits for the original request to finish.
+    private static final long REPLAY_WAIT_SECONDS = 30;
+
     // Static GSON object used to serialze/deserialize the objects passed via
     // the API.
     private static Gson GSON =
             new GsonBuilder().excludeFieldsWithoutExposeAnnotation()
                     .create();
 
-    // Static HTTP transport factory used by the API to communicate with the
-    // Game Services API.
-    private static NetHttpTransport HTTPTransport = new NetHttpTransport();
+    // Results of authCode exchanges, by application, player id and
+    // idempotency key.
+    private final IdempotencyTable idempotencyTable;
+    private final AtomicLong idempotentReplays = new AtomicLong();
+
+    // The applications served, by name, and the one used when a request
+    // does not name one.
+    private final GameApplication defaultApplication;
+    private final Map<String, GameApplication> applications = new HashMap<>();
+
+    // Limits concurrent calls to Google (the token endpoint and the Games
+    // API), adapting to how quickly they are answered.
+    private final AdaptiveLimiter outboundLimiter;
+
+    // Hedges and retries the Games API reads, under the outbound limit.
+    private final HedgedCallExecutor gamesReads;
+
+    // On a replica, the primary's sessions and where changes are sent.
+    // Null on a primary.
+    private final ReplicaClient replica;
+
+    /**
+     * Creates the servlet with an in-memory player store.
+     */
+    public PlayerServlet() {
+        this(new InMemoryPlayerStore(), new AdaptiveLimiter());
+    }
+
+    /**
+     * Creates the servlet.
+     *
+     * @param playerStore     - where the players are stored.
+     * @param outboundLimiter - limits concurrent calls to Google.
+     */
+    public PlayerServlet(PlayerStore playerStore,
+                         AdaptiveLimiter outboundLimiter) {
+        this(playerStore, outboundLimiter, null);
+    }
+
+    /**
+     * Creates the servlet, persisting the players' tokens.
+     *
+     * @param playerStore     - where the players are stored.
+     * @param outboundLimiter - limits concurrent calls to Google.
+     * @param credentialStore - where the players' tokens are persisted,
+     *                        keyed by player id, or null.
+     */
+    public PlayerServlet(PlayerStore playerStore,
+                         AdaptiveLimiter outboundLimiter,
+                         DataStore<StoredCredential> credentialStore) {
+        this(defaultApplication(playerStore, credentialStore),
+                Collections.<GameApplication>emptyList(), outboundLimiter);
+    }
+
+    /**
+     * Creates the servlet serving several applications.
+     *
+     * @param defaultApplication - serves requests without an
+     *                           {@value #APPLICATION_HEADER} header.
+     * @param applications       - the other applications, picked by the
+     *                           {@value #APPLICATION_HEADER} header.
+     * @param outboundLimiter    - limits concurrent calls to Google, shared
+     *                           by all applications.
+     */
+    public PlayerServlet(GameApplication defaultApplication,
+                         Collection<GameApplication> applications,
+                         AdaptiveLimiter outboundLimiter) {
+        this(defaultApplication, applications, outboundLimiter, null);
+    }
+
+    /**
+     * Creates the servlet serving several applications, expiring the
+     * recorded authCode exchanges with timers.
+     *
+     * @param defaultApplication - serves requests without an
+     *                           {@value #APPLICATION_HEADER} header.
+     * @param applications       - the other applications, picked by the
+     *                           {@value #APPLICATION_HEADER} header.
+     * @param outboundLimiter    - limits concurrent calls to Google, shared
+     *                           by all applications.
+     * @param timers             - the wheel the expiry timers are set on, or
+     *                           null.
+     */
+    public PlayerServlet(GameApplication defaultApplication,
+                         Collection<GameApplication> applications,
+                         AdaptiveLimiter outboundLimiter,
+                         TimingWheel timers) {
+        this(defaultApplication, applications, outboundLimiter, timers,
+                null);
+    }
 
+    /**
+     * Creates the servlet, serving as a read replica if given the client
+     * following the primary.  A replica answers GETs from its copy of the
+     * players, checked against the primary's sessions, and forwards POSTs
+     * to the primary.
+     *
+     * @param defaultApplication - serves requests without an
+     *                           {@value #APPLICATION_HEADER} header.
+     * @param applications       - the other applications, picked by the
+     *                           {@value #APPLICATION_HEADER} header.
+     * @param outboundLimiter    - limits concurrent calls to Google, shared
+     *                           by all applications.
+     * @param timers             - the wheel the expiry timers are set on, or
+     *                           null.
+     * @param replica            - the client following the primary, or
+     *                           null if this server is the primary.
+     */
+    public PlayerServlet(GameApplication defaultApplication,
+                         Collection<GameApplication> applications,
+                         AdaptiveLimiter outboundLimiter,
+                         TimingWheel timers, ReplicaClient replica) {
+        this.replica = replica;
+        this.defaultApplication = defaultApplication;
+        for (GameApplication application : applications) {
+            this.applications.put(application.getName(), application);
+        }
+        this.outboundLimiter = outboundLimiter;
+        // These reads follow the authCode exchange, which can't be
+        // repeated, so they are never turned away by the limiter.
+        this.gamesReads = new HedgedCallExecutor(outboundLimiter, false);
+        this.idempotencyTable = new IdempotencyTable(
+                IdempotencyTable.DEFAULT_MAX_ENTRIES,
+                IdempotencyTable.DEFAULT_TTL_MINUTES, TimeUnit.MINUTES,
+                timers);
+        Metrics.register("idempotency.size", idempotencyTable::size);
+        Metrics.register("idempotency.replays", idempotentReplays::get);
+    }
 
-    // In-memory storage of the players.  This is used to make the
-    // sample more simple by not having additional dependencies on persistence.
-    // In an actual server side application, you'll want to persist this objects
-    // in some sort of datastore.
-    private static HashMap<String, Player> playerMap = new HashMap<>();
+    // The client_secret.json file is downloaded from the Google API console.
+    // This is used to identify your web application.  The contents of this
+    // file should not be shared.
+    private static GameApplication defaultApplication(
+            PlayerStore playerStore,
+            DataStore<StoredCredential> credentialStore) {
+        GameApplication application = new GameApplication(
+                GameApplication.DEFAULT_NAME,
+                new File(GameApplication.DEFAULT_SECRET_FILE), playerStore,
+                credentialStore);
+        application.registerMetrics("");
+        return application;
+    }
 
     /**
      * Called by the server (via the <code>service</code> method) to
@@ -146,6 +307,11 @@ public class PlayerServlet extends HttpServlet {
         // Always return JSON objects.
         resp.setContentType("application/json");
 
+        GameApplication application = resolveApplication(req, resp);
+        if (application == null) {
+            return;
+        }
+
         // the only get we handle is /player/{playerid} which checks to see
         // if we have a record for the given player based on the GPGS playerid.
         if (parts.length == 3) {
@@ -155,31 +321,46 @@ public class PlayerServlet extends HttpServlet {
             // services.
             if (parts[2].equals("test")) {
                 resp.setStatus(HttpServletResponse.SC_OK);
-                Player player = new Player();
-                player.setAltPlayerId("alt_player_123");
-                player.setPlayerId("player_123");
-                player.setDisplayName("Test player");
-                player.setVisibleProfile(false);
-                resp.getWriter().append(GSON.toJson(player));
+                Player player = Player.newBuilder("player_123")
+                        .setAltPlayerId("alt_player_123")
+                        .setDisplayName("Test player")
+                        .setVisibleProfile(false)
+                        .build();
+                JsonResponseWriter.write(resp, GSON, player);
                 return;
             }
 
             // Check the session.  As a simple security method, there should be
             // 1 playerid per session.  The player id is set in the session
             // when the auth code is exchanged successfully.
-            HttpSession session = req.getSession();
-            if (!parts[2].equals(session.getAttribute(PLAYER_ID_KEY))) {
-                resp.sendError(HttpServletResponse.SC_FORBIDDEN,
-                        "Invalid session state");
-                session.invalidate();
-                log("SESSION NOT SET CORRECTLY IN GET");
-                return;
+            // A replica checks the primary's session instead, without
+            // starting one of its own that would replace the client's
+            // cookie.
+            if (replica != null) {
+                if (!parts[2].equals(replica.getSessionAttribute(
+                        req.getRequestedSessionId(),
+                        sessionKey(application)))) {
+                    resp.sendError(HttpServletResponse.SC_FORBIDDEN,
+                            "Invalid session state");
+                    logger.atWarn().log("Session not set correctly in GET");
+                    return;
+                }
+            } else {
+                HttpSession session = req.getSession();
+                if (!parts[2].equals(session.getAttribute(
+                        sessionKey(application)))) {
+                    resp.sendError(HttpServletResponse.SC_FORBIDDEN,
+                            "Invalid session state");
+                    session.invalidate();
+                    logger.atWarn().log("Session not set correctly in GET");
+                    return;
+                }
             }
 
-            Player player = lookupPlayer(parts[2]);
+            Player player = lookupPlayer(application, parts[2]);
             resp.setStatus(player == null ? HttpServletResponse
                     .SC_NOT_FOUND : HttpServletResponse.SC_OK);
-            resp.getWriter().append(GSON.toJson(player));
+            JsonResponseWriter.write(resp, GSON, player);
         } else {
             resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
                     "Could not parse request");
@@ -241,6 +422,21 @@ public class PlayerServlet extends HttpServlet {
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp)
             throws ServletException, IOException {
+        // Changes are only made on the primary.
+        if (replica != null) {
+            replica.forward(req, resp);
+            return;
+        }
+        // Continue the client's trace if it sent one.
+        try (Span span = Tracer.startSpan("PlayerServlet.doPost",
+                req.getHeader(Tracer.TRACEPARENT_HEADER))) {
+            span.setAttribute("path", req.getRequestURI());
+            handlePost(req, resp);
+        }
+    }
+
+    private void handlePost(HttpServletRequest req, HttpServletResponse resp)
+            throws IOException {
         String contextPath = getServletContext().getContextPath();
         String parts[] = req.getRequestURI().split("/");
 
@@ -253,36 +449,105 @@ public class PlayerServlet extends HttpServlet {
             return;
         }
 
+        GameApplication application = resolveApplication(req, resp);
+        if (application == null) {
+            return;
+        }
+        String sessionKey = sessionKey(application);
+
         // The only post we handle is /player/{playerid}.
         // we look up the player, and if they new, we create a new object.
         // then in the data, we get the authCode and exchange that for
         // the access token, and then return the player object.
         if (parts.length == 3) {
+            // Read the authcode from the client.  This is done first so
+            // oversized or malformed bodies are rejected before any session
+            // or player state is touched.
+            String authCode;
+            long start = System.nanoTime();
+            try {
+                authCode = AuthCodeDecoder.decode(req);
+            } catch (AuthCodeDecoder.PayloadException e) {
+                resp.sendError(e.getStatus(), e.getMessage());
+                return;
+            } finally {
+                StageTimings.of(req).record(StageTimings.Stage.DECODE, start);
+            }
+
             // Check the session.  As a simple security method, there should be
             // 1 playerid per session.  The player id is set in the session
             // when the auth code is exchanged successfully.
             HttpSession session = req.getSession();
-            if (session.getAttribute(PLAYER_ID_KEY) != null &&
-                    !parts[2].equals(session.getAttribute(PLAYER_ID_KEY))) {
+            if (session.getAttribute(sessionKey) != null &&
+                    !parts[2].equals(session.getAttribute(sessionKey))) {
                 resp.sendError(HttpServletResponse.SC_FORBIDDEN,
                         "Invalid session state");
                 session.invalidate();
                 return;
             }
-            Player player = lookupPlayer(parts[2]);
+            Player player = lookupPlayer(application, parts[2]);
             if (player == null) {
-                player = createPlayer(parts[2]);
+                player = createPlayer(application, parts[2]);
             }
 
-            // Read the authcode from the client.
-            String authCode = GSON.fromJson(req.getReader(), String.class);
-
             if (authCode != null) {
-                int result = exchangeAuthCode(authCode, player);
+                // If the client sent an idempotency key, this may be a retry
+                // of a request that already ran.  In that case, answer with
+                // the recorded result instead of exchanging the code again.
+                String idempotencyKey = req.getHeader(IDEMPOTENCY_KEY_HEADER);
+                String tableKey = null;
+                byte[] fingerprint = null;
+                if (idempotencyKey != null) {
+                    if (idempotencyKey.isEmpty() || idempotencyKey.length() >
+                            MAX_IDEMPOTENCY_KEY_LENGTH) {
+                        resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                                "Invalid " + IDEMPOTENCY_KEY_HEADER);
+                        return;
+                    }
+                    tableKey = application.getName() + '\n' + parts[2] +
+                            '\n' + idempotencyKey;
+                    fingerprint = fingerprint(authCode);
+                    IdempotencyTable.Entry previous =
+                            idempotencyTable.claim(tableKey, fingerprint);
+                    if (previous != null) {
+                        // The wait is for the original request, so don't
+                        // let it count as this route running slow.
+                        AdmissionController.excludeFromLatency(req);
+                        replay(previous, fingerprint, session, sessionKey,
+                                resp);
+                        return;
+                    }
+                }
+
+                Exchange exchange;
+                try {
+                    exchange = exchangeAuthCode(application, authCode, player,
+                            StageTimings.of(req));
+                } catch (RuntimeException e) {
+                    if (tableKey != null) {
+                        idempotencyTable.abandon(tableKey);
+                    }
+                    throw e;
+                }
+                int result = exchange.status;
+                player = exchange.player;
+                String playerId = player.getPlayerId();
+                byte[] body = JsonResponseWriter.toBytes(GSON, player);
+                if (tableKey != null) {
+                    // A 503 asks the client to try again later, so let the
+                    // retry run instead of replaying the 503.
+                    if (result == HttpServletResponse.SC_SERVICE_UNAVAILABLE) {
+                        idempotencyTable.abandon(tableKey);
+                    } else {
+                        idempotencyTable.complete(tableKey,
+                                new IdempotencyTable.Result(result, body,
+                                        playerId));
+                    }
+                }
                 resp.setStatus(result);
-                resp.getWriter().append(GSON.toJson(player));
-                session.setAttribute(PLAYER_ID_KEY, player.getPlayerId());
-            } else if (player.getCredential() == null) {
+                JsonResponseWriter.write(resp, body);
+                session.setAttribute(sessionKey, playerId);
+            } else if (!player.hasCredential()) {
                 resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Could not parse " +
                         "request contents");
             }
@@ -293,56 +558,165 @@ public class PlayerServlet extends HttpServlet {
         }
     }
 
-    private Player lookupPlayer(String playerId) {
-        return playerMap.get(playerId);
+    /**
+     * Answers a retried authCode POST with the result recorded for its
+     * idempotency key, waiting for the original request if it is still
+     * running.
+     *
+     * @param previous    - the entry claimed by the original request.
+     * @param fingerprint - the fingerprint of this request's authCode.
+     * @param session     - the session of this request.
+     * @param sessionKey  - the session attribute holding the player id.
+     * @param resp        - the response to write.
+     * @throws IOException if the response could not be written.
+     */
+    private void replay(IdempotencyTable.Entry previous, byte[] fingerprint,
+                        HttpSession session, String sessionKey,
+                        HttpServletResponse resp)
+            throws IOException {
+        if (!previous.matches(fingerprint)) {
+            resp.sendError(HttpServletResponse.SC_CONFLICT,
+                    IDEMPOTENCY_KEY_HEADER + " was used for a different " +
+                            "request");
+            return;
+        }
+        IdempotencyTable.Result result;
+        try {
+            result = previous.getResult().get(REPLAY_WAIT_SECONDS,
+                    TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        } catch (TimeoutException | CancellationException |
+                ExecutionException e) {
+            resp.sendError(HttpServletResponse.SC_CONFLICT, "The original " +
+                    "request did not complete, try again");
+            return;
+        }
+        idempotentReplays.incrementAndGet();
+        resp.setStatus(result.getStatus());
+        JsonResponseWriter.write(resp, result.getBody());
+        session.setAttribute(sessionKey, result.getPlayerId());
     }
 
-    private Player createPlayer(String playerId) {
-        if (!playerMap.containsKey(playerId)) {
-            Player p = new Player();
-            p.setPlayerId(playerId);
-            playerMap.put(playerId, p);
+    /**
+     * @return the SHA-256 digest of the authCode, used to check that a retry
+     * carries the same request as the original.
+     */
+    private static byte[] fingerprint(String authCode) {
+        try {
+            return MessageDigest.getInstance("SHA-256")
+                    .digest(authCode.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
         }
-        return playerMap.get(playerId);
     }
 
-    private void savePlayer(Player player) {
-        playerMap.put(player.getPlayerId(), player);
+    /**
+     * Finds the application named by the request's
+     * {@value #APPLICATION_HEADER} header, or the default application if it
+     * has none.  Sends a 404 if the application is unknown.
+     *
+     * @return the application, or null if an error was sent.
+     */
+    private GameApplication resolveApplication(HttpServletRequest req,
+                                               HttpServletResponse resp)
+            throws IOException {
+        String name = req.getHeader(APPLICATION_HEADER);
+        if (name == null || name.isEmpty()) {
+            return defaultApplication;
+        }
+        GameApplication application = applications.get(name);
+        if (application == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND,
+                    "Unknown application");
+        }
+        return application;
+    }
+
+    private String sessionKey(GameApplication application) {
+        return application == defaultApplication ? PLAYER_ID_KEY :
+                PLAYER_ID_KEY + '.' + application.getName();
+    }
+
+    private Player lookupPlayer(GameApplication application,
+                                String playerId) {
+        return restoreTokens(application,
+                application.getPlayerStore().get(playerId));
+    }
+
+    private Player createPlayer(GameApplication application,
+                                String playerId) {
+        return restoreTokens(application,
+                application.getPlayerStore().getOrCreate(playerId));
+    }
+
+    // Players loaded from a store (or left over from before a restart) have
+    // no tokens in memory; give this request's copy the persisted ones,
+    // which are then kept with the player's cached Games client.  The copy
+    // is not saved, as only the tokens differ and no store persists them,
+    // so a GET never writes.
+    private Player restoreTokens(GameApplication application, Player player) {
+        if (player != null) {
+            try {
+                player = application.getGamesClients().restoreTokens(player);
+            } catch (IOException e) {
+                logger.atError().withThrowable(e).log("Could not restore " +
+                        "tokens of player {}", player.getPlayerId());
+            }
+        }
+        return player;
+    }
+
+    private void savePlayer(GameApplication application, Player player) {
+        application.getPlayerStore().save(player);
     }
 
     /**
      * Exchanges the authcode for an access token credential.  The credential
      * is the associated with the given player.
      *
-     * @param authCode - the non-null authcode passed from the client.
-     * @param player   - the player object which the given authcode is
-     *                 associated with.
-     * @return the HTTP response code indicating the outcome of the exchange.
+     * @param application - the application the player belongs to.
+     * @param authCode    - the non-null authcode passed from the client.
+     * @param player      - the player object which the given authcode is
+     *                    associated with.
+     * @param timings     - where the time spent in each stage is recorded.
+     * @return the HTTP response code indicating the outcome of the exchange,
+     * and the version of the player to answer with.
      */
-    private int exchangeAuthCode(String authCode, Player player) {
+    private Exchange exchangeAuthCode(GameApplication application,
+                                      String authCode, Player player,
+                                      StageTimings timings) {
+        try (Span span = Tracer.startSpan("PlayerServlet.exchangeAuthCode")) {
+            span.setAttribute("application", application.getName());
+            Exchange exchange = exchangeAuthCodeUntraced(application,
+                    authCode, player, timings);
+            span.setAttribute("status", exchange.status);
+            application.recordExchange(
+                    exchange.status == HttpServletResponse.SC_OK);
+            return exchange;
+        }
+    }
+
+    private Exchange exchangeAuthCodeUntraced(GameApplication application,
+                                         String authCode, Player player,
+                                         StageTimings timings) {
         try {
 
-            // The client_secret.json file is downloaded from the Google API
-            // console.  This is used to identify your web application.  The
-            // contents of this file should not be shared.
-            //
-            // For the sample, this file is expected to be in the root of the
-            // sample (at the same level as the top level build.gradle file).
-            File secretFile = new File("client_secret.json");
+            // The application's client secret, read once from its
+            // client_secret.json and cached.
+            GoogleClientSecrets clientSecrets = application.getClientSecrets();
 
             // If we don't have the file, we can't access any APIs, so return
             // an error.
-            if (!secretFile.exists()) {
-                log("Secret file : " + secretFile
-                        .getAbsolutePath() + "  does not exist!");
-                return HttpServletResponse.SC_FORBIDDEN;
+            if (clientSecrets == null) {
+                logger.atError().log("Secret file : {} does not exist!",
+                        application.getSecretFile().getAbsolutePath());
+                return new Exchange(HttpServletResponse.SC_FORBIDDEN, player);
             }
 
-            GoogleClientSecrets clientSecrets =
-                    GoogleClientSecrets.load(
-                            JacksonFactory.getDefaultInstance(), new
-                                    FileReader(secretFile));
-
 
 
             // For the sample server, make sure that the client secret file
@@ -351,84 +725,121 @@ public class PlayerServlet extends HttpServlet {
                 String message = "client_secret.json is not configured " +
                         "correctly!  Download your app's information and place " +
                         "it in client_secret.json";
-                log("ERROR: " + message);
+                logger.atError().log(message);
                 throw new IllegalStateException(message);
             }
 
             // small hack here to extract the application id of the game from
             // the client id.
-            String applicationId = extractApplicationId(clientSecrets
-                    .getDetails().getClientId());
-
-            GoogleTokenResponse tokenResponse =
-                    new GoogleAuthorizationCodeTokenRequest(
-                            HTTPTransport,
-                            JacksonFactory.getDefaultInstance(),
-                            "https://www.googleapis.com/oauth2/v4/token",
-                            clientSecrets.getDetails().getClientId(),
-                            clientSecrets.getDetails().getClientSecret(),
-                            authCode,
-                            "")
-                            .execute();
-
-            log("hasRefresh == " + (tokenResponse.getRefreshToken() != null));
-            log("Exchanging authCode: " + authCode + " for token");
-            Credential credential = new Credential.Builder(
-                    BearerToken.authorizationHeaderAccessMethod())
-                    .setJsonFactory(JacksonFactory.getDefaultInstance())
-                    .setTransport(HTTPTransport)
-                    .setTokenServerEncodedUrl("https://www.googleapis" +
-                            ".com/oauth2/v4/token")
-                    .setClientAuthentication(new HttpExecuteInterceptor() {
-                        @Override
-                        public void intercept(HttpRequest request) throws IOException {
-
-                        }
-                    })
-                    .build()
-                    .setFromTokenResponse(tokenResponse);
-
-            player.setCredential(credential);
+            String applicationId = GameApplication.extractApplicationId(
+                    clientSecrets.getDetails().getClientId());
+
+            // The authCode can only be exchanged once, so unlike the Games API
+            // reads this request is never hedged or retried.  Turning it
+            // away is the last point at which the client can simply retry.
+            AdaptiveLimiter.Permit permit = outboundLimiter.tryAcquire();
+            if (permit == null) {
+                // Google is already handling as many calls from us as it
+                // can, so ask the client to come back later.
+                return new Exchange(
+                        HttpServletResponse.SC_SERVICE_UNAVAILABLE, player);
+            }
+            GoogleTokenResponse tokenResponse;
+            long start = System.nanoTime();
+            try (Span span = Tracer.startSpan("oauth2.token")) {
+                tokenResponse = new GoogleAuthorizationCodeTokenRequest(
+                        application.getTransport(),
+                        JacksonFactory.getDefaultInstance(),
+                        PlayerCredentials.TOKEN_SERVER_URL,
+                        clientSecrets.getDetails().getClientId(),
+                        clientSecrets.getDetails().getClientSecret(),
+                        authCode,
+                        "")
+                        .setRequestInitializer(request ->
+                                Tracer.inject(request.getHeaders()))
+                        .execute();
+                // Whether this was a first consent; never the tokens.
+                span.setAttribute("refreshToken",
+                        tokenResponse.getRefreshToken() != null);
+            } catch (IOException | RuntimeException e) {
+                permit.release(e);
+                throw e;
+            } finally {
+                timings.record(StageTimings.Stage.TOKEN, start);
+            }
+            permit.release();
+
+            // Never log the authCode or the tokens.
+            logger.atDebug().log("Exchanged authCode, hasRefresh == {}",
+                    tokenResponse.getRefreshToken() != null);
+
+            // Keep only the tokens; the Games client cache builds a
+            // Credential from them.  Token responses after the first consent
+            // leave out the refresh token, so keep the one we have.
+            String refreshToken = tokenResponse.getRefreshToken();
+            if (refreshToken == null) {
+                refreshToken = player.getRefreshToken();
+            }
+            Long expiresIn = tokenResponse.getExpiresInSeconds();
+            player = player.toBuilder().setTokens(
+                    tokenResponse.getAccessToken(), refreshToken,
+                    expiresIn == null ? null : System.currentTimeMillis() +
+                            TimeUnit.SECONDS.toMillis(expiresIn))
+                    .build();
+            try {
+                PlayerCredentials.store(player,
+                        application.getCredentialStore());
+            } catch (IOException e) {
+                // The sign-in still works; the player will just have to
+                // consent again after a restart.
+                logger.atError().withThrowable(e).log("Could not persist " +
+                        "tokens of player {}", player.getPlayerId());
+            }
 
             // Now that we have a credential, we can access the Games API.
             PlayGamesAPI api = new PlayGamesAPI(player, applicationId,
-                    HTTPTransport,
-                    JacksonFactory.getDefaultInstance());
+                    application.getGamesClients().get(player), gamesReads);
 
             // Call the verify method, which checks that the access token has
             // access to the Games API, and that the player id used by the
             // client matches the playerId associated with the accessToken.
+            start = System.nanoTime();
             boolean ok = api.verifyPlayer();
+            timings.record(StageTimings.Stage.VERIFY, start);
 
             // This does not add much that is not available on the client, but
             // is used to demonstrate calling a Games API on the server.
             if (ok) {
+                start = System.nanoTime();
                 ok = api.updatePlayerInfo();
+                timings.record(StageTimings.Stage.PROFILE, start);
                 if (ok) {
-                    // persist the player.
-                    savePlayer(api.getPlayer());
+                    // persist the player.  Requests reading the player
+                    // meanwhile keep seeing the previous version.
+                    savePlayer(application, api.getPlayer());
                 }
             }
 
-            return ok ? HttpServletResponse.SC_OK :
-                    HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+            return new Exchange(ok ? HttpServletResponse.SC_OK :
+                    HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                    api.getPlayer());
 
         } catch (IOException e) {
-            e.printStackTrace();
+            logger.atError().withThrowable(e).log("authCode exchange failed");
         }
-        return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+        return new Exchange(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                player);
     }
 
-    /**
-     * Small helper function to parse the client id string and extract the
-     * application Id to use with the Games API.
-     *
-     * @param clientId - the client id for the web app.
-     * @return the applicationId, or empty string if a problem.
-     */
-    private String extractApplicationId(String clientId) {
-        // Grab the digits before the -.
-        int idx = clientId.indexOf("-");
-        return (idx > 0) ? clientId.substring(0, idx) : "";
+    // The outcome of an authCode exchange.  The player is the version built
+    // by the exchange, which is only saved if the exchange succeeded.
+    private static final class Exchange {
+        final int status;
+        final Player player;
+
+        Exchange(int status, Player player) {
+            this.status = status;
+            this.player = player;
+        }
     }
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Time spent in each stage of handling a request, kept as a request
+ * attribute so the {@link AccessLog} can report it.
+ */
+public final class StageTimings {
+
+    /**
+     * The stages of the sign-in pipeline that are timed.
+     */
+    public enum Stage {
+        DECODE, TOKEN, VERIFY, PROFILE
+    }
+
+    private static final String ATTRIBUTE = StageTimings.class.getName();
+
+    private final long[] micros = new long[Stage.values().length];
+
+    /**
+     * @return the timings of the request, creating them if needed.
+     */
+    public static StageTimings of(HttpServletRequest req) {
+        StageTimings timings = (StageTimings) req.getAttribute(ATTRIBUTE);
+        if (timings == null) {
+            timings = new StageTimings();
+            req.setAttribute(ATTRIBUTE, timings);
+        }
+        return timings;
+    }
+
+    /**
+     * @return the timings of the request, or null if none were recorded.
+     */
+    static StageTimings peek(HttpServletRequest req) {
+        return (StageTimings) req.getAttribute(ATTRIBUTE);
+    }
+
+    /**
+     * Adds the time since startNanos to the stage.
+     *
+     * @param stage      - the stage that just finished.
+     * @param startNanos - the System.nanoTime() when the stage started.
+     */
+    public void record(Stage stage, long startNanos) {
+        micros[stage.ordinal()] += TimeUnit.NANOSECONDS.toMicros(
+                System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return the time spent in the stage, in microseconds.
+     */
+    public long micros(Stage stage) {
+        return micros[stage.ordinal()];
+    }
+}
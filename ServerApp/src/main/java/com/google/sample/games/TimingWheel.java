@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A hierarchical timing wheel, for the server's many long timers: session
+ * expiry, idempotency records and cached clients.
+ * <p>
+ * Time is counted in ticks.  The wheel has {@value #LEVELS} levels of
+ * {@value #WHEEL_SIZE} buckets each; a bucket of level 0 holds the timers
+ * due in one tick, a bucket of level 1 those due in the same
+ * {@value #WHEEL_SIZE} ticks, and so on.  Scheduling a timer links it into
+ * the bucket for its deadline, and cancelling unlinks it, so both take
+ * constant time however many timers there are.  Each time level 0 goes
+ * around, the next bucket of the level above is spread out over the level
+ * below.  Nothing ever scans all the timers.
+ * </p>
+ * <p>
+ * Timers fire up to a tick late, never early.  They run one at a time on
+ * the wheel's own thread, so they must be short.
+ * </p>
+ */
+public class TimingWheel implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    public static final long DEFAULT_TICK_MS = 100;
+
+    private static final int WHEEL_BITS = 8;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+
+    // Timers further out than the top level can reach are parked at its
+    // end, and placed again when they come around.
+    private static final long MAX_TICKS =
+            (1L << (WHEEL_BITS * LEVELS)) - 1;
+
+    /**
+     * A scheduled timer.
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        // The bucket the timer is linked into, or null once it has fired or
+        // been cancelled.  All guarded by the wheel's lock.
+        private Timeout[] bucketOf;
+        private int bucketIndex;
+        private Timeout prev;
+        private Timeout next;
+        private final TimingWheel wheel;
+
+        private Timeout(TimingWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Stops the timer from firing.
+         *
+         * @return true if the timer was pending, false if it had already
+         * fired or been cancelled.
+         */
+        public boolean cancel() {
+            synchronized (wheel) {
+                if (bucketOf == null) {
+                    return false;
+                }
+                wheel.unlink(this);
+                wheel.pending--;
+                return true;
+            }
+        }
+    }
+
+    private final long tickNanos;
+    private final long startNanos;
+    private final Timeout[][] levels = new Timeout[LEVELS][WHEEL_SIZE];
+    private final Thread worker;
+
+    // The last tick processed.  Guarded by this, as are the buckets.
+    private long currentTick;
+    private int pending;
+    private boolean closed;
+
+    private final AtomicLong fired = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+
+    /**
+     * Creates and starts a wheel with the default tick.
+     */
+    public TimingWheel() {
+        this(DEFAULT_TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates and starts a wheel.
+     *
+     * @param tick - the resolution of the timers.
+     * @param unit - the unit of tick.
+     */
+    public TimingWheel(long tick, TimeUnit unit) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException("tick must be positive: " +
+                    tick);
+        }
+        tickNanos = unit.toNanos(tick);
+        startNanos = System.nanoTime();
+        worker = new Thread(this::run, "timing-wheel");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Registers the wheel's metrics.
+     *
+     * @param prefix - the name the metrics start with, such as "timers".
+     */
+    public void registerMetrics(String prefix) {
+        Metrics.register(prefix + ".pending", this::size);
+        Metrics.register(prefix + ".fired", fired::get);
+        Metrics.register(prefix + ".cancelled", cancelled::get);
+    }
+
+    /**
+     * Schedules a task.
+     *
+     * @param task  - run on the wheel's thread when the delay has passed.
+     * @param delay - how long from now to run the task.
+     * @param unit  - the unit of delay.
+     * @return the timer, which can be cancelled.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        // Round the deadline up to a whole tick from the wheel's start, so
+        // the timer never fires early.
+        long due = System.nanoTime() - startNanos +
+                unit.toNanos(Math.max(0, delay));
+        long deadline = (due + tickNanos - 1) / tickNanos;
+        synchronized (this) {
+            Timeout timeout = new Timeout(this, task,
+                    Math.max(currentTick + 1, deadline));
+            if (!closed) {
+                link(timeout);
+                pending++;
+            }
+            return timeout;
+        }
+    }
+
+    /**
+     * @return the number of timers that have not fired or been cancelled.
+     */
+    public synchronized int size() {
+        return pending;
+    }
+
+    /**
+     * Stops the wheel.  Pending timers never fire.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        worker.interrupt();
+    }
+
+    private void run() {
+        List<Timeout> due = new ArrayList<>();
+        while (true) {
+            long now = (System.nanoTime() - startNanos) / tickNanos;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                while (currentTick < now) {
+                    advance(due);
+                }
+            }
+            for (Timeout timeout : due) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    logger.atError().withThrowable(e).log("Timer failed");
+                }
+            }
+            fired.addAndGet(due.size());
+            due.clear();
+            long sleep = startNanos + (now + 1) * tickNanos -
+                    System.nanoTime();
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.max(0, sleep));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Must hold the lock.  Moves to the next tick, spreading out the buckets
+    // of the higher levels as the lower ones go around, and collects the
+    // timers that are due.
+    private void advance(List<Timeout> due) {
+        currentTick++;
+        for (int level = 1; level < LEVELS; level++) {
+            if ((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) != 0) {
+                break;
+            }
+            cascade(level, (int) (currentTick >>> (WHEEL_BITS * level))
+                    & WHEEL_MASK);
+        }
+        Timeout[] bucket = levels[0];
+        int index = (int) currentTick & WHEEL_MASK;
+        Timeout timeout = bucket[index];
+        bucket[index] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.prev = timeout.next = null;
+            timeout.bucketOf = null;
+            if (timeout.deadline > currentTick) {
+                // Parked past the top level; it has come around early.
+                link(timeout);
+            } else {
+                pending--;
+                due.add(timeout);
+            }
+            timeout = next;
+        }
+    }
+
+    // Must hold the lock.
+    private void cascade(int level, int index) {
+        Timeout timeout = levels[level][index];
+        levels[level][index] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.prev = timeout.next = null;
+            timeout.bucketOf = null;
+            link(timeout);
+            timeout = next;
+        }
+    }
+
+    // Must hold the lock.  Links the timer into the bucket for its deadline
+    // on the lowest level that reaches it.
+    private void link(Timeout timeout) {
+        long deadline = Math.min(timeout.deadline, currentTick + MAX_TICKS);
+        long ticks = deadline - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 &&
+                ticks >= 1L << (WHEEL_BITS * (level + 1))) {
+            level++;
+        }
+        Timeout[] bucket = levels[level];
+        int index = (int) (deadline >>> (WHEEL_BITS * level)) & WHEEL_MASK;
+        timeout.bucketOf = bucket;
+        timeout.bucketIndex = index;
+        timeout.prev = null;
+        timeout.next = bucket[index];
+        if (bucket[index] != null) {
+            bucket[index].prev = timeout;
+        }
+        bucket[index] = timeout;
+    }
+
+    // Must hold the lock.
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            timeout.bucketOf[timeout.bucketIndex] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = timeout.next = null;
+        timeout.bucketOf = null;
+        cancelled.incrementAndGet();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games;
+
+import org.mortbay.jetty.servlet.AbstractSessionManager;
+import org.mortbay.jetty.servlet.HashSessionManager;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Keeps the HTTP sessions in memory, like Jetty's {@link HashSessionManager},
+ * but expires them with a {@link TimingWheel} instead of the scavenger
+ * thread, which scans every session once a minute.
+ * <p>
+ * A timer is set for each session when it is created.  Requests don't
+ * touch it; when it fires and the session has been used since, it is set
+ * again for the rest of the idle time.  So an active session costs one
+ * timer per idle period rather than one per request.
+ * </p>
+ */
+public class WheelSessionManager extends HashSessionManager {
+
+    private final TimingWheel timers;
+    private final ConcurrentMap<String, TimingWheel.Timeout> timeouts =
+            new ConcurrentHashMap<>();
+
+    /**
+     * @param timers - the wheel the session timers are set on.
+     */
+    public WheelSessionManager(TimingWheel timers) {
+        this.timers = timers;
+    }
+
+    // Called when the manager starts; leaving it out keeps the scavenger
+    // from ever being scheduled.
+    @Override
+    public void setScavengePeriod(int seconds) {
+    }
+
+    @Override
+    protected AbstractSessionManager.Session newSession(
+            HttpServletRequest request) {
+        return new ExpiringSession(request);
+    }
+
+    @Override
+    protected void addSession(AbstractSessionManager.Session session) {
+        super.addSession(session);
+        if (session instanceof ExpiringSession) {
+            ((ExpiringSession) session).schedule();
+        }
+    }
+
+    @Override
+    protected void removeSession(String clusterId) {
+        super.removeSession(clusterId);
+        TimingWheel.Timeout timeout = timeouts.remove(clusterId);
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    private class ExpiringSession extends HashSessionManager.Session {
+
+        ExpiringSession(HttpServletRequest request) {
+            super(request);
+        }
+
+        // Sessions set to never expire get no timer.
+        void schedule() {
+            long idleMs = System.currentTimeMillis() - _accessed;
+            if (_maxIdleMs > 0) {
+                timeouts.put(getClusterId(), timers.schedule(this::expire,
+                        _maxIdleMs - idleMs, TimeUnit.MILLISECONDS));
+            }
+        }
+
+        private void expire() {
+            timeouts.remove(getClusterId());
+            if (!isValid()) {
+                return;
+            }
+            if (System.currentTimeMillis() - _accessed < _maxIdleMs) {
+                schedule();
+                return;
+            }
+            timeout();
+        }
+    }
+}
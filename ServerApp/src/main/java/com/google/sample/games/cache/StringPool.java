@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.cache;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, lock-free pool for deduplicating strings that repeat across
+ * many objects, such as player titles.
+ * <p>
+ * The pool is a fixed table of slots indexed by the string's hash.  A
+ * string equal to the one in its slot is replaced by the pooled instance;
+ * otherwise it takes the slot.  Colliding strings just evict each other, so
+ * the pool never grows, never locks and never holds more than
+ * <code>capacity</code> strings, at the cost of missing some duplicates.
+ * Unlike {@link String#intern()}, nothing is added to the JVM's string
+ * table.
+ * </p>
+ */
+public class StringPool {
+
+    private final AtomicReferenceArray<String> slots;
+    private final int mask;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param capacity - the number of slots, rounded up to a power of two.
+     */
+    public StringPool(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Returns the pooled instance equal to the string, pooling the string if
+     * there is none.
+     *
+     * @param s - the string, may be null.
+     * @return an equal string, or null if s is null.
+     */
+    public String dedup(String s) {
+        if (s == null) {
+            return null;
+        }
+        int h = s.hashCode();
+        int index = (h ^ (h >>> 16)) & mask;
+        String pooled = slots.get(index);
+        if (pooled != null && pooled.equals(s)) {
+            hits.increment();
+            return pooled;
+        }
+        misses.increment();
+        slots.set(index, s);
+        return s;
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.cache;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache using the W-TinyLFU policy with expire-after-write and
+ * refresh-ahead.
+ * <p>
+ * New entries land in a small LRU window.  Entries leaving the window must
+ * compete with the least recently used entry of the main segment, and only
+ * the one that a {@link FrequencySketch} says is used more often is kept.
+ * This keeps one-off keys from flushing out popular ones.  The main segment
+ * is split into probation and protected LRU regions, and entries are
+ * promoted to protected when they are hit a second time.
+ * </p>
+ * <p>
+ * Entries expire a fixed time after they were written.  When a popular
+ * entry is read after its refresh time (but before it expires), the value is
+ * returned right away and reloaded in the background, so hot keys never pay
+ * for a miss.
+ * </p>
+ * <p>
+ * All operations lock the cache; loading is done outside of the lock.
+ * </p>
+ *
+ * @param <K> - the key type.
+ * @param <V> - the value type.
+ */
+public class TinyLfuCache<K, V> {
+
+    /**
+     * Loads a value for the cache.
+     *
+     * @param <V> - the value type.
+     */
+    public interface Loader<V> {
+        V load() throws IOException;
+    }
+
+    // Keys seen at least this often are refreshed ahead of expiry.
+    private static final int HOT_FREQUENCY = 3;
+
+    private static final Executor REFRESH_EXECUTOR =
+            Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "cache-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final int windowMax;
+    private final int protectedMax;
+    private final int mainMax;
+    private final long expireNanos;
+    private final long refreshNanos;
+
+    private final LinkedHashMap<K, Entry<V>> window;
+    private final LinkedHashMap<K, Entry<V>> probation;
+    private final LinkedHashMap<K, Entry<V>> protectedRegion;
+    private final FrequencySketch sketch;
+    private final Set<K> refreshing = new HashSet<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a cache.
+     *
+     * @param maximumSize  - the maximum number of entries.
+     * @param expireAfter  - how long after being written an entry expires.
+     * @param refreshAfter - how long after being written a popular entry is
+     *                     reloaded in the background when read.
+     * @param unit         - the time unit of expireAfter and refreshAfter.
+     */
+    public TinyLfuCache(int maximumSize, long expireAfter, long refreshAfter,
+                        TimeUnit unit) {
+        if (maximumSize < 2) {
+            throw new IllegalArgumentException("maximumSize must be at " +
+                    "least 2: " + maximumSize);
+        }
+        windowMax = Math.max(1, maximumSize / 100);
+        mainMax = maximumSize - windowMax;
+        protectedMax = (int) (mainMax * 0.8);
+        expireNanos = unit.toNanos(expireAfter);
+        refreshNanos = unit.toNanos(refreshAfter);
+        window = new LinkedHashMap<>(16, 0.75f, true);
+        probation = new LinkedHashMap<>(16, 0.75f, true);
+        protectedRegion = new LinkedHashMap<>(16, 0.75f, true);
+        sketch = new FrequencySketch(maximumSize);
+    }
+
+    /**
+     * Returns the cached value, or loads and caches it.  A popular entry past
+     * its refresh time is returned and reloaded in the background with the
+     * same loader.
+     *
+     * @param key    - the key.
+     * @param loader - loads the value on a miss or refresh.
+     * @return the value, never null unless the loader returned null.
+     * @throws IOException if the value was not cached and failed to load.
+     */
+    public V get(K key, Loader<V> loader) throws IOException {
+        synchronized (this) {
+            sketch.increment(key);
+            Entry<V> entry = find(key);
+            long now = System.nanoTime();
+            if (entry != null && now - entry.writeTime >= expireNanos) {
+                remove(key);
+                entry = null;
+            }
+            if (entry != null) {
+                hits.incrementAndGet();
+                if (now - entry.writeTime >= refreshNanos
+                        && sketch.frequency(key) >= HOT_FREQUENCY
+                        && refreshing.add(key)) {
+                    REFRESH_EXECUTOR.execute(() -> refresh(key, loader));
+                }
+                return entry.value;
+            }
+            misses.incrementAndGet();
+        }
+        V value = loader.load();
+        if (value != null) {
+            put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * @return the cached value, or null if absent or expired.
+     */
+    public synchronized V getIfPresent(K key) {
+        sketch.increment(key);
+        Entry<V> entry = find(key);
+        if (entry != null &&
+                System.nanoTime() - entry.writeTime >= expireNanos) {
+            remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * Adds or replaces the value for the key, resetting its write time.
+     */
+    public synchronized void put(K key, V value) {
+        Entry<V> entry = find(key);
+        if (entry != null) {
+            entry.value = value;
+            entry.writeTime = System.nanoTime();
+            return;
+        }
+        window.put(key, new Entry<>(value, System.nanoTime()));
+        evict();
+    }
+
+    /**
+     * Removes the key from the cache.
+     */
+    public synchronized void invalidate(K key) {
+        remove(key);
+    }
+
+    public synchronized int size() {
+        return window.size() + probation.size() + protectedRegion.size();
+    }
+
+    public long hitCount() {
+        return hits.get();
+    }
+
+    public long missCount() {
+        return misses.get();
+    }
+
+    public long evictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the fraction of lookups that were hits, or 0 if there have
+     * been none.
+     */
+    public double hitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    private void refresh(K key, Loader<V> loader) {
+        try {
+            V value = loader.load();
+            if (value != null) {
+                put(key, value);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Keep serving the current value until it expires.
+        } finally {
+            synchronized (this) {
+                refreshing.remove(key);
+            }
+        }
+    }
+
+    // Looks up the entry, updating recency and promoting probation hits.
+    private Entry<V> find(K key) {
+        Entry<V> entry = window.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        entry = protectedRegion.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        entry = probation.remove(key);
+        if (entry != null) {
+            protectedRegion.put(key, entry);
+            if (protectedRegion.size() > protectedMax) {
+                Map.Entry<K, Entry<V>> demoted = first(protectedRegion);
+                protectedRegion.remove(demoted.getKey());
+                probation.put(demoted.getKey(), demoted.getValue());
+            }
+        }
+        return entry;
+    }
+
+    private void remove(K key) {
+        if (window.remove(key) == null && probation.remove(key) == null) {
+            protectedRegion.remove(key);
+        }
+    }
+
+    // Moves overflow from the window into the main segment, letting the
+    // frequency sketch decide which of the candidate and the main segment's
+    // victim is kept.
+    private void evict() {
+        while (window.size() > windowMax) {
+            Map.Entry<K, Entry<V>> candidate = first(window);
+            window.remove(candidate.getKey());
+            if (probation.size() + protectedRegion.size() < mainMax) {
+                probation.put(candidate.getKey(), candidate.getValue());
+                continue;
+            }
+            Map.Entry<K, Entry<V>> victim = probation.isEmpty()
+                    ? first(protectedRegion) : first(probation);
+            evictions.incrementAndGet();
+            if (sketch.frequency(candidate.getKey()) >
+                    sketch.frequency(victim.getKey())) {
+                remove(victim.getKey());
+                probation.put(candidate.getKey(), candidate.getValue());
+            }
+        }
+    }
+
+    private static <K, V> Map.Entry<K, V> first(LinkedHashMap<K, V> map) {
+        Iterator<Map.Entry<K, V>> it = map.entrySet().iterator();
+        Map.Entry<K, V> e = it.next();
+        return new AbstractMap.SimpleImmutableEntry<>(e);
+    }
+
+    private static class Entry<V> {
+        V value;
+        long writeTime;
+
+        Entry(V value, long writeTime) {
+            this.value = value;
+            this.writeTime = writeTime;
+        }
+    }
+}
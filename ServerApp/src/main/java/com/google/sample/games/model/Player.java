@@ -15,94 +15,145 @@
  */
 package com.google.sample.games.model;
 
-import com.google.api.client.auth.oauth2.Credential;
 import com.google.gson.annotations.Expose;
+import com.google.gson.annotations.JsonAdapter;
+
+import java.nio.charset.StandardCharsets;
 
 /**
  * Server side representation of a Player.  This includes holding the
- * OAuth2 credential that is used to make Game Services API calls.
+ * OAuth2 tokens that are used to make Game Services API calls.
  * <p>
  *     This sample uses GSON to serialize this class, but that is not required.
  * </p>
+ * <p>
+ *     Only the tokens and their expiry are kept, as ASCII bytes, rather than a
+ *     full Credential with its transport, lock and interceptors.  A Credential
+ *     is built from them when a Games client is needed for the player.
+ * </p>
+ * <p>
+ *     Players are immutable snapshots.  A change is made by building a new
+ *     version with {@link #toBuilder()} and saving it, which replaces the
+ *     stored player in one step.  Requests reading a player at the same time
+ *     keep the version they have, so they never lock and never see a
+ *     half-updated player.
+ * </p>
  */
-public class Player {
+public final class Player {
 
+    // Held as UTF-8 bytes, about half the size of a String on Java 8.
     @Expose
-    private String playerId;
+    @JsonAdapter(Utf8BytesAdapter.class)
+    private final byte[] playerId;
 
     @Expose
-    private String displayName;
+    private final String displayName;
 
-    // Hide the tokens, these are for the server side only.
-    private Credential credential;
+    // Hide the tokens, these are for the server side only.  OAuth tokens are
+    // ASCII, so one byte per character is enough.
+    private final byte[] accessToken;
+    private final byte[] refreshToken;
+
+    // When the access token expires, in milliseconds since the epoch, or 0
+    // if unknown.
+    private final long expirationTimeMillis;
 
     // Alt PlayerId is only used to migrate to Games lite namespace.
-    private String altPlayerId;
+    private final String altPlayerId;
 
     @Expose
-    private boolean visibleProfile;
+    private final boolean visibleProfile;
 
     @Expose
-    private String title;
+    private final String title;
 
     // Set to true if the refresh token is somehow lost.
     // This flag should be inspected by the client and
     // re-authenticate next time to set up a refresh token.
     @Expose
-    private boolean needRefreshToken;
+    private final boolean needRefreshToken;
+
+    // Counts the versions built from the first one.  Kept on the server.
+    private final long version;
+
+    private Player(Builder builder) {
+        playerId = builder.playerId;
+        displayName = builder.displayName;
+        accessToken = builder.accessToken;
+        refreshToken = builder.refreshToken;
+        expirationTimeMillis = builder.expirationTimeMillis;
+        altPlayerId = builder.altPlayerId;
+        visibleProfile = builder.visibleProfile;
+        title = builder.title;
+        needRefreshToken = builder.needRefreshToken;
+        version = builder.version;
+    }
+
+    /**
+     * Starts the first version of a player.
+     *
+     * @param playerId - the player id.
+     * @return a builder of a player with no name, tokens or alternate id.
+     */
+    public static Builder newBuilder(String playerId) {
+        return new Builder(playerId);
+    }
 
-    public Player() {
-        playerId = "";
-        displayName = "";
-        altPlayerId = "";
-        needRefreshToken = true;
-        title = "";
+    /**
+     * @return a builder of the next version of this player, starting from
+     * this one's values.
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
     }
+
     public String getPlayerId() {
-        return playerId;
+        return new String(playerId, StandardCharsets.UTF_8);
     }
 
-    public void setPlayerId(String playerId) {
-        this.playerId = playerId;
+    /**
+     * @return the player id as UTF-8 bytes.  This is the player's own array,
+     * so stores can key on it without a copy; it must not be modified.
+     */
+    public byte[] getPlayerIdBytes() {
+        return playerId;
     }
 
     public String getDisplayName() {
         return displayName;
     }
 
-    public void setDisplayName(String displayName) {
-        this.displayName = displayName;
-    }
-
-    public void setCredential(Credential credential) {
-        this.credential = credential;
-        needRefreshToken = credential.getRefreshToken() == null;
+    /**
+     * @return true if the player has an access token.
+     */
+    public boolean hasCredential() {
+        return accessToken != null;
     }
 
-    public Credential getCredential() {
-        return credential;
+    public String getAccessToken() {
+        return fromBytes(accessToken);
     }
 
-    public String getAltPlayerId() {
-        return altPlayerId;
+    public String getRefreshToken() {
+        return fromBytes(refreshToken);
     }
 
-    public void setAltPlayerId(String altPlayerId) {
-        this.altPlayerId = altPlayerId==null?"":altPlayerId;
+    /**
+     * @return when the access token expires, in milliseconds since the
+     * epoch, or null if unknown.
+     */
+    public Long getExpirationTimeMillis() {
+        return expirationTimeMillis == 0 ? null : expirationTimeMillis;
     }
 
-    public void setVisibleProfile(boolean visibleProfile) {
-        this.visibleProfile = visibleProfile;
+    public String getAltPlayerId() {
+        return altPlayerId;
     }
 
     public boolean isVisibleProfile() {
         return visibleProfile;
     }
 
-    public void setTitle(String title) {
-        this.title = title;
-    }
-
     public String getTitle() {
         return title;
     }
@@ -110,4 +161,116 @@ public class Player {
     public boolean getNeedRefreshToken() {
        return needRefreshToken;
     }
+
+    /**
+     * @return the version of this snapshot.  The first version is 1, and
+     * each version built from it counts up by one.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    private static byte[] toBytes(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String fromBytes(byte[] b) {
+        return b == null ? null : new String(b, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Builds a version of a player.  Builders are not thread safe, and are
+     * meant to be used by the one request making the change.
+     */
+    public static final class Builder {
+        private final byte[] playerId;
+        private String displayName = "";
+        private byte[] accessToken;
+        private byte[] refreshToken;
+        private long expirationTimeMillis;
+        private String altPlayerId = "";
+        private boolean visibleProfile;
+        private String title = "";
+        private boolean needRefreshToken = true;
+        private long version;
+
+        private Builder(String playerId) {
+            this.playerId = playerId.getBytes(StandardCharsets.UTF_8);
+            this.version = 1;
+        }
+
+        private Builder(Player player) {
+            playerId = player.playerId;
+            displayName = player.displayName;
+            accessToken = player.accessToken;
+            refreshToken = player.refreshToken;
+            expirationTimeMillis = player.expirationTimeMillis;
+            altPlayerId = player.altPlayerId;
+            visibleProfile = player.visibleProfile;
+            title = player.title;
+            needRefreshToken = player.needRefreshToken;
+            version = player.version + 1;
+        }
+
+        public Builder setDisplayName(String displayName) {
+            this.displayName = displayName;
+            return this;
+        }
+
+        /**
+         * Sets the player's OAuth tokens.
+         *
+         * @param accessToken          - the access token.
+         * @param refreshToken         - the refresh token, or null if there
+         *                             is none.
+         * @param expirationTimeMillis - when the access token expires, in
+         *                             milliseconds since the epoch, or null
+         *                             if unknown.
+         * @return this builder.
+         */
+        public Builder setTokens(String accessToken, String refreshToken,
+                                 Long expirationTimeMillis) {
+            this.accessToken = toBytes(accessToken);
+            this.refreshToken = toBytes(refreshToken);
+            this.expirationTimeMillis =
+                    expirationTimeMillis == null ? 0 : expirationTimeMillis;
+            needRefreshToken = refreshToken == null;
+            return this;
+        }
+
+        public Builder setAltPlayerId(String altPlayerId) {
+            this.altPlayerId = altPlayerId == null ? "" : altPlayerId;
+            return this;
+        }
+
+        public Builder setVisibleProfile(boolean visibleProfile) {
+            this.visibleProfile = visibleProfile;
+            return this;
+        }
+
+        public Builder setTitle(String title) {
+            this.title = title;
+            return this;
+        }
+
+        /**
+         * Sets the version, for stores reading back a player they wrote out
+         * with its version.
+         *
+         * @param version - the version, 1 or more.
+         * @return this builder.
+         */
+        public Builder setVersion(long version) {
+            if (version < 1) {
+                throw new IllegalArgumentException("version must be at " +
+                        "least 1: " + version);
+            }
+            this.version = version;
+            return this;
+        }
+
+        public Player build() {
+            return new Player(this);
+        }
+    }
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.model;
+
+/**
+ * The parts of a Games API player resource that the server keeps for a
+ * player.  Instances are immutable so they can be shared through the
+ * profile cache.
+ */
+public final class PlayerProfile {
+
+    private final String playerId;
+    private final String displayName;
+    private final String title;
+    private final boolean visibleProfile;
+    private final String originalPlayerId;
+
+    public PlayerProfile(String playerId, String displayName, String title,
+                         boolean visibleProfile, String originalPlayerId) {
+        this.playerId = playerId;
+        this.displayName = displayName;
+        this.title = title;
+        this.visibleProfile = visibleProfile;
+        this.originalPlayerId = originalPlayerId;
+    }
+
+    /**
+     * Copies the fields kept by the server out of a Games API response.
+     *
+     * @param gpgPlayer - the response of Games.players.get().
+     * @return the profile.
+     */
+    public static PlayerProfile from(
+            com.google.api.services.games.model.Player gpgPlayer) {
+        Boolean visible = gpgPlayer.getProfileSettings() == null ? null :
+                gpgPlayer.getProfileSettings().getProfileVisible();
+        return new PlayerProfile(gpgPlayer.getPlayerId(),
+                gpgPlayer.getDisplayName(), gpgPlayer.getTitle(),
+                visible != null && visible, gpgPlayer.getOriginalPlayerId());
+    }
+
+    /**
+     * @return the player id as returned by the Games API.  This differs from
+     * the requested id when the player has migrated to the games-lite
+     * namespace.
+     */
+    public String getPlayerId() {
+        return playerId;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public boolean isVisibleProfile() {
+        return visibleProfile;
+    }
+
+    public String getOriginalPlayerId() {
+        return originalPlayerId;
+    }
+}
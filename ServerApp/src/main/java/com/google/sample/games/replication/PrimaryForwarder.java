@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.replication;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Relays requests a replica can't serve to the primary, passing the
+ * client's headers (its session cookie included) and body through, and the
+ * primary's response back.
+ */
+final class PrimaryForwarder {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    // Long enough for the primary's slowest request, an authCode exchange.
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    // Headers that describe one connection rather than the request.
+    private static final Set<String> HOP_BY_HOP = new HashSet<>(Arrays.asList(
+            "connection", "keep-alive", "proxy-authenticate",
+            "proxy-authorization", "te", "trailer", "transfer-encoding",
+            "upgrade", "host", "content-length"));
+
+    private final URL primary;
+
+    /**
+     * @param primary - the primary's base URL.
+     */
+    PrimaryForwarder(URL primary) {
+        this.primary = primary;
+    }
+
+    void forward(HttpServletRequest req, HttpServletResponse resp)
+            throws IOException {
+        String query = req.getQueryString();
+        URL url = new URL(primary, req.getRequestURI() +
+                (query == null ? "" : "?" + query));
+        HttpURLConnection connection = (HttpURLConnection)
+                url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setInstanceFollowRedirects(false);
+        connection.setRequestMethod(req.getMethod());
+        for (Enumeration<?> names = req.getHeaderNames();
+             names.hasMoreElements(); ) {
+            String name = (String) names.nextElement();
+            if (HOP_BY_HOP.contains(name.toLowerCase())) {
+                continue;
+            }
+            for (Enumeration<?> values = req.getHeaders(name);
+                 values.hasMoreElements(); ) {
+                connection.addRequestProperty(name,
+                        (String) values.nextElement());
+            }
+        }
+        connection.addRequestProperty("X-Forwarded-For",
+                req.getRemoteAddr());
+
+        int status;
+        try {
+            if ("POST".equals(req.getMethod()) ||
+                    "PUT".equals(req.getMethod())) {
+                connection.setDoOutput(true);
+                try (OutputStream out = connection.getOutputStream()) {
+                    copy(req.getInputStream(), out);
+                }
+            }
+            status = connection.getResponseCode();
+        } catch (IOException e) {
+            logger.atWarn().log("Could not forward {} {} to the primary: {}",
+                    req.getMethod(), req.getRequestURI(), e.toString());
+            resp.sendError(HttpServletResponse.SC_BAD_GATEWAY,
+                    "Primary unavailable");
+            return;
+        }
+
+        resp.setStatus(status);
+        for (Map.Entry<String, List<String>> header :
+                connection.getHeaderFields().entrySet()) {
+            String name = header.getKey();
+            // The status line is listed under a null name.
+            if (name == null || HOP_BY_HOP.contains(name.toLowerCase())) {
+                continue;
+            }
+            for (String value : header.getValue()) {
+                resp.addHeader(name, value);
+            }
+        }
+        InputStream body = status >= 400 ? connection.getErrorStream()
+                : connection.getInputStream();
+        if (body != null) {
+            try (InputStream in = body) {
+                copy(in, resp.getOutputStream());
+            }
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out)
+            throws IOException {
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+    }
+}
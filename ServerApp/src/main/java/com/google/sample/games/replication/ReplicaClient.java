@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.replication;
+
+import com.google.sample.games.Metrics;
+import com.google.sample.games.store.ReplicaPlayerStore;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The replica's side of replication: follows a primary's
+ * {@link ReplicationServer}, applying its logs to the replica's stores and
+ * keeping a copy of its sessions, and forwards changes to it.
+ * <p>
+ * A background thread holds the connection, and reconnects after it
+ * drops, resuming the logs where it stopped.  Reads are served from the
+ * replica's own copy, which lags the primary by the replication lag
+ * exported in the metrics: a player that just signed in on the primary may
+ * not be found on a replica for that long.
+ * </p>
+ */
+public class ReplicaClient implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final long RECONNECT_MS = 1000;
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    // Silence past this many heartbeats means the primary is gone.
+    private static final int MISSED_HEARTBEATS = 3;
+
+    private final String host;
+    private final int port;
+    private final List<ReplicaPlayerStore> stores;
+    private final Thread follower;
+
+    // Session id to its String attributes, as on the primary.
+    private final ConcurrentMap<String, Map<String, String>> sessions =
+            new ConcurrentHashMap<>();
+
+    private volatile Socket socket;
+    private volatile boolean closed;
+    private volatile PrimaryForwarder primary;
+
+    // The stores in the order the primary numbered them, and how much of
+    // each log the primary had on disk.  Written by the follower thread.
+    private volatile ReplicaPlayerStore[] following =
+            new ReplicaPlayerStore[0];
+    private volatile long[] primaryDurable = new long[0];
+
+    // The primary's clock when it sent the last frame applied, the local
+    // clock when it was applied, and how far apart they were.  Both clocks
+    // are assumed to agree, as on one host.
+    private volatile boolean connected;
+    private volatile long lastSentAt;
+    private volatile long lastAppliedAt;
+    private volatile long lastDelayMs;
+
+    private final AtomicLong reconnects = new AtomicLong();
+
+    /**
+     * Starts following the primary.
+     *
+     * @param host   - the primary's host.
+     * @param port   - the primary's replication port.
+     * @param stores - the stores to keep up to date.
+     */
+    public ReplicaClient(String host, int port,
+                         List<ReplicaPlayerStore> stores) {
+        this.host = host;
+        this.port = port;
+        this.stores = new ArrayList<>(stores);
+        follower = new Thread(this::followLoop, "replica-follower");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    /**
+     * Registers the replication metrics under the given prefix.
+     *
+     * @param prefix - such as "replication".
+     */
+    public void registerMetrics(String prefix) {
+        Metrics.register(prefix + ".connected", () -> connected ? 1 : 0);
+        Metrics.register(prefix + ".lagMs", this::lagMillis);
+        Metrics.register(prefix + ".lagBytes", this::lagBytes);
+        Metrics.register(prefix + ".reconnects", reconnects::get);
+        Metrics.register(prefix + ".sessions", sessions::size);
+    }
+
+    /**
+     * @return how far behind the primary the replica is, in milliseconds:
+     * the delay of the last change applied, or the time since the primary
+     * was last heard from once it has gone quiet.  -1 until the primary has
+     * been heard from.
+     */
+    public long lagMillis() {
+        long sentAt = lastSentAt;
+        if (sentAt == 0) {
+            return -1;
+        }
+        long now = System.currentTimeMillis();
+        if (!connected || now - lastAppliedAt >
+                MISSED_HEARTBEATS * ReplicationProtocol.HEARTBEAT_MS) {
+            return now - sentAt;
+        }
+        return lastDelayMs;
+    }
+
+    /**
+     * @return how many bytes of the primary's logs, known to be on its
+     * disk, have not been applied yet.
+     */
+    public long lagBytes() {
+        ReplicaPlayerStore[] stores = following;
+        long[] durable = primaryDurable;
+        long lag = 0;
+        for (int i = 0; i < stores.length && i < durable.length; i++) {
+            lag += Math.max(0, durable[i] - stores[i].getPosition());
+        }
+        return lag;
+    }
+
+    /**
+     * Looks up an attribute of one of the primary's sessions.
+     *
+     * @param sessionId - the session id, or null.
+     * @param name      - the attribute name.
+     * @return the attribute, or null if the session or attribute is not
+     * known.
+     */
+    public String getSessionAttribute(String sessionId, String name) {
+        if (sessionId == null) {
+            return null;
+        }
+        Map<String, String> attributes = sessions.get(sessionId);
+        return attributes == null ? null : attributes.get(name);
+    }
+
+    /**
+     * Sends the request to the primary and relays its response.  Answers
+     * 503 while the primary is not known yet.
+     */
+    public void forward(HttpServletRequest req, HttpServletResponse resp)
+            throws IOException {
+        PrimaryForwarder forwarder = primary;
+        if (forwarder == null) {
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "Primary not connected");
+            return;
+        }
+        forwarder.forward(req, resp);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        follower.interrupt();
+        Socket current = socket;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    private void followLoop() {
+        while (!closed) {
+            try (Socket socket = new Socket()) {
+                this.socket = socket;
+                socket.connect(new InetSocketAddress(host, port),
+                        CONNECT_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                // Time out a primary that stops sending, heartbeats
+                // included.
+                socket.setSoTimeout((int) (MISSED_HEARTBEATS *
+                        ReplicationProtocol.HEARTBEAT_MS));
+                follow(socket);
+            } catch (IOException e) {
+                if (closed) {
+                    return;
+                }
+                if (connected) {
+                    logger.atWarn().log("Lost the primary at {}:{}: {}",
+                            host, port, e.toString());
+                }
+            } finally {
+                connected = false;
+            }
+            try {
+                Thread.sleep(RECONNECT_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            reconnects.incrementAndGet();
+        }
+    }
+
+    private void follow(Socket socket) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                socket.getOutputStream()));
+        out.writeInt(ReplicationProtocol.VERSION);
+        out.writeInt(stores.size());
+        for (ReplicaPlayerStore store : stores) {
+            out.writeUTF(store.getTable());
+            out.writeLong(store.getLogId());
+            out.writeLong(store.getPosition());
+        }
+        out.flush();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                socket.getInputStream()));
+        int httpPort = in.readInt();
+        int count = in.readInt();
+        ReplicaPlayerStore[] tables = new ReplicaPlayerStore[count];
+        for (int i = 0; i < count; i++) {
+            String table = in.readUTF();
+            long logId = in.readLong();
+            long position = in.readLong();
+            for (ReplicaPlayerStore store : stores) {
+                if (store.getTable().equals(table)) {
+                    tables[i] = store;
+                    store.resume(logId, position);
+                }
+            }
+            if (tables[i] == null) {
+                throw new IOException("Primary sent unknown table " + table);
+            }
+        }
+        ByteBuffer[] partial = new ByteBuffer[count];
+        following = tables;
+        primaryDurable = new long[count];
+        // The primary sends every session again.
+        sessions.clear();
+        primary = new PrimaryForwarder(new URL("http", host, httpPort, "/"));
+        connected = true;
+        logger.atInfo().log("Following the primary at {}:{}", host, port);
+
+        while (true) {
+            int type = in.readUnsignedByte();
+            long sentAt;
+            switch (type) {
+                case ReplicationProtocol.LOG:
+                    int index = in.readInt();
+                    long durable = in.readLong();
+                    sentAt = in.readLong();
+                    int length = in.readInt();
+                    if (index < 0 || index >= count) {
+                        throw new IOException("Bad table " + index);
+                    }
+                    partial[index] = read(in, partial[index], length);
+                    primaryDurable[index] = durable;
+                    tables[index].apply(partial[index]);
+                    partial[index].compact().flip();
+                    break;
+                case ReplicationProtocol.SESSION:
+                    sentAt = in.readLong();
+                    String sessionId = in.readUTF();
+                    String name = in.readUTF();
+                    String value = in.readBoolean() ? in.readUTF() : null;
+                    applySession(sessionId, name, value);
+                    break;
+                case ReplicationProtocol.HEARTBEAT:
+                    sentAt = in.readLong();
+                    break;
+                default:
+                    throw new IOException("Unknown frame type " + type);
+            }
+            long now = System.currentTimeMillis();
+            lastSentAt = sentAt;
+            lastAppliedAt = now;
+            lastDelayMs = Math.max(0, now - sentAt);
+        }
+    }
+
+    // Appends length bytes from the stream to what is left of the log's
+    // last frame, ready to be read.
+    private static ByteBuffer read(DataInputStream in, ByteBuffer partial,
+                                   int length) throws IOException {
+        int kept = partial == null ? 0 : partial.remaining();
+        ByteBuffer buffer = partial;
+        if (buffer == null || buffer.capacity() < kept + length) {
+            buffer = ByteBuffer.allocate(kept + length);
+            if (partial != null) {
+                buffer.put(partial);
+            }
+        } else {
+            buffer.compact();
+        }
+        in.readFully(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                length);
+        buffer.position(buffer.position() + length);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void applySession(String sessionId, String name, String value) {
+        if (name.isEmpty()) {
+            sessions.remove(sessionId);
+        } else if (value == null) {
+            sessions.computeIfPresent(sessionId, (id, attributes) -> {
+                attributes.remove(name);
+                return attributes.isEmpty() ? null : attributes;
+            });
+        } else {
+            sessions.computeIfAbsent(sessionId,
+                    id -> new ConcurrentHashMap<>()).put(name, value);
+        }
+    }
+}
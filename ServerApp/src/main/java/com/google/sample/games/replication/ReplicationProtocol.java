@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.replication;
+
+/**
+ * The format of the stream between a primary and its replicas.
+ * <p>
+ * On connecting, the replica sends {@code [int VERSION][int count]}
+ * followed, for each table it serves, by {@code [UTF table][long logId]
+ * [long position]}: the log it last followed and how far it got, or 0 and
+ * 0.  The primary answers {@code [int httpPort][int count]} and, for each
+ * of those tables it has, {@code [UTF table][long logId][long position]}
+ * with where its log will continue.  Tables are then numbered in that
+ * order.
+ * </p>
+ * <p>
+ * The primary then sends frames, each starting with its type and, after
+ * the type's fields, the primary's clock when it was sent:
+ * </p>
+ * <ul>
+ *     <li>{@code LOG [int table][long durable][long sentAt][int length]}
+ *     and <code>length</code> bytes of the table's log, continuing from
+ *     the last.  <code>durable</code> is how much of the log the primary
+ *     had on disk.  A record may be split across frames.</li>
+ *     <li>{@code SESSION [long sentAt][UTF sessionId][UTF name]
+ *     [boolean present][UTF value, if present]}: a session attribute was
+ *     set or removed.  An empty name means the session ended.</li>
+ *     <li>{@code HEARTBEAT [long sentAt]}, sent when there has been
+ *     nothing else to send for {@link #HEARTBEAT_MS}.</li>
+ * </ul>
+ */
+final class ReplicationProtocol {
+
+    static final int VERSION = 1;
+
+    static final int LOG = 1;
+    static final int SESSION = 2;
+    static final int HEARTBEAT = 3;
+
+    static final long HEARTBEAT_MS = 1000;
+    static final int MAX_LOG_FRAME_BYTES = 1024 * 1024;
+
+    private ReplicationProtocol() {
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.replication;
+
+import com.google.sample.games.Metrics;
+import com.google.sample.games.store.WalPlayerStore;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionAttributeListener;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
+
+/**
+ * The primary's side of replication: streams the players' write-ahead logs,
+ * and the players bound to each session, to read replicas connected over
+ * TCP.
+ * <p>
+ * Each replica gets a thread that copies the logs as they become durable,
+ * straight from the files to the socket.  Only records on disk are sent,
+ * so a replica never sees a change the primary could still lose.  A
+ * replica that reconnects to the same run of the primary resumes where it
+ * stopped; otherwise it is sent the logs from the start.
+ * </p>
+ * <p>
+ * Registered as a session listener, it also sends the String attributes of
+ * every session, which is how a replica knows which player a session
+ * signed in as.  Changes to a session are sent after the logs as they were
+ * at the time, so a replica never holds a session bound to a player it has
+ * not received yet.
+ * </p>
+ * <p>
+ * It listens on the loopback interface only; the stream is not
+ * authenticated.  See {@link ReplicationProtocol} for the format.
+ * </p>
+ */
+public class ReplicationServer implements Closeable,
+        HttpSessionAttributeListener, HttpSessionListener {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private final ServerSocketChannel serverChannel;
+    private final int httpPort;
+    private final Map<String, WalPlayerStore> stores;
+    private final Thread acceptor;
+
+    // Guarded by this.  changes counts log syncs and session changes, so a
+    // sender knows whether there is anything new since it last looked.
+    private final Map<String, Map<String, String>> sessions = new HashMap<>();
+    private final List<Replica> replicas = new ArrayList<>();
+    private long changes;
+    private boolean closed;
+
+    private final AtomicLong sentBytes = new AtomicLong();
+
+    /**
+     * Starts listening for replicas.
+     *
+     * @param port     - the port replicas connect to.
+     * @param httpPort - the port this server serves HTTP on, where replicas
+     *                 forward changes.
+     * @param stores   - the stores to replicate, by table name.
+     * @throws IOException if the port could not be bound.
+     */
+    public ReplicationServer(int port, int httpPort,
+                             Map<String, WalPlayerStore> stores)
+            throws IOException {
+        this.httpPort = httpPort;
+        this.stores = new LinkedHashMap<>(stores);
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port));
+        for (WalPlayerStore store : stores.values()) {
+            store.setDurableListener(position -> changed());
+        }
+        acceptor = new Thread(this::acceptLoop, "replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        logger.atInfo().log("Replicating {} to replicas on port {}",
+                stores.keySet(), port);
+    }
+
+    /**
+     * Registers the replication metrics under the given prefix.
+     *
+     * @param prefix - such as "replication".
+     */
+    public void registerMetrics(String prefix) {
+        Metrics.register(prefix + ".replicas", this::replicaCount);
+        Metrics.register(prefix + ".sentBytes", sentBytes::get);
+    }
+
+    public synchronized int replicaCount() {
+        return replicas.size();
+    }
+
+    @Override
+    public void attributeAdded(HttpSessionBindingEvent event) {
+        sessionChanged(event.getSession(), event.getName());
+    }
+
+    @Override
+    public void attributeReplaced(HttpSessionBindingEvent event) {
+        sessionChanged(event.getSession(), event.getName());
+    }
+
+    @Override
+    public void attributeRemoved(HttpSessionBindingEvent event) {
+        publish(new SessionChange(event.getSession().getId(),
+                event.getName(), null));
+    }
+
+    @Override
+    public void sessionCreated(HttpSessionEvent event) {
+    }
+
+    @Override
+    public void sessionDestroyed(HttpSessionEvent event) {
+        publish(new SessionChange(event.getSession().getId(), null, null));
+    }
+
+    /**
+     * Stops listening and disconnects the replicas.
+     */
+    @Override
+    public void close() throws IOException {
+        List<Replica> connected;
+        synchronized (this) {
+            closed = true;
+            connected = new ArrayList<>(replicas);
+            notifyAll();
+        }
+        serverChannel.close();
+        for (Replica replica : connected) {
+            replica.channel.close();
+        }
+    }
+
+    // The event holds the attribute's old value when it is replaced, so
+    // read the current one from the session.
+    private void sessionChanged(HttpSession session, String name) {
+        Object value = session.getAttribute(name);
+        publish(new SessionChange(session.getId(), name,
+                value instanceof String ? (String) value : null));
+    }
+
+    private synchronized void publish(SessionChange change) {
+        if (change.name == null) {
+            sessions.remove(change.sessionId);
+        } else if (change.value == null) {
+            Map<String, String> attributes = sessions.get(change.sessionId);
+            if (attributes != null) {
+                attributes.remove(change.name);
+                if (attributes.isEmpty()) {
+                    sessions.remove(change.sessionId);
+                }
+            }
+        } else {
+            sessions.computeIfAbsent(change.sessionId, id -> new HashMap<>())
+                    .put(change.name, change.value);
+        }
+        for (Replica replica : replicas) {
+            replica.sessionChanges.add(change);
+        }
+        changes++;
+        notifyAll();
+    }
+
+    // Called by the logs' leaders while saves wait on them, so only wakes
+    // the senders.
+    private synchronized void changed() {
+        changes++;
+        notifyAll();
+    }
+
+    private void acceptLoop() {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    logger.atError().withThrowable(e).log("Could not " +
+                            "accept a replica");
+                    continue;
+                }
+                return;
+            }
+            Thread sender = new Thread(() -> serve(channel),
+                    "replication-sender-" + channel.socket().getPort());
+            sender.setDaemon(true);
+            sender.start();
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        Replica replica = new Replica(channel);
+        try {
+            channel.socket().setTcpNoDelay(true);
+            replica.handshake();
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                // Start the replica off with every session, then the
+                // changes published from here on.
+                for (Map.Entry<String, Map<String, String>> session :
+                        sessions.entrySet()) {
+                    for (Map.Entry<String, String> attribute :
+                            session.getValue().entrySet()) {
+                        replica.sessionChanges.add(new SessionChange(
+                                session.getKey(), attribute.getKey(),
+                                attribute.getValue()));
+                    }
+                }
+                replicas.add(replica);
+            }
+            logger.atInfo().log("Replica {} connected",
+                    channel.socket().getRemoteSocketAddress());
+            replica.stream();
+        } catch (IOException e) {
+            logger.atWarn().log("Replica {} disconnected: {}",
+                    channel.socket().getRemoteSocketAddress(), e.toString());
+        } finally {
+            synchronized (this) {
+                replicas.remove(replica);
+            }
+            replica.close();
+        }
+    }
+
+    private static final class SessionChange {
+        final String sessionId;
+        // A null name drops the whole session; a null value, the attribute.
+        final String name;
+        final String value;
+
+        SessionChange(String sessionId, String name, String value) {
+            this.sessionId = sessionId;
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    // One connected replica, served by its own thread.
+    private final class Replica {
+        final SocketChannel channel;
+        // Guarded by the server.
+        final ArrayDeque<SessionChange> sessionChanges = new ArrayDeque<>();
+
+        final List<WalPlayerStore> sent = new ArrayList<>();
+        final List<FileChannel> logs = new ArrayList<>();
+        long[] logIds;
+        long[] positions;
+
+        Replica(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // Agrees with the replica on where each log continues.
+        void handshake() throws IOException {
+            DataInputStream in = new DataInputStream(
+                    Channels.newInputStream(channel));
+            if (in.readInt() != ReplicationProtocol.VERSION) {
+                throw new IOException("Unknown protocol version");
+            }
+            List<Long> starts = new ArrayList<>();
+            List<Long> logIdsRead = new ArrayList<>();
+            List<String> tables = new ArrayList<>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String table = in.readUTF();
+                long logId = in.readLong();
+                long position = in.readLong();
+                WalPlayerStore store = stores.get(table);
+                if (store == null) {
+                    continue;
+                }
+                // Read the id first: if the log is checkpointed meanwhile,
+                // the id no longer matches and the replica is disconnected
+                // before anything is sent.
+                long currentId = store.getLogId();
+                boolean resume = logId == currentId &&
+                        position <= store.durablePosition();
+                tables.add(table);
+                sent.add(store);
+                logs.add(store.openLogReader());
+                logIdsRead.add(currentId);
+                starts.add(resume ? position : 0);
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(httpPort);
+            out.writeInt(tables.size());
+            logIds = new long[tables.size()];
+            positions = new long[tables.size()];
+            for (int i = 0; i < tables.size(); i++) {
+                logIds[i] = logIdsRead.get(i);
+                positions[i] = starts.get(i);
+                out.writeUTF(tables.get(i));
+                out.writeLong(logIds[i]);
+                out.writeLong(positions[i]);
+            }
+            write(bytes);
+        }
+
+        void stream() throws IOException {
+            long seen = -1;
+            while (true) {
+                List<SessionChange> pending;
+                synchronized (ReplicationServer.this) {
+                    long deadline = System.currentTimeMillis() +
+                            ReplicationProtocol.HEARTBEAT_MS;
+                    long wait;
+                    while (!closed && changes == seen &&
+                            sessionChanges.isEmpty() &&
+                            (wait = deadline - System.currentTimeMillis())
+                                    > 0) {
+                        try {
+                            ReplicationServer.this.wait(wait);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    seen = changes;
+                    pending = new ArrayList<>(sessionChanges);
+                    sessionChanges.clear();
+                }
+
+                // The logs are read after taking the session changes, so
+                // they hold every player saved before a session was bound
+                // to it.
+                boolean sentAny = false;
+                for (int i = 0; i < sent.size(); i++) {
+                    sentAny |= sendLog(i);
+                }
+                for (SessionChange change : pending) {
+                    sendSession(change);
+                    sentAny = true;
+                }
+                if (!sentAny) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    DataOutputStream out = new DataOutputStream(bytes);
+                    out.writeByte(ReplicationProtocol.HEARTBEAT);
+                    out.writeLong(System.currentTimeMillis());
+                    write(bytes);
+                }
+            }
+        }
+
+        // Sends the log's durable records not sent yet, in frames of up to
+        // MAX_LOG_FRAME_BYTES copied straight from the file.  Once the log
+        // has been checkpointed, the offsets no longer hold; the replica is
+        // disconnected, and is sent the new log when it reconnects.
+        boolean sendLog(int index) throws IOException {
+            WalPlayerStore store = sent.get(index);
+            if (store.getLogId() != logIds[index]) {
+                throw new IOException("Log was checkpointed");
+            }
+            long durable = store.durablePosition();
+            if (durable <= positions[index]) {
+                return false;
+            }
+            while (positions[index] < durable) {
+                int length = (int) Math.min(durable - positions[index],
+                        ReplicationProtocol.MAX_LOG_FRAME_BYTES);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeByte(ReplicationProtocol.LOG);
+                out.writeInt(index);
+                out.writeLong(durable);
+                out.writeLong(System.currentTimeMillis());
+                out.writeInt(length);
+                write(bytes);
+                FileChannel log = logs.get(index);
+                long copied = 0;
+                while (copied < length) {
+                    long n = log.transferTo(positions[index] + copied,
+                            length - copied, channel);
+                    if (n == 0) {
+                        // The file was replaced after the id was checked.
+                        throw new IOException("Log was checkpointed");
+                    }
+                    copied += n;
+                }
+                positions[index] += length;
+                sentBytes.addAndGet(length);
+            }
+            return true;
+        }
+
+        void sendSession(SessionChange change) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(ReplicationProtocol.SESSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeUTF(change.sessionId);
+            out.writeUTF(change.name == null ? "" : change.name);
+            out.writeBoolean(change.value != null);
+            if (change.value != null) {
+                out.writeUTF(change.value);
+            }
+            write(bytes);
+        }
+
+        void write(ByteArrayOutputStream bytes) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already disconnected.
+            }
+            for (FileChannel log : logs) {
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    // Only read from.
+                }
+            }
+        }
+    }
+}
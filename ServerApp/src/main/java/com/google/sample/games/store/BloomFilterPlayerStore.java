@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.store;
+
+import com.google.sample.games.Metrics;
+import com.google.sample.games.model.Player;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Answers lookups of unknown player ids without asking the underlying
+ * store, using a {@link ScalableBloomFilter} of the known player ids and
+ * alternate ids.
+ * <p>
+ * Every id is added to the filter before the player is stored, so the
+ * filter never misses a stored player; a lookup it lets through that the
+ * store can't answer is a false positive.  The filter grows as players are
+ * created, keeping its false positive rate under the configured target.
+ * Both the estimated and the observed rates are reported.
+ * </p>
+ * <p>
+ * The filter is saved to a file when the store is closed and loaded from
+ * it on the next start.  The file is deleted once loaded, so after a crash
+ * the filter is rebuilt from the store instead of trusting a stale copy.
+ * </p>
+ */
+public class BloomFilterPlayerStore implements PlayerStore {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    public static final double DEFAULT_FPP = 0.01;
+    public static final int DEFAULT_INITIAL_CAPACITY = 1 << 20;
+
+    private final PlayerStore delegate;
+    private final File file;
+    private final ScalableBloomFilter filter;
+
+    private final AtomicLong filtered = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+
+    /**
+     * Opens the store, loading the filter from the file or building it from
+     * the underlying store.
+     *
+     * @param delegate  - the store holding the players.
+     * @param file      - where the filter is saved between runs.
+     * @param targetFpp - the false positive rate to stay under.
+     * @throws IOException if the filter could not be built.
+     */
+    public BloomFilterPlayerStore(PlayerStore delegate, File file,
+                                  double targetFpp) throws IOException {
+        this.delegate = delegate;
+        this.file = file;
+        ScalableBloomFilter loaded = load(file, targetFpp);
+        if (loaded == null) {
+            long start = System.nanoTime();
+            loaded = new ScalableBloomFilter(DEFAULT_INITIAL_CAPACITY,
+                    targetFpp);
+            delegate.forEachPlayerId(loaded::add);
+            logger.atInfo().log("Built the player id filter in {} ms",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        this.filter = loaded;
+    }
+
+    @Override
+    public void registerMetrics(String prefix) {
+        Metrics.register(prefix + "bloom.targetFpp", filter::getTargetFpp);
+        Metrics.register(prefix + "bloom.estimatedFpp", filter::estimatedFpp);
+        Metrics.register(prefix + "bloom.observedFpp", this::observedFpp);
+        Metrics.register(prefix + "bloom.filtered", filtered::get);
+        Metrics.register(prefix + "bloom.falsePositives", falsePositives::get);
+        Metrics.register(prefix + "bloom.stages", filter::stageCount);
+        Metrics.register(prefix + "bloom.bytes", filter::sizeInBytes);
+        delegate.registerMetrics(prefix);
+    }
+
+    @Override
+    public Player get(String playerId) {
+        if (!filter.mightContain(playerId)) {
+            filtered.incrementAndGet();
+            return null;
+        }
+        Player player = delegate.get(playerId);
+        if (player == null) {
+            falsePositives.incrementAndGet();
+        }
+        return player;
+    }
+
+    @Override
+    public Player getOrCreate(String playerId) {
+        filter.add(playerId);
+        return delegate.getOrCreate(playerId);
+    }
+
+    @Override
+    public void save(Player player) {
+        add(player);
+        delegate.save(player);
+    }
+
+    @Override
+    public void saveAll(Collection<Player> players) {
+        for (Player player : players) {
+            add(player);
+        }
+        delegate.saveAll(players);
+    }
+
+    @Override
+    public void forEachPlayerId(Consumer<String> action) throws IOException {
+        delegate.forEachPlayerId(action);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        delegate.flush();
+    }
+
+    /**
+     * Closes the underlying store and saves the filter.
+     */
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            filter.writeTo(out);
+        }
+        Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the fraction of lookups of unknown ids that the filter let
+     * through, or 0 if there have been none.
+     */
+    public double observedFpp() {
+        long fp = falsePositives.get();
+        long total = fp + filtered.get();
+        return total == 0 ? 0.0 : (double) fp / total;
+    }
+
+    private void add(Player player) {
+        filter.add(player.getPlayerIdBytes());
+        String altId = player.getAltPlayerId();
+        if (!altId.isEmpty()) {
+            filter.add(altId);
+        }
+    }
+
+    // Loads the saved filter and deletes the file.  Returns null if there is
+    // no usable file, or it was built for a different rate.
+    private static ScalableBloomFilter load(File file, double targetFpp) {
+        if (!file.exists()) {
+            return null;
+        }
+        ScalableBloomFilter loaded = null;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            loaded = ScalableBloomFilter.readFrom(in);
+        } catch (IOException e) {
+            logger.atWarn().withThrowable(e).log("Could not load the player " +
+                    "id filter from {}, rebuilding it", file);
+        }
+        if (!file.delete()) {
+            logger.atWarn().log("Could not delete {}", file);
+        }
+        if (loaded != null && loaded.getTargetFpp() != targetFpp) {
+            logger.atInfo().log("Player id filter was built for a false " +
+                    "positive rate of {}, rebuilding it",
+                    loaded.getTargetFpp());
+            return null;
+        }
+        return loaded;
+    }
+}
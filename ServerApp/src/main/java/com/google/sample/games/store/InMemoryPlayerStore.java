@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.store;
+
+import com.google.sample.games.model.Player;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * In-memory storage of the players.  This is used to make the sample more
+ * simple by not having additional dependencies on persistence.  In an actual
+ * server side application, you'll want to persist these objects in some sort
+ * of datastore.
+ * <p>
+ * Players can be looked up by either their player id or their alternate
+ * ('games-lite' migration) id.  A secondary index from alternate id to
+ * player id is updated together with the players under one lock, so both
+ * ids always resolve to the same record.  Reads do not lock.
+ * </p>
+ * <p>
+ * Saving a player swaps in the new version with one map write; readers get
+ * either the old or the new version, never a mix.  A save of an older
+ * version than the stored one is dropped, so a slow request that started
+ * from an out of date copy does not undo a newer change.
+ * </p>
+ * <p>
+ * Snapshots are copy-on-write.  Taking one costs nothing up front.  While
+ * it is read, the first save that replaces or drops a player the snapshot
+ * has not reached yet keeps the version it replaces for the snapshot, so
+ * saves go on at the price of one extra map write.  Each player read
+ * leaves a mark until the snapshot is closed, so a snapshot in progress
+ * holds up to one small entry per player.
+ * </p>
+ */
+public class InMemoryPlayerStore implements PlayerStore {
+
+    // Keyed by the players' own id bytes, so each id is stored once.
+    private final ConcurrentMap<PlayerKey, Player> playerMap =
+            new ConcurrentHashMap<>();
+
+    // Alternate id to player key, and player key to the alternate id indexed
+    // for it, so the index entry can be dropped when the alternate id
+    // changes.  Written only while holding writeLock.
+    private final ConcurrentMap<String, PlayerKey> altIndex =
+            new ConcurrentHashMap<>();
+    private final Map<PlayerKey, String> indexedAltIds = new HashMap<>();
+    private final Object writeLock = new Object();
+
+    // The snapshot being read, if any.  Guarded by writeLock.
+    private Snapshot snapshot;
+
+    @Override
+    public Player get(String playerId) {
+        Player player = playerMap.get(PlayerKey.of(playerId));
+        if (player == null) {
+            PlayerKey primaryKey = altIndex.get(playerId);
+            if (primaryKey != null) {
+                player = playerMap.get(primaryKey);
+            }
+        }
+        return player;
+    }
+
+    @Override
+    public Player getOrCreate(String playerId) {
+        Player player = get(playerId);
+        if (player != null) {
+            return player;
+        }
+        synchronized (writeLock) {
+            player = get(playerId);
+            if (player == null) {
+                player = Player.newBuilder(playerId).build();
+                PlayerKey key = PlayerKey.of(player);
+                keepForSnapshot(key, null);
+                playerMap.put(key, player);
+            }
+            return player;
+        }
+    }
+
+    @Override
+    public void save(Player player) {
+        synchronized (writeLock) {
+            PlayerKey key = PlayerKey.of(player);
+            Player current = playerMap.get(key);
+            if (current != null &&
+                    current.getVersion() > player.getVersion()) {
+                return;
+            }
+            keepForSnapshot(key, current);
+            playerMap.put(key, player);
+            updateAltIndex(key, player.getAltPlayerId());
+        }
+    }
+
+    @Override
+    public void saveAll(Collection<Player> players) {
+        synchronized (writeLock) {
+            for (Player player : players) {
+                save(player);
+            }
+        }
+    }
+
+    // Must hold writeLock.  The player is stored before its new alternate
+    // id is indexed, so a lock-free reader never resolves to nothing.
+    private void updateAltIndex(PlayerKey key, String altPlayerId) {
+        PlayerKey altKey = altPlayerId == null || altPlayerId.isEmpty()
+                ? null : PlayerKey.of(altPlayerId);
+        String newAlt = altKey == null || altKey.equals(key) ? null
+                : altPlayerId;
+        String oldAlt = newAlt == null ? indexedAltIds.remove(key)
+                : indexedAltIds.put(key, newAlt);
+        if (newAlt != null) {
+            altIndex.put(newAlt, key);
+            // Any record stored under the alternate id is the same player
+            // signing in before the migration was known; the primary record
+            // replaces it.
+            Player stale = playerMap.get(altKey);
+            if (stale != null) {
+                keepForSnapshot(altKey, stale);
+                playerMap.remove(altKey);
+                String staleAlt = indexedAltIds.remove(altKey);
+                if (staleAlt != null) {
+                    altIndex.remove(staleAlt, altKey);
+                }
+            }
+        }
+        if (oldAlt != null && !oldAlt.equals(newAlt)) {
+            altIndex.remove(oldAlt, key);
+        }
+    }
+
+    /**
+     * Takes a copy-on-write snapshot of the players.  Only one can be open
+     * at a time.
+     *
+     * @throws IllegalStateException if a snapshot is already open.
+     */
+    @Override
+    public PlayerSnapshot snapshot() {
+        synchronized (writeLock) {
+            if (snapshot != null) {
+                throw new IllegalStateException("A snapshot is already open");
+            }
+            snapshot = new Snapshot();
+            return snapshot;
+        }
+    }
+
+    // Must hold writeLock, and call before the player's record is replaced
+    // or dropped.  current is the record, or null if there is none yet.
+    private void keepForSnapshot(PlayerKey key, Player current) {
+        if (snapshot != null) {
+            snapshot.kept.putIfAbsent(key, current == null ? ABSENT : current);
+        }
+    }
+
+    // Markers in a snapshot's kept map, for players that did not exist when
+    // it was taken and for players it has already read.
+    private static final Object ABSENT = new Object();
+    private static final Object READ = new Object();
+
+    private final class Snapshot implements PlayerSnapshot {
+
+        // The versions the snapshot is to see, of the players saved since
+        // it was taken, and markers.  A player has at most one entry: the
+        // first of the snapshot reading it and a save replacing it wins.
+        // Sized for every player up front rather than grown while saves
+        // wait on it.
+        final ConcurrentMap<PlayerKey, Object> kept =
+                new ConcurrentHashMap<>(Math.max(16, playerMap.size()));
+
+        // Taken while holding writeLock, like the snapshot.
+        private final int size = playerMap.size();
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void forEachPlayer(Consumer<Player> action) {
+            for (PlayerKey key : playerMap.keySet()) {
+                // Read the record before marking it.  A save stores the
+                // new version after keeping the old one, so if this read
+                // got the new version, the mark fails and the old one is
+                // used below.
+                Player current = playerMap.get(key);
+                if (kept.putIfAbsent(key, READ) == null && current != null) {
+                    action.accept(current);
+                }
+            }
+            for (Object version : kept.values()) {
+                if (version instanceof Player) {
+                    action.accept((Player) version);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (writeLock) {
+                if (snapshot == this) {
+                    snapshot = null;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void forEachPlayerId(Consumer<String> action) {
+        for (PlayerKey key : playerMap.keySet()) {
+            action.accept(key.toString());
+        }
+        for (String altId : altIndex.keySet()) {
+            action.accept(altId);
+        }
+    }
+
+    /**
+     * @return the number of players stored.
+     */
+    public int size() {
+        return playerMap.size();
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.store;
+
+import com.google.sample.games.Metrics;
+import com.google.sample.games.cache.TinyLfuCache;
+import com.google.sample.games.model.Player;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Player storage in an embedded SQL database, such as an H2 file database
+ * (<code>jdbc:h2:./players</code>), so the records survive restarts and can
+ * be queried with SQL without running a database server.
+ * <p>
+ * Connections are pooled, and each pooled connection keeps its prepared
+ * statements, so a lookup or save only binds parameters.  {@link #saveAll}
+ * writes a whole batch of upserts in one transaction, which makes this a
+ * good fit behind a {@link WriteBehindPlayerStore}.  A bounded read-through
+ * cache in front of the database serves the active players from memory.
+ * </p>
+ * <p>
+ * Only the profile fields and the version are stored; the version lets a
+ * save built from an out of date copy be dropped, as the other stores do.
+ * Credentials hold OAuth tokens and are never written to the database in
+ * the clear; they live in the cached player, so a player loaded back from
+ * the database has to sign in again to get a refresh token.
+ * </p>
+ */
+public class JdbcPlayerStore implements PlayerStore {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 8;
+    public static final int DEFAULT_CACHE_SIZE = 100000;
+
+    // How long to wait for a pooled connection before giving up.
+    private static final long CONNECTION_TIMEOUT_SECONDS = 10;
+
+    public static final String DEFAULT_TABLE = "players";
+
+    private static final Pattern TABLE_NAME =
+            Pattern.compile("[A-Za-z][A-Za-z0-9_]*");
+
+    private static final String CREATE_TABLE =
+            "CREATE TABLE IF NOT EXISTS %1$s (" +
+                    "player_id VARCHAR(64) PRIMARY KEY, " +
+                    "alt_player_id VARCHAR(64), " +
+                    "display_name VARCHAR(256), " +
+                    "title VARCHAR(256), " +
+                    "visible_profile BOOLEAN, " +
+                    "version BIGINT DEFAULT 1 NOT NULL)";
+    // Tables created before players were versioned.
+    private static final String ADD_VERSION =
+            "ALTER TABLE %1$s ADD COLUMN IF NOT EXISTS " +
+                    "version BIGINT DEFAULT 1 NOT NULL";
+    private static final String CREATE_ALT_INDEX =
+            "CREATE INDEX IF NOT EXISTS %1$s_alt " +
+                    "ON %1$s (alt_player_id)";
+    // Two statements rather than one with OR, so each lookup is a single
+    // index probe.
+    private static final String SELECT =
+            "SELECT player_id, alt_player_id, display_name, title, " +
+                    "visible_profile, version FROM %1$s " +
+                    "WHERE player_id = ?";
+    private static final String SELECT_BY_ALT =
+            "SELECT player_id, alt_player_id, display_name, title, " +
+                    "visible_profile, version FROM %1$s " +
+                    "WHERE alt_player_id = ? LIMIT 1";
+    // Keeps a stored row that is a later version than the one saved, which
+    // was then built from an out of date copy; the update count is 0.
+    private static final String UPSERT =
+            "MERGE INTO %1$s t USING (VALUES (CAST(? AS VARCHAR(64)), " +
+                    "CAST(? AS VARCHAR(64)), CAST(? AS VARCHAR(256)), " +
+                    "CAST(? AS VARCHAR(256)), CAST(? AS BOOLEAN), " +
+                    "CAST(? AS BIGINT))) " +
+                    "s (player_id, alt_player_id, display_name, title, " +
+                    "visible_profile, version) " +
+                    "ON t.player_id = s.player_id " +
+                    "WHEN MATCHED AND t.version <= s.version THEN UPDATE " +
+                    "SET alt_player_id = s.alt_player_id, " +
+                    "display_name = s.display_name, title = s.title, " +
+                    "visible_profile = s.visible_profile, " +
+                    "version = s.version " +
+                    "WHEN NOT MATCHED THEN INSERT VALUES (s.player_id, " +
+                    "s.alt_player_id, s.display_name, s.title, " +
+                    "s.visible_profile, s.version)";
+    private static final String SELECT_IDS =
+            "SELECT player_id, alt_player_id FROM %1$s";
+    // A record stored under what turned out to be another player's
+    // alternate id is a duplicate of that player.
+    private static final String DELETE_DUPLICATE =
+            "DELETE FROM %1$s WHERE player_id = ?";
+
+    private final String url;
+    private final String table;
+    private final int maxConnections;
+    private final BlockingQueue<PooledConnection> idle;
+    private final List<PooledConnection> all =
+            Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger opened = new AtomicInteger();
+    private volatile boolean closed;
+
+    private final TinyLfuCache<String, Player> cache;
+    private final Object createLock = new Object();
+
+    // Counts the saves started.  A load that overlapped a save may have
+    // read the row from before it, so it is not cached.
+    private final AtomicLong saveGeneration = new AtomicLong();
+
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong rowsWritten = new AtomicLong();
+    private final AtomicLong writeMicros = new AtomicLong();
+
+    public JdbcPlayerStore(String url) throws SQLException {
+        this(url, DEFAULT_TABLE, DEFAULT_MAX_CONNECTIONS, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Opens the store, creating the table if needed.
+     *
+     * @param url            - the JDBC url of the database.
+     * @param table          - the table holding the players, so several
+     *                       stores can share one database.
+     * @param maxConnections - the most connections opened to the database.
+     * @param cacheSize      - the most players kept in the read-through
+     *                       cache.
+     * @throws SQLException if the database could not be opened.
+     */
+    public JdbcPlayerStore(String url, String table, int maxConnections,
+                           int cacheSize) throws SQLException {
+        if (!TABLE_NAME.matcher(table).matches()) {
+            throw new IllegalArgumentException("Invalid table name: " + table);
+        }
+        this.url = url;
+        this.table = table;
+        this.maxConnections = maxConnections;
+        this.idle = new ArrayBlockingQueue<>(maxConnections);
+        // Entries are replaced on every save, so they never need to expire.
+        this.cache = new TinyLfuCache<>(cacheSize, Long.MAX_VALUE,
+                Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+        try (Connection connection = DriverManager.getConnection(url);
+             Statement statement = connection.createStatement()) {
+            statement.execute(sql(CREATE_TABLE));
+            statement.execute(sql(ADD_VERSION));
+            statement.execute(sql(CREATE_ALT_INDEX));
+        }
+    }
+
+    @Override
+    public void registerMetrics(String prefix) {
+        Metrics.register(prefix + "jdbcStore.connections", opened::get);
+        Metrics.register(prefix + "jdbcStore.queries", queries::get);
+        Metrics.register(prefix + "jdbcStore.batches", batches::get);
+        Metrics.register(prefix + "jdbcStore.rowsWritten", rowsWritten::get);
+        Metrics.register(prefix + "jdbcStore.avgBatchMicros", () -> {
+            long n = batches.get();
+            return n == 0 ? 0 : writeMicros.get() / n;
+        });
+        Metrics.register(prefix + "jdbcStore.cache.size", cache::size);
+        Metrics.register(prefix + "jdbcStore.cache.hitRatio",
+                cache::hitRatio);
+        Metrics.register(prefix + "jdbcStore.cache.evictions",
+                cache::evictionCount);
+    }
+
+    @Override
+    public Player get(String playerId) {
+        Player player = cache.getIfPresent(playerId);
+        if (player != null) {
+            return player;
+        }
+        long generation = saveGeneration.get();
+        player = load(playerId);
+        if (player == null) {
+            return null;
+        }
+        // The cache locks itself, so no save can put a player between the
+        // check and the put.  A save that started since the load puts its
+        // own players once committed.
+        String id = player.getPlayerId();
+        synchronized (cache) {
+            // Keep the cached object if another request loaded it meanwhile,
+            // so every request sees the same player.
+            Player cached = cache.getIfPresent(id);
+            if (cached != null) {
+                return cached;
+            }
+            if (saveGeneration.get() == generation) {
+                cache.put(id, player);
+            }
+        }
+        return player;
+    }
+
+    @Override
+    public Player getOrCreate(String playerId) {
+        Player player = get(playerId);
+        if (player != null) {
+            return player;
+        }
+        synchronized (createLock) {
+            player = get(playerId);
+            if (player == null) {
+                player = Player.newBuilder(playerId).build();
+                save(player);
+            }
+            return player;
+        }
+    }
+
+    @Override
+    public void save(Player player) {
+        saveAll(Collections.singletonList(player));
+    }
+
+    /**
+     * Upserts the players in one batched transaction.  A player whose row
+     * holds a later version is not written.
+     */
+    @Override
+    public void saveAll(Collection<Player> players) {
+        if (players.isEmpty()) {
+            return;
+        }
+        saveGeneration.incrementAndGet();
+        long start = System.nanoTime();
+        // Each id is decoded from the player's bytes once, for the bind and
+        // then the cache.
+        String[] ids = new String[players.size()];
+        int[] counts;
+        PooledConnection pooled = acquire();
+        try {
+            Connection connection = pooled.connection;
+            connection.setAutoCommit(false);
+            try {
+                PreparedStatement upsert = pooled.upsert;
+                PreparedStatement delete = pooled.deleteDuplicate;
+                boolean deletes = false;
+                int i = 0;
+                for (Player player : players) {
+                    String id = player.getPlayerId();
+                    ids[i++] = id;
+                    upsert.setString(1, id);
+                    upsert.setString(2, player.getAltPlayerId());
+                    upsert.setString(3, player.getDisplayName());
+                    upsert.setString(4, player.getTitle());
+                    upsert.setBoolean(5, player.isVisibleProfile());
+                    upsert.setLong(6, player.getVersion());
+                    upsert.addBatch();
+                    String altId = player.getAltPlayerId();
+                    if (!altId.isEmpty() && !altId.equals(id)) {
+                        delete.setString(1, altId);
+                        delete.addBatch();
+                        deletes = true;
+                    }
+                }
+                if (deletes) {
+                    delete.executeBatch();
+                }
+                counts = upsert.executeBatch();
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not save players", e);
+        } finally {
+            release(pooled);
+        }
+
+        int i = 0;
+        int written = 0;
+        for (Player player : players) {
+            // A player that was not written is older than the row, so it
+            // must not replace what a later load would read.
+            if (counts[i] != 0) {
+                cache.put(ids[i], player);
+                written++;
+            }
+            i++;
+            String altId = player.getAltPlayerId();
+            if (!altId.isEmpty()) {
+                cache.invalidate(altId);
+            }
+        }
+        batches.incrementAndGet();
+        rowsWritten.addAndGet(written);
+        writeMicros.addAndGet(TimeUnit.NANOSECONDS.toMicros(
+                System.nanoTime() - start));
+    }
+
+    @Override
+    public void forEachPlayerId(Consumer<String> action) throws IOException {
+        PooledConnection pooled = acquire();
+        try (Statement statement = pooled.connection.createStatement();
+             ResultSet rs = statement.executeQuery(sql(SELECT_IDS))) {
+            while (rs.next()) {
+                action.accept(rs.getString(1));
+                String altId = rs.getString(2);
+                if (altId != null && !altId.isEmpty()) {
+                    action.accept(altId);
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not list the players", e);
+        } finally {
+            release(pooled);
+        }
+    }
+
+    /**
+     * Forces a checkpoint so everything committed so far is on disk.
+     */
+    @Override
+    public void flush() throws IOException {
+        PooledConnection pooled = acquire();
+        try (Statement statement = pooled.connection.createStatement()) {
+            statement.execute("CHECKPOINT SYNC");
+        } catch (SQLException e) {
+            throw new IOException("Could not flush the player database", e);
+        } finally {
+            release(pooled);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        SQLException failure = null;
+        synchronized (all) {
+            for (PooledConnection pooled : all) {
+                try {
+                    pooled.connection.close();
+                } catch (SQLException e) {
+                    failure = e;
+                }
+            }
+            all.clear();
+        }
+        idle.clear();
+        if (failure != null) {
+            throw new IOException("Could not close the player database",
+                    failure);
+        }
+    }
+
+    private Player load(String playerId) {
+        queries.incrementAndGet();
+        PooledConnection pooled = acquire();
+        try {
+            Player player = query(pooled.select, playerId);
+            if (player == null) {
+                player = query(pooled.selectByAlt, playerId);
+            }
+            return player;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not load player", e);
+        } finally {
+            release(pooled);
+        }
+    }
+
+    private static Player query(PreparedStatement select, String id)
+            throws SQLException {
+        select.setString(1, id);
+        try (ResultSet rs = select.executeQuery()) {
+            if (!rs.next()) {
+                return null;
+            }
+            return Player.newBuilder(rs.getString(1))
+                    .setAltPlayerId(rs.getString(2))
+                    .setDisplayName(rs.getString(3))
+                    .setTitle(rs.getString(4))
+                    .setVisibleProfile(rs.getBoolean(5))
+                    .setVersion(rs.getLong(6))
+                    .build();
+        }
+    }
+
+    private String sql(String template) {
+        return String.format(template, table);
+    }
+
+    // Takes an idle connection, opening a new one while under the limit.
+    private PooledConnection acquire() {
+        if (closed) {
+            throw new IllegalStateException("Store is closed");
+        }
+        PooledConnection pooled = idle.poll();
+        if (pooled != null) {
+            return pooled;
+        }
+        if (opened.incrementAndGet() <= maxConnections) {
+            try {
+                pooled = new PooledConnection(this,
+                        DriverManager.getConnection(url));
+                all.add(pooled);
+                return pooled;
+            } catch (SQLException e) {
+                opened.decrementAndGet();
+                throw new IllegalStateException("Could not connect to " +
+                        "the player database", e);
+            }
+        }
+        opened.decrementAndGet();
+        try {
+            pooled = idle.poll(CONNECTION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (pooled == null) {
+            throw new IllegalStateException("Timed out waiting for a " +
+                    "database connection");
+        }
+        return pooled;
+    }
+
+    private void release(PooledConnection pooled) {
+        if (!closed) {
+            idle.offer(pooled);
+        }
+    }
+
+    // A connection and the statements prepared on it, reused for as long as
+    // the connection is open.
+    private static class PooledConnection {
+        final Connection connection;
+        final PreparedStatement select;
+        final PreparedStatement selectByAlt;
+        final PreparedStatement upsert;
+        final PreparedStatement deleteDuplicate;
+
+        PooledConnection(JdbcPlayerStore store, Connection connection)
+                throws SQLException {
+            this.connection = connection;
+            this.select = connection.prepareStatement(store.sql(SELECT));
+            this.selectByAlt = connection.prepareStatement(
+                    store.sql(SELECT_BY_ALT));
+            this.upsert = connection.prepareStatement(store.sql(UPSERT));
+            this.deleteDuplicate = connection.prepareStatement(
+                    store.sql(DELETE_DUPLICATE));
+        }
+    }
+}
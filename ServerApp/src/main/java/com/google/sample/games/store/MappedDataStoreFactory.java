@@ -0,0 +1,550 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.store;
+
+import com.google.api.client.util.IOUtils;
+import com.google.api.client.util.store.AbstractDataStore;
+import com.google.api.client.util.store.AbstractDataStoreFactory;
+import com.google.api.client.util.store.DataStore;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A {@link com.google.api.client.util.store.DataStoreFactory} that keeps
+ * each data store in a memory-mapped, append-only file of encrypted
+ * records.  It is meant for the {@code StoredCredential}s of the players, so
+ * refresh tokens survive a restart.
+ * <p>
+ * Unlike {@link com.google.api.client.util.store.FileDataStoreFactory},
+ * which rewrites the whole file on every change, a change appends a single
+ * record.  Each value is serialized and encrypted with AES-GCM under its own
+ * random IV, with the store id and key as associated data, so records can't
+ * be read or moved between keys without the secret key.  An in-memory index
+ * maps each key to its latest record, and the file is compacted when more
+ * than half of it is replaced records.
+ * </p>
+ * <p>
+ * Writes reach the operating system as soon as they are made;
+ * {@link #flush()} forces them to disk.  If the process crashes, every
+ * write made survives, as the operating system still has it.  If the
+ * operating system crashes or the power fails, the writes made since the
+ * last flush may be lost: dirty pages of a mapped file reach the disk in
+ * any order, so a record's length may be there without its body.  Each
+ * record carries a CRC32, and on open the first record that fails it ends
+ * the file.  The rest is cleared, so a record after it is never applied
+ * out of order later.
+ * </p>
+ */
+public class MappedDataStoreFactory extends AbstractDataStoreFactory
+        implements Closeable {
+
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final int KEY_BYTES = 32;
+    private static final int IV_BYTES = 12;
+    private static final int TAG_BITS = 128;
+
+    private static final int MAGIC = 0x47435344;
+    // Version 1 records had no CRC32; such files are upgraded on open.
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 8;
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    private static final long COMPACT_MIN_DEAD_BYTES = 1024 * 1024;
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    private final File directory;
+    private final SecretKey key;
+    private final SecureRandom random = new SecureRandom();
+    private final List<MappedDataStore<?>> stores =
+            Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * @param directory - where the data store files are kept.
+     * @param key       - the AES key the records are encrypted with.
+     * @throws IOException if the directory could not be created.
+     */
+    public MappedDataStoreFactory(File directory, SecretKey key)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        this.directory = directory;
+        this.key = key;
+    }
+
+    /**
+     * Reads the AES key from the file, creating the file with a new random
+     * key, readable only by the owner, if it does not exist.  Keep the key
+     * apart from the data, like client_secret.json.
+     *
+     * @param keyFile - the key file.
+     * @return the key.
+     * @throws IOException if the key could not be read or created.
+     */
+    public static SecretKey loadOrCreateKey(File keyFile) throws IOException {
+        Path path = keyFile.toPath();
+        if (!Files.exists(path)) {
+            byte[] bytes = new byte[KEY_BYTES];
+            new SecureRandom().nextBytes(bytes);
+            try {
+                try {
+                    Files.createFile(path, PosixFilePermissions.asFileAttribute(
+                            PosixFilePermissions.fromString("rw-------")));
+                } catch (UnsupportedOperationException e) {
+                    Files.createFile(path);
+                }
+                Files.write(path, bytes);
+            } catch (FileAlreadyExistsException e) {
+                // Created by another process meanwhile; use that one.
+            }
+        }
+        byte[] bytes = Files.readAllBytes(path);
+        if (bytes.length != KEY_BYTES) {
+            throw new IOException("Key file " + keyFile + " must hold " +
+                    KEY_BYTES + " bytes");
+        }
+        return new SecretKeySpec(bytes, "AES");
+    }
+
+    @Override
+    protected <V extends Serializable> DataStore<V> createDataStore(String id)
+            throws IOException {
+        MappedDataStore<V> store = new MappedDataStore<>(this, id);
+        stores.add(store);
+        return store;
+    }
+
+    /**
+     * Forces all writes so far to disk.
+     */
+    public void flush() throws IOException {
+        synchronized (stores) {
+            for (MappedDataStore<?> store : stores) {
+                store.force();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (stores) {
+            for (MappedDataStore<?> store : stores) {
+                store.close();
+            }
+        }
+    }
+
+    private byte[] encrypt(byte[] plain, byte[] aad) throws IOException {
+        byte[] iv = new byte[IV_BYTES];
+        random.nextBytes(iv);
+        try {
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, key,
+                    new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(aad);
+            byte[] sealed = new byte[IV_BYTES +
+                    cipher.getOutputSize(plain.length)];
+            System.arraycopy(iv, 0, sealed, 0, IV_BYTES);
+            cipher.doFinal(plain, 0, plain.length, sealed, IV_BYTES);
+            return sealed;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not encrypt record", e);
+        }
+    }
+
+    private byte[] decrypt(byte[] sealed, byte[] aad) throws IOException {
+        try {
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, key,
+                    new GCMParameterSpec(TAG_BITS, sealed, 0, IV_BYTES));
+            cipher.updateAAD(aad);
+            return cipher.doFinal(sealed, IV_BYTES, sealed.length - IV_BYTES);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not decrypt record; wrong key or " +
+                    "corrupt file", e);
+        }
+    }
+
+    /**
+     * One data store file.  Each record is
+     * <code>[int length][int crc32][byte type][short keyLength][key]
+     * [iv + ciphertext]</code>, where the length counts the bytes after it,
+     * the CRC32 covers the bytes after it, and delete records have no iv or
+     * ciphertext.
+     */
+    private static class MappedDataStore<V extends Serializable>
+            extends AbstractDataStore<V> {
+
+        private final MappedDataStoreFactory factory;
+        private final File file;
+        private FileChannel channel;
+        private MappedByteBuffer buffer;
+        private int end;
+        private long deadBytes;
+
+        // Key to the offset of its latest put record.
+        private final Map<String, Integer> index = new HashMap<>();
+
+        MappedDataStore(MappedDataStoreFactory factory, String id)
+                throws IOException {
+            super(factory, id);
+            this.factory = factory;
+            this.file = new File(factory.directory, id + ".db");
+            open();
+        }
+
+        @Override
+        public synchronized Set<String> keySet() {
+            return Collections.unmodifiableSet(new HashSet<>(index.keySet()));
+        }
+
+        @Override
+        public synchronized Collection<V> values() throws IOException {
+            List<V> values = new ArrayList<>(index.size());
+            for (Map.Entry<String, Integer> e : index.entrySet()) {
+                values.add(read(e.getKey(), e.getValue()));
+            }
+            return Collections.unmodifiableList(values);
+        }
+
+        @Override
+        public synchronized boolean containsKey(String key) {
+            return index.containsKey(key);
+        }
+
+        @Override
+        public synchronized int size() {
+            return index.size();
+        }
+
+        @Override
+        public synchronized V get(String key) throws IOException {
+            if (key == null) {
+                return null;
+            }
+            Integer offset = index.get(key);
+            return offset == null ? null : read(key, offset);
+        }
+
+        @Override
+        public synchronized DataStore<V> set(String key, V value)
+                throws IOException {
+            if (key == null || value == null) {
+                throw new NullPointerException();
+            }
+            byte[] sealed = factory.encrypt(IOUtils.serialize(value),
+                    aad(key));
+            int offset = append(PUT, key, sealed);
+            Integer old = index.put(key, offset);
+            if (old != null) {
+                deadBytes += recordSize(old);
+            }
+            maybeCompact();
+            return this;
+        }
+
+        @Override
+        public synchronized DataStore<V> delete(String key)
+                throws IOException {
+            Integer old = index.remove(key);
+            if (old != null) {
+                int offset = append(DELETE, key, null);
+                deadBytes += recordSize(old) + recordSize(offset);
+                maybeCompact();
+            }
+            return this;
+        }
+
+        @Override
+        public synchronized DataStore<V> clear() throws IOException {
+            index.clear();
+            compact();
+            return this;
+        }
+
+        synchronized void force() {
+            buffer.force();
+        }
+
+        synchronized void close() throws IOException {
+            buffer.force();
+            channel.close();
+        }
+
+        private byte[] aad(String key) {
+            return (getId() + '\n' + key).getBytes(StandardCharsets.UTF_8);
+        }
+
+        private V read(String key, int offset) throws IOException {
+            ByteBuffer view = buffer.duplicate();
+            int length = view.getInt(offset);
+            int keyLength = view.getShort(offset + 9);
+            int sealedOffset = offset + 11 + keyLength;
+            byte[] sealed = new byte[offset + 4 + length - sealedOffset];
+            view.position(sealedOffset);
+            view.get(sealed);
+            return IOUtils.deserialize(factory.decrypt(sealed, aad(key)));
+        }
+
+        private int recordSize(int offset) {
+            return 4 + buffer.getInt(offset);
+        }
+
+        // Writes the record body first and its length last, so if the
+        // process crashes part way the record is never seen as complete.
+        // The CRC32 catches the same after an operating system crash.
+        private int append(byte type, String key, byte[] sealed)
+                throws IOException {
+            ByteBuffer record = record(type, key, sealed);
+            int length = record.remaining() - 4;
+            ensureCapacity((long) end + 4 + length + 4);
+            int offset = end;
+            buffer.position(offset + 4);
+            record.position(4);
+            buffer.put(record);
+            buffer.putInt(offset, length);
+            end = offset + 4 + length;
+            return offset;
+        }
+
+        private static ByteBuffer record(byte type, String key,
+                                         byte[] sealed) throws IOException {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            if (keyBytes.length > Short.MAX_VALUE) {
+                throw new IOException("Key too long");
+            }
+            int length = 7 + keyBytes.length +
+                    (sealed == null ? 0 : sealed.length);
+            ByteBuffer record = ByteBuffer.allocate(4 + length);
+            record.putInt(length).putInt(0).put(type)
+                    .putShort((short) keyBytes.length).put(keyBytes);
+            if (sealed != null) {
+                record.put(sealed);
+            }
+            record.putInt(4, crc(record, 0, length));
+            record.flip();
+            return record;
+        }
+
+        // The CRC32 of the record at offset, of the given length, past its
+        // CRC32 field.
+        private static int crc(ByteBuffer buffer, int offset, int length) {
+            ByteBuffer body = buffer.duplicate();
+            body.limit(offset + 4 + length);
+            body.position(offset + 8);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            return (int) crc.getValue();
+        }
+
+        private void ensureCapacity(long needed) throws IOException {
+            if (needed <= buffer.capacity()) {
+                return;
+            }
+            long capacity = Math.max(needed, 2L * buffer.capacity());
+            if (capacity > Integer.MAX_VALUE) {
+                throw new IOException(file + " is full");
+            }
+            buffer.force();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        private void maybeCompact() throws IOException {
+            if (deadBytes > COMPACT_MIN_DEAD_BYTES &&
+                    deadBytes > end - HEADER_BYTES - deadBytes) {
+                compact();
+            }
+        }
+
+        // Copies the live records, still encrypted, into a new file written
+        // sequentially, then swaps it in.
+        private void compact() throws IOException {
+            File tmp = new File(file.getPath() + ".tmp");
+            try (FileChannel out = FileChannel.open(tmp.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                out.write(header);
+                for (int offset : index.values()) {
+                    ByteBuffer record = buffer.duplicate();
+                    record.position(offset);
+                    record.limit(offset + recordSize(offset));
+                    while (record.hasRemaining()) {
+                        out.write(record);
+                    }
+                }
+                out.force(true);
+            }
+            channel.close();
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            index.clear();
+            open();
+        }
+
+        private void open() throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    Math.max(size, INITIAL_CAPACITY));
+            deadBytes = 0;
+            if (size < HEADER_BYTES) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                end = HEADER_BYTES;
+                return;
+            }
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a data store file");
+            }
+            if (buffer.getInt(4) == 1) {
+                upgrade();
+                return;
+            }
+            if (buffer.getInt(4) != VERSION) {
+                throw new IOException(file + " is not a data store file");
+            }
+
+            // Rebuild the index.  The file is zero filled past the last
+            // complete record, unless the operating system crashed while
+            // records were written.
+            int offset = HEADER_BYTES;
+            while (offset + 4 <= buffer.capacity()) {
+                int length = buffer.getInt(offset);
+                if (length < 7 || (long) offset + 4 + length >
+                        buffer.capacity() ||
+                        buffer.getInt(offset + 4) !=
+                                crc(buffer, offset, length)) {
+                    break;
+                }
+                byte type = buffer.get(offset + 8);
+                byte[] keyBytes = new byte[buffer.getShort(offset + 9)];
+                ByteBuffer view = buffer.duplicate();
+                view.position(offset + 11);
+                view.get(keyBytes);
+                String key = new String(keyBytes, StandardCharsets.UTF_8);
+                Integer old = type == PUT ? index.put(key, offset)
+                        : index.remove(key);
+                if (old != null) {
+                    deadBytes += recordSize(old);
+                }
+                if (type == DELETE) {
+                    deadBytes += 4 + length;
+                }
+                offset += 4 + length;
+            }
+            end = offset;
+            if (end + 4 <= buffer.capacity() && buffer.getInt(end) != 0) {
+                // A torn record; drop it and whatever follows.
+                ByteBuffer tail = buffer.duplicate();
+                tail.position(end);
+                byte[] zeros = new byte[4096];
+                while (tail.hasRemaining()) {
+                    tail.put(zeros, 0, Math.min(zeros.length,
+                            tail.remaining()));
+                }
+                buffer.force();
+            }
+        }
+
+        // Rewrites a version 1 file, whose records have no CRC32, in the
+        // current format.  Its records were trusted up to the first zero
+        // length, as they always were.
+        private void upgrade() throws IOException {
+            Map<String, byte[]> live = new HashMap<>();
+            int offset = HEADER_BYTES;
+            while (offset + 4 <= buffer.capacity()) {
+                int length = buffer.getInt(offset);
+                if (length < 3 || (long) offset + 4 + length >
+                        buffer.capacity()) {
+                    break;
+                }
+                byte type = buffer.get(offset + 4);
+                int keyLength = buffer.getShort(offset + 5);
+                byte[] keyBytes = new byte[keyLength];
+                ByteBuffer view = buffer.duplicate();
+                view.position(offset + 7);
+                view.get(keyBytes);
+                String key = new String(keyBytes, StandardCharsets.UTF_8);
+                if (type == PUT) {
+                    byte[] sealed = new byte[length - 3 - keyLength];
+                    view.get(sealed);
+                    live.put(key, sealed);
+                } else {
+                    live.remove(key);
+                }
+                offset += 4 + length;
+            }
+            File tmp = new File(file.getPath() + ".tmp");
+            try (FileChannel out = FileChannel.open(tmp.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                out.write(header);
+                for (Map.Entry<String, byte[]> entry : live.entrySet()) {
+                    ByteBuffer record = record(PUT, entry.getKey(),
+                            entry.getValue());
+                    while (record.hasRemaining()) {
+                        out.write(record);
+                    }
+                }
+                out.force(true);
+            }
+            channel.close();
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            open();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.store;
+
+import com.google.sample.games.model.Player;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary form of a player used by the files the stores write: the
+ * player's version, ids, name, title and profile visibility.  Tokens are
+ * left out; they are kept in the credential store.
+ * <p>
+ * The version comes first, so it can be read without the rest.  Keeping it
+ * lets a store reading a player back still drop saves built from an older
+ * copy.
+ * </p>
+ */
+final class PlayerCodec {
+
+    private PlayerCodec() {
+    }
+
+    static void write(DataOutput out, Player player) throws IOException {
+        out.writeLong(player.getVersion());
+        // Written from the player's own UTF-8 bytes, rather than decoding
+        // them to write with writeUTF.  For ASCII ids this is the same.
+        byte[] id = player.getPlayerIdBytes();
+        if (id.length > 0xffff) {
+            throw new UTFDataFormatException("Player id too long");
+        }
+        out.writeShort(id.length);
+        out.write(id);
+        out.writeUTF(player.getAltPlayerId());
+        writeNullable(out, player.getDisplayName());
+        writeNullable(out, player.getTitle());
+        out.writeBoolean(player.isVisibleProfile());
+    }
+
+    /**
+     * @return the player, at the version written, without tokens.
+     */
+    static Player read(DataInput in) throws IOException {
+        long version = in.readLong();
+        byte[] id = new byte[in.readUnsignedShort()];
+        in.readFully(id);
+        return Player.newBuilder(new String(id, StandardCharsets.UTF_8))
+                .setVersion(version)
+                .setAltPlayerId(in.readUTF())
+                .setDisplayName(readNullable(in))
+                .setTitle(readNullable(in))
+                .setVisibleProfile(in.readBoolean())
+                .build();
+    }
+
+    private static void writeNullable(DataOutput out, String s)
+            throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readNullable(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.store;
+
+import com.google.sample.games.model.Player;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A map key for a player id held as UTF-8 bytes.  Keys made from a player
+ * share the player's own bytes, so the id is stored only once.
+ */
+final class PlayerKey {
+
+    private final byte[] id;
+    private final int hash;
+
+    private PlayerKey(byte[] id) {
+        this.id = id;
+        this.hash = Arrays.hashCode(id);
+    }
+
+    static PlayerKey of(String playerId) {
+        return new PlayerKey(playerId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static PlayerKey of(Player player) {
+        return new PlayerKey(player.getPlayerIdBytes());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof PlayerKey && Arrays.equals(id, ((PlayerKey) o).id);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return new String(id, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.store;
+
+import com.google.sample.games.model.Player;
+
+import java.io.Closeable;
+import java.util.function.Consumer;
+
+/**
+ * The players of a store as they were at one point in time, read while
+ * saves to the store continue.
+ */
+public interface PlayerSnapshot extends Closeable {
+
+    /**
+     * @return the number of players in the snapshot.
+     */
+    int size();
+
+    /**
+     * Calls the action with each player as it was when the snapshot was
+     * taken.  Call it at most once.
+     *
+     * @param action - called with each player.
+     */
+    void forEachPlayer(Consumer<Player> action);
+
+    /**
+     * Releases what the store keeps for the snapshot.
+     */
+    @Override
+    void close();
+}
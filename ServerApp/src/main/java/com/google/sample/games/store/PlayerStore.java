@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.store;
+
+import com.google.sample.games.model.Player;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.function.Consumer;
+
+/**
+ * Storage for the server's player records, keyed by player id.
+ * <p>
+ * Implementations must be safe to use from concurrent requests.
+ * Players are immutable, so a store hands out the version it holds and
+ * replaces it with the one saved, without copying.
+ * </p>
+ */
+public interface PlayerStore extends Closeable {
+
+    /**
+     * Looks up a player by player id or by alternate player id, both of
+     * which resolve to the same record.
+     *
+     * @param playerId - the player id or alternate player id.
+     * @return the player, or null if there is no record for the id.
+     */
+    Player get(String playerId);
+
+    /**
+     * Returns the player, creating an empty record for the id if there is
+     * no record for it as either a player id or an alternate player id.
+     *
+     * @param playerId - the player id.
+     * @return the existing or new player.
+     */
+    Player getOrCreate(String playerId);
+
+    /**
+     * Stores the player, replacing any existing record with the same id.
+     * A store may keep its current record instead if it is a later version
+     * than the one saved, which was then built from an out of date copy.
+     *
+     * @param player - the player to store.
+     */
+    void save(Player player);
+
+    /**
+     * Stores several players at once.  Stores that can write a batch more
+     * cheaply than one player at a time should override this.
+     *
+     * @param players - the players to store.
+     */
+    default void saveAll(Collection<Player> players) {
+        for (Player player : players) {
+            save(player);
+        }
+    }
+
+    /**
+     * Calls the action with the player id, and the alternate player id if it
+     * has one, of every stored player.  This is used to build indexes over
+     * the store, such as a Bloom filter.
+     *
+     * @param action - called with each id.
+     * @throws IOException if the ids could not be read.
+     * @throws UnsupportedOperationException if the store can't list its
+     *                                       players.
+     */
+    default void forEachPlayerId(Consumer<String> action) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Takes a snapshot of the players without stopping saves.  Read it, then
+     * close it.
+     *
+     * @return the snapshot.
+     * @throws UnsupportedOperationException if the store can't take one.
+     */
+    default PlayerSnapshot snapshot() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Registers the store's metrics, if it has any.
+     *
+     * @param prefix - prepended to each metric name, such as "" or
+     *               "mygame.".
+     */
+    default void registerMetrics(String prefix) {
+    }
+
+    /**
+     * Makes all writes accepted so far durable.  Stores that write
+     * synchronously have nothing to do.
+     *
+     * @throws IOException if the writes could not be made durable.
+     */
+    void flush() throws IOException;
+}
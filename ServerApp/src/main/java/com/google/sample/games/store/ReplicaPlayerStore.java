@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.store;
+
+import com.google.sample.games.Metrics;
+import com.google.sample.games.model.Player;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A read-only copy of a primary server's players, kept up to date by
+ * applying pieces of the primary's {@link WalPlayerStore} log.
+ * <p>
+ * The store remembers which log it follows and how far it has applied it,
+ * so a replica that reconnects picks up where it left off.  When the
+ * primary has reopened its log since, the whole log is applied again over
+ * the players already held.  Players are never deleted, and the log holds
+ * every player's latest version, so this still ends with the primary's
+ * players.  Records carry the players' versions, and applying one older
+ * than the copy held is dropped, as on the primary.
+ * </p>
+ * <p>
+ * Changes are only made on the primary; saving to a replica fails.
+ * </p>
+ */
+public class ReplicaPlayerStore implements PlayerStore {
+
+    private final String table;
+    private final PlayerStore delegate;
+
+    // Guarded by this.
+    private long logId;
+    private long position;
+
+    private final AtomicLong appliedRecords = new AtomicLong();
+
+    /**
+     * @param table    - the name of the primary's store this copies.
+     * @param delegate - the in-memory store holding the copy.
+     */
+    public ReplicaPlayerStore(String table, PlayerStore delegate) {
+        this.table = table;
+        this.delegate = delegate;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public synchronized long getLogId() {
+        return logId;
+    }
+
+    /**
+     * @return the position in the primary's log up to which it has been
+     * applied.
+     */
+    public synchronized long getPosition() {
+        return position;
+    }
+
+    /**
+     * Sets where the records applied next start in the primary's log.
+     *
+     * @param logId    - the id of the primary's log.
+     * @param position - the position of the next record.
+     */
+    public synchronized void resume(long logId, long position) {
+        this.logId = logId;
+        this.position = position;
+    }
+
+    /**
+     * Applies the whole records in a piece copied from the primary's log.
+     * A record cut off at the end is left in the buffer, to be applied once
+     * the rest of it has been added.
+     *
+     * @param records - the records, in a heap buffer.
+     * @throws IOException if a record is corrupted.
+     */
+    public synchronized void apply(ByteBuffer records) throws IOException {
+        int start = records.position();
+        List<Player> players = new ArrayList<>();
+        try {
+            WriteAheadLog.forEachRecord(records,
+                    record -> players.add(WalPlayerStore.decode(record)));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        delegate.saveAll(players);
+        position += records.position() - start;
+        appliedRecords.addAndGet(players.size());
+    }
+
+    @Override
+    public void registerMetrics(String prefix) {
+        Metrics.register(prefix + "replica.appliedRecords",
+                appliedRecords::get);
+        Metrics.register(prefix + "replica.position", this::getPosition);
+        delegate.registerMetrics(prefix);
+    }
+
+    @Override
+    public Player get(String playerId) {
+        return delegate.get(playerId);
+    }
+
+    @Override
+    public Player getOrCreate(String playerId) {
+        throw new UnsupportedOperationException("Players are created on " +
+                "the primary");
+    }
+
+    @Override
+    public void save(Player player) {
+        throw new UnsupportedOperationException("Players are saved on " +
+                "the primary");
+    }
+
+    @Override
+    public void forEachPlayerId(Consumer<String> action) throws IOException {
+        delegate.forEachPlayerId(action);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.store;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A scalable Bloom filter of strings: a series of Bloom filters, each twice
+ * as large as the last and with half its false positive rate, so the filter
+ * grows with the number of strings added while the overall false positive
+ * rate stays under the target.
+ * <p>
+ * A string is added to the newest filter, and is reported as possibly
+ * present if any filter contains it.  Adding and testing do not lock; only
+ * adding a new filter does.
+ * </p>
+ */
+class ScalableBloomFilter {
+
+    private static final int MAGIC = 0x424c4f4d;
+    private static final int VERSION = 1;
+
+    // Each new filter has this fraction of the previous one's false
+    // positive rate, so the rates sum to at most target / (1 - RATIO).
+    private static final double TIGHTENING_RATIO = 0.5;
+    private static final int GROWTH = 2;
+
+    private final double targetFpp;
+    private volatile Stage[] stages;
+
+    /**
+     * @param initialCapacity - the number of strings the first filter holds.
+     * @param targetFpp       - the false positive rate to stay under.
+     */
+    ScalableBloomFilter(int initialCapacity, double targetFpp) {
+        if (targetFpp <= 0 || targetFpp >= 1) {
+            throw new IllegalArgumentException("targetFpp must be in (0, 1): "
+                    + targetFpp);
+        }
+        this.targetFpp = targetFpp;
+        this.stages = new Stage[]{new Stage(Math.max(1, initialCapacity),
+                targetFpp * (1 - TIGHTENING_RATIO))};
+    }
+
+    private ScalableBloomFilter(double targetFpp, Stage[] stages) {
+        this.targetFpp = targetFpp;
+        this.stages = stages;
+    }
+
+    /**
+     * @return false if the string was never added, true if it may have been.
+     */
+    boolean mightContain(String s) {
+        long h1 = hash(s);
+        long h2 = mix(h1 + 0x9e3779b97f4a7c15L) | 1;
+        for (Stage stage : stages) {
+            if (stage.mightContain(h1, h2)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the string, starting a new, larger filter when the newest one is
+     * full.
+     */
+    void add(String s) {
+        add(hash(s));
+    }
+
+    /**
+     * Adds the string held as UTF-8 bytes, as {@link #add(String)} does.
+     */
+    void add(byte[] utf8) {
+        add(hash(utf8));
+    }
+
+    private void add(long h1) {
+        long h2 = mix(h1 + 0x9e3779b97f4a7c15L) | 1;
+        Stage[] current = stages;
+        for (Stage stage : current) {
+            if (stage.mightContain(h1, h2)) {
+                return;
+            }
+        }
+        Stage last = current[current.length - 1];
+        if (last.isFull()) {
+            last = grow(current);
+        }
+        last.add(h1, h2);
+    }
+
+    private synchronized Stage grow(Stage[] seen) {
+        Stage[] current = stages;
+        if (current == seen) {
+            Stage last = current[current.length - 1];
+            Stage[] next = new Stage[current.length + 1];
+            System.arraycopy(current, 0, next, 0, current.length);
+            next[current.length] = new Stage(
+                    (int) Math.min(Integer.MAX_VALUE / 2,
+                            (long) last.capacity * GROWTH),
+                    last.fpp * TIGHTENING_RATIO);
+            stages = next;
+        }
+        return stages[stages.length - 1];
+    }
+
+    double getTargetFpp() {
+        return targetFpp;
+    }
+
+    /**
+     * @return the estimated false positive rate, from how full each filter
+     * is.
+     */
+    double estimatedFpp() {
+        double none = 1;
+        for (Stage stage : stages) {
+            none *= 1 - stage.estimatedFpp();
+        }
+        return 1 - none;
+    }
+
+    int stageCount() {
+        return stages.length;
+    }
+
+    long sizeInBytes() {
+        long bytes = 0;
+        for (Stage stage : stages) {
+            bytes += stage.bits.length() * 8L;
+        }
+        return bytes;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        Stage[] current = stages;
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeDouble(targetFpp);
+        out.writeInt(current.length);
+        for (Stage stage : current) {
+            out.writeInt(stage.capacity);
+            out.writeDouble(stage.fpp);
+            out.writeInt(stage.count.get());
+            for (int i = 0; i < stage.bits.length(); i++) {
+                out.writeLong(stage.bits.get(i));
+            }
+        }
+    }
+
+    static ScalableBloomFilter readFrom(DataInputStream in)
+            throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a Bloom filter file");
+        }
+        double targetFpp = in.readDouble();
+        Stage[] stages = new Stage[in.readInt()];
+        for (int s = 0; s < stages.length; s++) {
+            Stage stage = new Stage(in.readInt(), in.readDouble());
+            stage.count.set(in.readInt());
+            for (int i = 0; i < stage.bits.length(); i++) {
+                stage.bits.set(i, in.readLong());
+            }
+            stages[s] = stage;
+        }
+        return new ScalableBloomFilter(targetFpp, stages);
+    }
+
+    // FNV-1a over the chars, then mixed.  Persisted filters depend on this
+    // staying the same.
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    // The same hash as hash(String), straight from the bytes while they are
+    // ASCII, which player ids are.  Other ids are decoded to keep the chars.
+    private static long hash(byte[] utf8) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : utf8) {
+            if (b < 0) {
+                return hash(new String(utf8, StandardCharsets.UTF_8));
+            }
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    // One Bloom filter, sized for its capacity and false positive rate.
+    private static class Stage {
+        final int capacity;
+        final double fpp;
+        final long bitCount;
+        final int hashes;
+        final AtomicLongArray bits;
+        // Atomic so concurrent adds aren't lost, which would let the filter
+        // fill past its capacity and false positive rate before growing.
+        // Read on every add, so it is one counter rather than a LongAdder.
+        final AtomicInteger count = new AtomicInteger();
+
+        Stage(int capacity, double fpp) {
+            this.capacity = capacity;
+            this.fpp = fpp;
+            long m = (long) Math.ceil(-capacity * Math.log(fpp) /
+                    (Math.log(2) * Math.log(2)));
+            int words = (int) Math.max(1, (m + 63) / 64);
+            this.bitCount = words * 64L;
+            this.hashes = Math.max(1, (int) Math.round(
+                    (double) bitCount / capacity * Math.log(2)));
+            this.bits = new AtomicLongArray(words);
+        }
+
+        boolean isFull() {
+            return count.get() >= capacity;
+        }
+
+        boolean mightContain(long h1, long h2) {
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + i * h2, bitCount);
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void add(long h1, long h2) {
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + i * h2, bitCount);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long old;
+                do {
+                    old = bits.get(word);
+                } while ((old & mask) == 0 &&
+                        !bits.compareAndSet(word, old, old | mask));
+            }
+            count.incrementAndGet();
+        }
+
+        double estimatedFpp() {
+            long set = 0;
+            for (int i = 0; i < bits.length(); i++) {
+                set += Long.bitCount(bits.get(i));
+            }
+            return Math.pow((double) set / bitCount, hashes);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.store;
+
+import com.google.sample.games.model.Player;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * The cold tier of a {@link TieredPlayerStore}: players moved out of the
+ * heap, appended to a scratch file.  Only an index of player id to file
+ * offset stays in memory.
+ * <p>
+ * Each record is {@code [int length][player]}, with the player in the form
+ * written by {@link PlayerCodec}, version first.  Tokens are never written
+ * out; like players loaded after a restart, a player read back gets them
+ * from the credential store.  The file is compacted when more than half of
+ * it is records of players that have been read back or replaced.
+ * </p>
+ * <p>
+ * The file only lives as long as the store, and is deleted on close.  This
+ * class is not thread safe; the owning store guards it.
+ * </p>
+ */
+final class SpillFile implements Closeable {
+
+    private static final long COMPACT_MIN_DEAD_BYTES = 1024 * 1024;
+
+    private final File file;
+    private final Map<PlayerKey, Long> index = new HashMap<>();
+    private FileChannel channel;
+    private long end;
+    private long deadBytes;
+
+    /**
+     * Creates the file, replacing any left over from a previous run.
+     *
+     * @param file - the scratch file.
+     * @throws IOException if the file could not be created.
+     */
+    SpillFile(File file) throws IOException {
+        this.file = file;
+        channel = open(file);
+    }
+
+    boolean contains(PlayerKey key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Appends the player, replacing any record it already has.
+     *
+     * @param player - the player.
+     * @throws IOException if the record could not be written.
+     */
+    void write(Player player) throws IOException {
+        ByteBuffer record = encode(player);
+        int size = record.remaining();
+        long offset = end;
+        while (record.hasRemaining()) {
+            channel.write(record, offset + record.position());
+        }
+        end += size;
+        Long previous = index.put(PlayerKey.of(player), offset);
+        if (previous != null) {
+            deadBytes += recordSize(previous);
+        }
+    }
+
+    /**
+     * Reads the player back and drops its record.
+     *
+     * @param key - the player id.
+     * @return the player, without tokens, or null if it is not in the file.
+     * @throws IOException if the record could not be read.
+     */
+    Player remove(PlayerKey key) throws IOException {
+        Long offset = index.remove(key);
+        if (offset == null) {
+            return null;
+        }
+        int size = recordSize(offset);
+        ByteBuffer record = read(offset + 4, size - 4);
+        deadBytes += size;
+        Player player = decode(record);
+        maybeCompact();
+        return player;
+    }
+
+    /**
+     * Reads the player back, keeping its record.
+     *
+     * @param key - the player id.
+     * @return the player, without tokens, or null if it is not in the file.
+     * @throws IOException if the record could not be read.
+     */
+    Player read(PlayerKey key) throws IOException {
+        Long offset = index.get(key);
+        if (offset == null) {
+            return null;
+        }
+        return decode(read(offset + 4, recordSize(offset) - 4));
+    }
+
+    /**
+     * Reads only the version of the player's record.
+     *
+     * @param key - the player id.
+     * @return the version, or 0 if the player is not in the file.
+     * @throws IOException if the record could not be read.
+     */
+    long version(PlayerKey key) throws IOException {
+        Long offset = index.get(key);
+        return offset == null ? 0 : read(offset + 4, 8).getLong();
+    }
+
+    /**
+     * Drops the player's record, if it has one, without reading it.
+     */
+    void delete(PlayerKey key) throws IOException {
+        Long offset = index.remove(key);
+        if (offset != null) {
+            deadBytes += recordSize(offset);
+            maybeCompact();
+        }
+    }
+
+    /**
+     * @return a copy of the ids of the players in the file.
+     */
+    List<PlayerKey> keys() {
+        return new ArrayList<>(index.keySet());
+    }
+
+    void forEachPlayerId(Consumer<String> action) {
+        for (PlayerKey key : index.keySet()) {
+            action.accept(key.toString());
+        }
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    /**
+     * @return the length of the file, including records not yet compacted
+     * away.
+     */
+    long sizeInBytes() {
+        return end;
+    }
+
+    /**
+     * Closes and deletes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    private int recordSize(long offset) throws IOException {
+        return 4 + read(offset, 4).getInt();
+    }
+
+    private ByteBuffer read(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException(file + " is truncated");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private void maybeCompact() throws IOException {
+        if (deadBytes > COMPACT_MIN_DEAD_BYTES &&
+                deadBytes > end - deadBytes) {
+            compact();
+        }
+    }
+
+    // Copies the live records into a new file written sequentially, then
+    // swaps it in.
+    private void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Map<PlayerKey, Long> moved = new HashMap<>();
+        long position = 0;
+        try (FileChannel out = open(tmp)) {
+            for (Map.Entry<PlayerKey, Long> entry : index.entrySet()) {
+                long offset = entry.getValue();
+                long size = recordSize(offset);
+                long copied = 0;
+                while (copied < size) {
+                    copied += channel.transferTo(offset + copied,
+                            size - copied, out);
+                }
+                moved.put(entry.getKey(), position);
+                position += size;
+            }
+        }
+        channel.close();
+        Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        index.putAll(moved);
+        end = position;
+        deadBytes = 0;
+    }
+
+    private static FileChannel open(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private static ByteBuffer encode(Player player) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        PlayerCodec.write(out, player);
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        record.putInt(0, record.remaining() - 4);
+        return record;
+    }
+
+    private static Player decode(ByteBuffer record) throws IOException {
+        return PlayerCodec.read(new DataInputStream(new ByteArrayInputStream(
+                record.array(), record.arrayOffset(), record.remaining())));
+    }
+}
@@ -0,0 +1,517 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.store;
+
+import com.google.sample.games.Metrics;
+import com.google.sample.games.model.Player;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * An in-memory player store that keeps at most a set number of players on
+ * the heap.  When it is full, players that haven't been used lately are
+ * moved to a {@link SpillFile} on disk, and moved back (promoted) the next
+ * time they are looked up.
+ * <p>
+ * The heap tier picks players to spill with the CLOCK algorithm, an
+ * approximation of LRU: a lookup only sets a flag on the player's entry, so
+ * lookups of players on the heap don't lock.  Spilling and promotion happen
+ * under the store's write lock, like every other change.
+ * </p>
+ * <p>
+ * As with {@link InMemoryPlayerStore}, alternate ids are indexed for every
+ * player, on the heap or not, and a save of an older version than the one
+ * stored is dropped, wherever that is.  Spilled players keep their version
+ * but lose their tokens, which come back from the credential store when
+ * they are promoted, so the store should be used with one.
+ * </p>
+ * <p>
+ * Snapshots are copy-on-write, as with {@link InMemoryPlayerStore}.  The
+ * first save, and the first promotion, of a player the snapshot has not
+ * reached yet keeps its current version for the snapshot; for a spilled
+ * player that costs a read from disk.  The snapshot reads the heap tier
+ * without the lock, then the spilled players one at a time under it.
+ * </p>
+ */
+public class TieredPlayerStore implements PlayerStore {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private final int maxHotPlayers;
+
+    // The heap tier.  Entries are replaced or removed only while holding
+    // writeLock.
+    private final ConcurrentMap<PlayerKey, Entry> hot =
+            new ConcurrentHashMap<>();
+
+    // The order in which the clock hand visits the heap tier.  A key may be
+    // in it more than once, or after its entry is gone; the hand skips those.
+    // Guarded by writeLock, as is cold.
+    private final ArrayDeque<PlayerKey> clock = new ArrayDeque<>();
+    private final SpillFile cold;
+
+    // Alternate id to player id, and player id to the alternate id indexed
+    // for it, as in InMemoryPlayerStore.
+    private final ConcurrentMap<String, PlayerKey> altIndex =
+            new ConcurrentHashMap<>();
+    private final Map<PlayerKey, String> indexedAltIds = new HashMap<>();
+    private final Object writeLock = new Object();
+
+    // The snapshot being read, if any.  Guarded by writeLock.
+    private Snapshot snapshot;
+
+    private final AtomicLong hotHits = new AtomicLong();
+    private final AtomicLong promotions = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong spills = new AtomicLong();
+
+    /**
+     * Creates an empty store.
+     *
+     * @param maxHotPlayers - the most players to keep on the heap.
+     * @param spillFile     - the scratch file holding the other players.  It
+     *                      is replaced if it exists, and deleted on close.
+     * @throws IOException if the spill file could not be created.
+     */
+    public TieredPlayerStore(int maxHotPlayers, File spillFile)
+            throws IOException {
+        if (maxHotPlayers < 1) {
+            throw new IllegalArgumentException("maxHotPlayers must be at " +
+                    "least 1: " + maxHotPlayers);
+        }
+        this.maxHotPlayers = maxHotPlayers;
+        this.cold = new SpillFile(spillFile);
+    }
+
+    @Override
+    public void registerMetrics(String prefix) {
+        Metrics.register(prefix + "tiered.hot.size", hot::size);
+        Metrics.register(prefix + "tiered.hot.max", () -> maxHotPlayers);
+        Metrics.register(prefix + "tiered.hot.hitRatio", this::hitRatio);
+        Metrics.register(prefix + "tiered.cold.size", this::coldSize);
+        Metrics.register(prefix + "tiered.cold.bytes", this::coldBytes);
+        Metrics.register(prefix + "tiered.promotions", promotions::get);
+        Metrics.register(prefix + "tiered.promotionRatio",
+                this::promotionRatio);
+        Metrics.register(prefix + "tiered.spills", spills::get);
+    }
+
+    @Override
+    public Player get(String playerId) {
+        Player player = getHot(playerId);
+        if (player != null) {
+            hotHits.incrementAndGet();
+            return player;
+        }
+        synchronized (writeLock) {
+            player = getHot(playerId);
+            if (player != null) {
+                hotHits.incrementAndGet();
+                return player;
+            }
+            player = promote(playerId);
+            if (player == null) {
+                misses.incrementAndGet();
+            }
+            return player;
+        }
+    }
+
+    @Override
+    public Player getOrCreate(String playerId) {
+        Player player = get(playerId);
+        if (player != null) {
+            return player;
+        }
+        synchronized (writeLock) {
+            player = getHot(playerId);
+            if (player == null) {
+                player = promote(playerId);
+            }
+            if (player == null) {
+                player = Player.newBuilder(playerId).build();
+                PlayerKey key = PlayerKey.of(player);
+                keepForSnapshot(key);
+                putHot(key, player);
+            }
+            return player;
+        }
+    }
+
+    @Override
+    public void save(Player player) {
+        synchronized (writeLock) {
+            PlayerKey key = PlayerKey.of(player);
+            if (storedVersion(key) > player.getVersion()) {
+                return;
+            }
+            keepForSnapshot(key);
+            deleteCold(key);
+            putHot(key, player);
+            updateAltIndex(key, player.getAltPlayerId());
+        }
+    }
+
+    @Override
+    public void saveAll(Collection<Player> players) {
+        synchronized (writeLock) {
+            for (Player player : players) {
+                save(player);
+            }
+        }
+    }
+
+    /**
+     * Takes a copy-on-write snapshot of the players, on the heap and on
+     * disk.  Only one can be open at a time.
+     *
+     * @throws IllegalStateException if a snapshot is already open.
+     */
+    @Override
+    public PlayerSnapshot snapshot() {
+        synchronized (writeLock) {
+            if (snapshot != null) {
+                throw new IllegalStateException("A snapshot is already open");
+            }
+            snapshot = new Snapshot();
+            return snapshot;
+        }
+    }
+
+    @Override
+    public void forEachPlayerId(Consumer<String> action) {
+        synchronized (writeLock) {
+            for (PlayerKey key : hot.keySet()) {
+                action.accept(key.toString());
+            }
+            cold.forEachPlayerId(action);
+            for (String altId : altIndex.keySet()) {
+                action.accept(altId);
+            }
+        }
+    }
+
+    /**
+     * @return the fraction of lookups answered from the heap, or 0 if there
+     * have been none.
+     */
+    public double hitRatio() {
+        return ratio(hotHits.get());
+    }
+
+    /**
+     * @return the fraction of lookups that promoted a player from disk, or
+     * 0 if there have been none.
+     */
+    public double promotionRatio() {
+        return ratio(promotions.get());
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Deletes the spill file.  The players are gone once the store is
+     * closed, as with {@link InMemoryPlayerStore}.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            cold.close();
+        }
+    }
+
+    private double ratio(long count) {
+        long total = hotHits.get() + promotions.get() + misses.get();
+        return total == 0 ? 0.0 : (double) count / total;
+    }
+
+    private int coldSize() {
+        synchronized (writeLock) {
+            return cold.size();
+        }
+    }
+
+    private long coldBytes() {
+        synchronized (writeLock) {
+            return cold.sizeInBytes();
+        }
+    }
+
+    // Lock free.  Marks the entry as used, for the clock hand.
+    private Player getHot(String playerId) {
+        Entry entry = hot.get(PlayerKey.of(playerId));
+        if (entry == null) {
+            PlayerKey primaryKey = altIndex.get(playerId);
+            if (primaryKey != null) {
+                entry = hot.get(primaryKey);
+            }
+        }
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry.player;
+    }
+
+    // Must hold writeLock.  Moves the player from disk to the heap.
+    private Player promote(String playerId) {
+        PlayerKey key = PlayerKey.of(playerId);
+        if (!cold.contains(key)) {
+            key = altIndex.get(playerId);
+            if (key == null) {
+                return null;
+            }
+        }
+        Player player;
+        try {
+            player = cold.remove(key);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not load player", e);
+        }
+        if (player != null) {
+            promotions.incrementAndGet();
+            // The snapshot may have passed the heap tier already, and the
+            // player is about to leave the disk.
+            keepForSnapshot(key, player);
+            putHot(key, player);
+        }
+        return player;
+    }
+
+    // Must hold writeLock.
+    private void putHot(PlayerKey key, Player player) {
+        Entry entry = hot.get(key);
+        if (entry != null) {
+            entry.player = player;
+            entry.referenced = true;
+            return;
+        }
+        hot.put(key, new Entry(player));
+        clock.addLast(key);
+        spill();
+    }
+
+    // Must hold writeLock.  Sweeps the clock hand over the heap tier,
+    // giving used entries a second chance and moving the first unused ones
+    // to disk until the tier fits.  Each player is written out before it
+    // leaves the heap, so a lock-free reader always finds it in one tier
+    // or the other.
+    private void spill() {
+        while (hot.size() > maxHotPlayers) {
+            PlayerKey key = clock.pollFirst();
+            Entry entry = hot.get(key);
+            if (entry == null) {
+                continue;
+            }
+            if (entry.referenced) {
+                entry.referenced = false;
+                clock.addLast(key);
+                continue;
+            }
+            try {
+                cold.write(entry.player);
+            } catch (IOException e) {
+                // Keep the player on the heap rather than lose it.
+                clock.addLast(key);
+                logger.atError().withThrowable(e).log("Could not spill " +
+                        "players to disk");
+                return;
+            }
+            hot.remove(key);
+            spills.incrementAndGet();
+        }
+    }
+
+    // Must hold writeLock.  The version of the player in either tier, or 0
+    // if there is none.  Spilled players keep their version, so a save
+    // built from a copy read before the player was spilled is still caught.
+    private long storedVersion(PlayerKey key) {
+        Entry entry = hot.get(key);
+        if (entry != null) {
+            return entry.player.getVersion();
+        }
+        try {
+            return cold.version(key);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read player", e);
+        }
+    }
+
+    // Must hold writeLock, and call before the player's record is created,
+    // replaced or dropped.
+    private void keepForSnapshot(PlayerKey key) {
+        if (snapshot != null && !snapshot.kept.containsKey(key)) {
+            Entry entry = hot.get(key);
+            Player current;
+            try {
+                current = entry != null ? entry.player : cold.read(key);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read player", e);
+            }
+            keepForSnapshot(key, current);
+        }
+    }
+
+    // Must hold writeLock.  current is the player's record, or null if
+    // there is none yet.
+    private void keepForSnapshot(PlayerKey key, Player current) {
+        if (snapshot != null) {
+            snapshot.kept.putIfAbsent(key, current == null ? ABSENT : current);
+        }
+    }
+
+    // Must hold writeLock.
+    private void deleteCold(PlayerKey key) {
+        try {
+            cold.delete(key);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not update player", e);
+        }
+    }
+
+    // Must hold writeLock.  The player is stored before its new alternate
+    // id is indexed, so a lock-free reader never resolves to nothing.
+    private void updateAltIndex(PlayerKey key, String altPlayerId) {
+        PlayerKey altKey = altPlayerId == null || altPlayerId.isEmpty()
+                ? null : PlayerKey.of(altPlayerId);
+        String newAlt = altKey == null || altKey.equals(key) ? null
+                : altPlayerId;
+        String oldAlt = newAlt == null ? indexedAltIds.remove(key)
+                : indexedAltIds.put(key, newAlt);
+        if (newAlt != null) {
+            altIndex.put(newAlt, key);
+            // Any record stored under the alternate id is the same player
+            // signing in before the migration was known; the primary record
+            // replaces it.
+            keepForSnapshot(altKey);
+            boolean stale = hot.remove(altKey) != null ||
+                    cold.contains(altKey);
+            deleteCold(altKey);
+            if (stale) {
+                String staleAlt = indexedAltIds.remove(altKey);
+                if (staleAlt != null) {
+                    altIndex.remove(staleAlt, altKey);
+                }
+            }
+        }
+        if (oldAlt != null && !oldAlt.equals(newAlt)) {
+            altIndex.remove(oldAlt, key);
+        }
+    }
+
+    // Markers in a snapshot's kept map, for players that did not exist when
+    // it was taken and for players it has already read.
+    private static final Object ABSENT = new Object();
+    private static final Object READ = new Object();
+
+    private final class Snapshot implements PlayerSnapshot {
+
+        // As in InMemoryPlayerStore: the versions the snapshot is to see of
+        // the players changed or promoted since it was taken, and markers.
+        final ConcurrentMap<PlayerKey, Object> kept;
+        private final int size;
+
+        // Must hold writeLock.
+        Snapshot() {
+            size = hot.size() + cold.size();
+            kept = new ConcurrentHashMap<>(Math.max(16, size));
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void forEachPlayer(Consumer<Player> action) {
+            // Each record is read before it is marked, so a save or
+            // promotion that keeps it first wins and the kept version is
+            // used below.
+            for (Map.Entry<PlayerKey, Entry> entry : hot.entrySet()) {
+                read(entry.getKey(), entry.getValue().player, action);
+            }
+            // Players spilled since are on disk by now.  Ones promoted
+            // since were kept.
+            List<PlayerKey> spilled;
+            synchronized (writeLock) {
+                spilled = cold.keys();
+            }
+            for (PlayerKey key : spilled) {
+                Player player;
+                synchronized (writeLock) {
+                    try {
+                        player = cold.read(key);
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Could not read " +
+                                "player", e);
+                    }
+                }
+                if (player != null) {
+                    read(key, player, action);
+                }
+            }
+            for (Object version : kept.values()) {
+                if (version instanceof Player) {
+                    action.accept((Player) version);
+                }
+            }
+        }
+
+        private void read(PlayerKey key, Player player,
+                          Consumer<Player> action) {
+            if (kept.putIfAbsent(key, READ) == null) {
+                action.accept(player);
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (writeLock) {
+                if (snapshot == this) {
+                    snapshot = null;
+                }
+            }
+        }
+    }
+
+    private static final class Entry {
+        volatile Player player;
+        // Set when the player is looked up, cleared by the clock hand.
+        volatile boolean referenced;
+
+        Entry(Player player) {
+            this.player = player;
+            this.referenced = true;
+        }
+    }
+}
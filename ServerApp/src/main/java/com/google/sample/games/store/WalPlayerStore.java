@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.store;
+
+import com.google.sample.games.Metrics;
+import com.google.sample.games.model.Player;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Makes an in-memory player store durable with a {@link WriteAheadLog}.
+ * <p>
+ * Each saved player is logged, then applied to the store, and the save
+ * returns once the log record is on disk.  Saves from concurrent requests
+ * share fsyncs (group commit), so sign-ins are not limited to one per
+ * fsync.  On start the log is replayed into the store.
+ * </p>
+ * <p>
+ * Records are logged and applied in the same order under a lock, so the
+ * log replays changes in the order the store saw them.  Only the waits for
+ * the disk happen outside it.  A save the store would drop, built from an
+ * older version than the one it holds, is not logged.  Records carry the
+ * player's version, so a replayed player keeps it, and later saves from
+ * out of date copies are still caught.  Empty players made by
+ * {@link #getOrCreate} are not logged; they hold nothing a later sign-in
+ * doesn't recreate.  Tokens are not logged either, as they are kept in the
+ * credential store.
+ * </p>
+ * <p>
+ * Once most of the log is records of players changed again later, it is
+ * checkpointed in the background: a snapshot of the store is written
+ * sequentially as a new head for the log, one record per player, and
+ * swapped in for the records it covers.  Saves carry on while the snapshot
+ * is written, as the store takes the snapshot without stopping them.  The
+ * log is also checkpointed on start, if due, through the same kind of
+ * snapshot, so players are never all gathered on the heap at once.  With a
+ * store that can't take snapshots the log is never checkpointed.
+ * </p>
+ * <p>
+ * The log can also be read by other processes: each time more of it is on
+ * disk a listener is told, and the records up to there can be copied from
+ * the file, as replicas do through {@link ReplicaPlayerStore}.
+ * </p>
+ */
+public class WalPlayerStore implements PlayerStore {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    // Logs with fewer records are not worth checkpointing.
+    private static final long CHECKPOINT_MIN_RECORDS = 10000;
+    private static final int HEAD_BUFFER_BYTES = 256 * 1024;
+
+    private final PlayerStore delegate;
+    private final File logFile;
+    private final WriteAheadLog log;
+    private final Object writeLock = new Object();
+
+    // The records in the log, and the players in its head as of the last
+    // checkpoint.  Guarded by writeLock.
+    private long logRecords;
+    private long headPlayers;
+    private boolean checkpointing;
+    private boolean snapshotsSupported = true;
+
+    // Held while checkpointing, so only one runs at a time.
+    private final Object checkpointLock = new Object();
+    private boolean closed;
+
+    private final AtomicLong checkpoints = new AtomicLong();
+    private volatile long lastCheckpointMs;
+
+    /**
+     * Opens the log and replays it into the store.
+     *
+     * @param delegate    - the in-memory store holding the players.  It
+     *                    should be empty.
+     * @param logFile     - the log, created if it does not exist.
+     * @param groupCommit - whether saves share fsyncs.  Without it every
+     *                    save forces the log on its own.
+     * @throws IOException if the log could not be read.
+     */
+    public WalPlayerStore(PlayerStore delegate, File logFile,
+                          boolean groupCommit) throws IOException {
+        this.delegate = delegate;
+        this.logFile = logFile;
+        long start = System.nanoTime();
+        List<Player> batch = new ArrayList<>();
+        long[] replayed = {0};
+        try {
+            log = new WriteAheadLog(logFile, groupCommit, record -> {
+                batch.add(decode(record));
+                replayed[0]++;
+                if (batch.size() >= 1000) {
+                    delegate.saveAll(batch);
+                    batch.clear();
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        delegate.saveAll(batch);
+        logger.atInfo().log("Replayed {} player changes from {} in {} ms",
+                replayed[0], logFile,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        // The snapshot streams the players straight into the new head,
+        // leaving them where the store keeps them.
+        logRecords = replayed[0];
+        PlayerSnapshot snapshot;
+        try {
+            snapshot = delegate.snapshot();
+        } catch (UnsupportedOperationException e) {
+            logger.atInfo().log("{} can't be checkpointed, as its store " +
+                    "can't take snapshots", logFile);
+            snapshotsSupported = false;
+            return;
+        }
+        try {
+            headPlayers = snapshot.size();
+            if (checkpointDue()) {
+                checkpoint(snapshot, log.appendedPosition());
+            }
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    @Override
+    public void registerMetrics(String prefix) {
+        Metrics.register(prefix + "wal.records", log::recordCount);
+        Metrics.register(prefix + "wal.syncs", log::syncCount);
+        Metrics.register(prefix + "wal.avgGroupSize", log::averageGroupSize);
+        Metrics.register(prefix + "wal.avgSyncMicros",
+                log::averageSyncMicros);
+        Metrics.register(prefix + "wal.bytes", log::sizeInBytes);
+        Metrics.register(prefix + "wal.checkpoints", checkpoints::get);
+        Metrics.register(prefix + "wal.lastCheckpointMs",
+                () -> lastCheckpointMs);
+        delegate.registerMetrics(prefix);
+    }
+
+    @Override
+    public Player get(String playerId) {
+        return delegate.get(playerId);
+    }
+
+    @Override
+    public Player getOrCreate(String playerId) {
+        return delegate.getOrCreate(playerId);
+    }
+
+    /**
+     * Saves the player, returning once the change is durable.
+     *
+     * @throws IllegalStateException if the change could not be logged.
+     */
+    @Override
+    public void save(Player player) {
+        saveAll(Collections.singletonList(player));
+    }
+
+    /**
+     * Saves the players, returning once the changes are durable.
+     *
+     * @throws IllegalStateException if the changes could not be logged.
+     */
+    @Override
+    public void saveAll(Collection<Player> players) {
+        long position = 0;
+        try {
+            synchronized (writeLock) {
+                for (Player player : players) {
+                    if (isStale(player)) {
+                        continue;
+                    }
+                    position = log.append(encode(player));
+                    delegate.save(player);
+                    logRecords++;
+                }
+                if (!checkpointing && snapshotsSupported &&
+                        checkpointDue()) {
+                    checkpointing = true;
+                    Thread checkpointer = new Thread(
+                            this::checkpointInBackground, "wal-checkpoint");
+                    checkpointer.setDaemon(true);
+                    checkpointer.start();
+                }
+            }
+            log.sync(position);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not log player", e);
+        }
+    }
+
+    /**
+     * Checkpoints the log now: replaces the records of the players with a
+     * snapshot of them, taken and written while saves continue.
+     *
+     * @throws IOException if the snapshot could not be written.  The log is
+     *                     left as it was.
+     * @throws UnsupportedOperationException if the store can't take
+     *                                       snapshots.
+     */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            if (closed) {
+                return;
+            }
+            PlayerSnapshot snapshot;
+            long from;
+            synchronized (writeLock) {
+                snapshot = delegate.snapshot();
+                from = log.appendedPosition();
+            }
+            try {
+                checkpoint(snapshot, from);
+            } finally {
+                snapshot.close();
+            }
+        }
+    }
+
+    /**
+     * @return an id for the current log file.  Offsets in it only hold for
+     * the same id; it changes when the log is checkpointed.
+     */
+    public long getLogId() {
+        return log.id();
+    }
+
+    /**
+     * @return the offset in the log file up to which it is on disk.  Only
+     * whole records lie before it.
+     */
+    public long durablePosition() {
+        return log.durableOffset();
+    }
+
+    /**
+     * Opens the log for reading.  The bytes up to {@link #durablePosition}
+     * do not change until the log is checkpointed, which changes its id.
+     *
+     * @return a channel on the log, to be closed by the caller.
+     * @throws IOException if the log could not be opened.
+     */
+    public FileChannel openLogReader() throws IOException {
+        return FileChannel.open(logFile.toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Sets what to call, with the new durable position, each time more of
+     * the log reaches the disk.  It is called while saves wait, so must be
+     * quick and must not call back into the store.
+     *
+     * @param listener - the listener, or null for none.
+     */
+    public void setDurableListener(LongConsumer listener) {
+        log.setDurableListener(listener);
+    }
+
+    @Override
+    public void forEachPlayerId(Consumer<String> action) throws IOException {
+        delegate.forEachPlayerId(action);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        log.syncAll();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Let a checkpoint in progress finish first.
+        synchronized (checkpointLock) {
+            closed = true;
+        }
+        try {
+            log.close();
+        } finally {
+            delegate.close();
+        }
+    }
+
+    // Must hold writeLock.  Whether the store holds a later version of the
+    // player, and so would drop the save; it is not logged either.
+    private boolean isStale(Player player) {
+        Player current = delegate.get(player.getPlayerId());
+        return current != null && Arrays.equals(current.getPlayerIdBytes(),
+                player.getPlayerIdBytes()) &&
+                current.getVersion() > player.getVersion();
+    }
+
+    // Must hold writeLock.  Due once most of the log is records of players
+    // changed again later.
+    private boolean checkpointDue() {
+        return logRecords > CHECKPOINT_MIN_RECORDS &&
+                logRecords > 2 * headPlayers;
+    }
+
+    private void checkpointInBackground() {
+        try {
+            checkpoint();
+        } catch (IOException | RuntimeException e) {
+            logger.atError().withThrowable(e).log("Could not checkpoint {}",
+                    logFile);
+        } finally {
+            synchronized (writeLock) {
+                checkpointing = false;
+            }
+        }
+    }
+
+    // Writes the snapshot as the log's new head and swaps it in for the
+    // records before from, which the snapshot covers.
+    private void checkpoint(PlayerSnapshot snapshot, long from)
+            throws IOException {
+        long start = System.nanoTime();
+        long sizeBefore = log.sizeInBytes();
+        long recordsBefore;
+        synchronized (writeLock) {
+            recordsBefore = logRecords;
+        }
+        File head = new File(logFile.getPath() + ".head");
+        long players = writeHead(head, snapshot);
+        // Only records after from are to be kept behind the head.
+        log.sync(from);
+        log.replaceHead(head, from);
+        synchronized (writeLock) {
+            // Records appended while the head was written were kept.
+            logRecords = logRecords - recordsBefore + players;
+            headPlayers = players;
+        }
+        lastCheckpointMs = TimeUnit.NANOSECONDS.toMillis(
+                System.nanoTime() - start);
+        checkpoints.incrementAndGet();
+        logger.atInfo().log("Checkpointed {} players into {} in {} ms, " +
+                        "from {} to {} bytes", players, logFile,
+                lastCheckpointMs, sizeBefore, log.sizeInBytes());
+    }
+
+    // Writes the players as log records, sequentially in large blocks, and
+    // forces them to disk.
+    private static long writeHead(File head, PlayerSnapshot snapshot)
+            throws IOException {
+        try (FileChannel out = FileChannel.open(head.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(HEAD_BUFFER_BYTES);
+            long[] players = {0};
+            try {
+                snapshot.forEachPlayer(player -> {
+                    try {
+                        byte[] data = encode(player);
+                        if (buffer.remaining() <
+                                WriteAheadLog.recordSize(data.length)) {
+                            drain(buffer, out);
+                        }
+                        WriteAheadLog.putRecord(buffer, data);
+                        players[0]++;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            drain(buffer, out);
+            out.force(false);
+            return players[0];
+        }
+    }
+
+    private static void drain(ByteBuffer buffer, FileChannel out)
+            throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static byte[] encode(Player player) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        PlayerCodec.write(new DataOutputStream(bytes), player);
+        return bytes.toByteArray();
+    }
+
+    static Player decode(ByteBuffer record) {
+        try {
+            return PlayerCodec.read(new DataInputStream(
+                    new ByteArrayInputStream(record.array(),
+                            record.arrayOffset() + record.position(),
+                            record.remaining())));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
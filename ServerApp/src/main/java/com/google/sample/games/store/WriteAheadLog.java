@@ -0,0 +1,524 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.store;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of records, each durable (forced to disk) before its
+ * writer is told so.
+ * <p>
+ * With group commit, records are appended to a shared buffer.  The first
+ * writer to wait for its record becomes the leader: it writes out the whole
+ * buffer and forces it with one fsync, while the writers arriving meanwhile
+ * fill the next buffer.  Every writer whose record was in the group is then
+ * released.  The more writers there are, the larger the groups, so the
+ * number of fsyncs stays close to what the disk can do while throughput
+ * keeps growing.  Without group commit, each record is written and forced
+ * on its own.
+ * </p>
+ * <p>
+ * Each record is {@code [int length][int crc32][data]}.  When the log is
+ * opened, a record cut off or corrupted by a crash ends it, and the file is
+ * truncated there.  If a write or fsync fails, the log is closed to further
+ * writes, as it can no longer tell which records reached the disk.
+ * </p>
+ * <p>
+ * The records at the head of the log can be replaced by a shorter run of
+ * records standing in for them, such as a snapshot of what they built,
+ * while appends continue.  Positions handed to writers count every byte
+ * appended since the log was opened, so they stay valid across the swap;
+ * offsets in the file, and the log's id, do not.
+ * </p>
+ */
+final class WriteAheadLog implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final int HEADER_BYTES = 8;
+    private static final int INITIAL_BUFFER_BYTES = 64 * 1024;
+    // Appends wait while at most this much of the log is moved behind a
+    // new head.
+    private static final long MAX_SWAP_TAIL_BYTES = 64 * 1024;
+
+    private final File file;
+    private final boolean groupCommit;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition synced = lock.newCondition();
+
+    // Records are appended to filling while the leader writes out the
+    // previous group.  appended is the position of the end of the last
+    // record appended, durable of the last one forced to disk, and base
+    // the position at the start of the file.  All guarded by lock; the
+    // channel is only swapped while no leader is writing to it.
+    private FileChannel channel;
+    private ByteBuffer filling = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+    private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+    private long appended;
+    private long durable;
+    private long base;
+    private long id = newId();
+    private boolean syncing;
+    private IOException failure;
+    private volatile LongConsumer durableListener;
+
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong syncNanos = new AtomicLong();
+
+    /**
+     * Opens the log, passing each intact record to the reader.
+     *
+     * @param file        - the log file, created if it does not exist.
+     * @param groupCommit - whether to share fsyncs between writers.
+     * @param reader      - called with the data of each record, in order.
+     * @throws IOException if the log could not be read.
+     */
+    WriteAheadLog(File file, boolean groupCommit, Consumer<ByteBuffer> reader)
+            throws IOException {
+        this.file = file;
+        this.groupCommit = groupCommit;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        appended = durable = replay(reader);
+        channel.position(appended);
+    }
+
+    /**
+     * Appends a record.  It is not durable until {@link #sync} returns for
+     * the position returned.
+     *
+     * @param data - the record.
+     * @return the position just past the record.
+     * @throws IOException if the log has failed.
+     */
+    long append(byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw new IOException("Log has failed", failure);
+            }
+            int size = HEADER_BYTES + data.length;
+            if (filling.remaining() < size) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(
+                        2 * filling.capacity(), filling.position() + size));
+                filling.flip();
+                larger.put(filling);
+                filling = larger;
+            }
+            putRecord(filling, data, crc);
+            appended += size;
+            records.incrementAndGet();
+            if (!groupCommit) {
+                writeAndForce(appended);
+            }
+            return appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the log is durable up to the position, writing it out if
+     * no other writer is doing so.
+     *
+     * @param position - a position returned by {@link #append}.
+     * @throws IOException if the records could not be made durable.
+     */
+    void sync(long position) throws IOException {
+        lock.lock();
+        try {
+            while (durable < position) {
+                if (failure != null) {
+                    throw new IOException("Log has failed", failure);
+                }
+                if (syncing) {
+                    synced.awaitUninterruptibly();
+                } else {
+                    writeAndForce(appended);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until every record appended so far is durable.
+     *
+     * @throws IOException if the records could not be made durable.
+     */
+    void syncAll() throws IOException {
+        sync(appendedPosition());
+    }
+
+    /**
+     * @return the position just past the last record appended.
+     */
+    long appendedPosition() {
+        lock.lock();
+        try {
+            return appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the records before a position with the records in another
+     * file, which then becomes the log.  The records appended since are
+     * copied after them, mostly while appends continue; they only wait
+     * while the last few are moved and the new file is forced.
+     *
+     * @param head - a file of records, made with {@link #putRecord} and
+     *             already forced to disk, standing in for the records
+     *             before the position.  It is moved over the log.
+     * @param from - a position returned by {@link #append} or
+     *             {@link #appendedPosition}.
+     * @throws IOException if the log could not be swapped.  It is left as
+     *                     it was.
+     */
+    void replaceHead(File head, long from) throws IOException {
+        FileChannel out = FileChannel.open(head.toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean swapped = false;
+        try {
+            out.position(out.size());
+            // Only this method moves the channel and base, and callers
+            // don't run it concurrently, so the copies can read them
+            // without the lock.
+            long copied = from;
+            long available;
+            while ((available = durablePosition()) - copied >
+                    MAX_SWAP_TAIL_BYTES) {
+                transfer(copied, available, out);
+                copied = available;
+            }
+            lock.lock();
+            try {
+                while (syncing) {
+                    synced.awaitUninterruptibly();
+                }
+                if (failure != null) {
+                    throw new IOException("Log has failed", failure);
+                }
+                transfer(copied, durable, out);
+                out.force(false);
+                Files.move(head.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                channel.close();
+                channel = out;
+                base = durable - out.size();
+                id = newId();
+                swapped = true;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            if (!swapped) {
+                out.close();
+                Files.deleteIfExists(head.toPath());
+            }
+        }
+    }
+
+    /**
+     * @return an id for the current file of the log, which changes when
+     * its head is replaced.  Offsets in the file only hold for one id.
+     */
+    long id() {
+        lock.lock();
+        try {
+            return id;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets what to call, with the new durable position, each time more of
+     * the log reaches the disk.  It is called while holding the log's lock,
+     * so must be quick and must not call back into the log.
+     *
+     * @param listener - the listener, or null for none.
+     */
+    void setDurableListener(LongConsumer listener) {
+        durableListener = listener;
+    }
+
+    /**
+     * @return the position up to which the log is on disk.
+     */
+    long durablePosition() {
+        lock.lock();
+        try {
+            return durable;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the offset in the file up to which the log is on disk.  Only
+     * whole records lie before it.
+     */
+    long durableOffset() {
+        lock.lock();
+        try {
+            return durable - base;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of records appended since the log was opened.
+     */
+    long recordCount() {
+        return records.get();
+    }
+
+    /**
+     * @return the number of fsyncs since the log was opened.
+     */
+    long syncCount() {
+        return syncs.get();
+    }
+
+    /**
+     * @return the average number of records made durable by one fsync.
+     */
+    double averageGroupSize() {
+        long n = syncs.get();
+        return n == 0 ? 0.0 : (double) records.get() / n;
+    }
+
+    /**
+     * @return the average time to write out and force a group, in
+     * microseconds.
+     */
+    double averageSyncMicros() {
+        long n = syncs.get();
+        return n == 0 ? 0.0 : syncNanos.get() / 1000.0 / n;
+    }
+
+    /**
+     * @return the size of the log, including records not yet durable.
+     */
+    long sizeInBytes() {
+        lock.lock();
+        try {
+            return appended - base;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            syncAll();
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Must hold the lock.  Leads one group: takes the buffered records,
+    // writes and forces them without the lock, so writers can keep
+    // appending to the other buffer, then releases the group's writers.
+    private void writeAndForce(long end) throws IOException {
+        ByteBuffer group = filling;
+        filling = spare;
+        filling.clear();
+        syncing = true;
+        if (groupCommit) {
+            lock.unlock();
+        }
+        long start = System.nanoTime();
+        IOException error = null;
+        try {
+            group.flip();
+            while (group.hasRemaining()) {
+                channel.write(group);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            if (groupCommit) {
+                lock.lock();
+            }
+        }
+        syncNanos.addAndGet(System.nanoTime() - start);
+        syncs.incrementAndGet();
+        group.clear();
+        spare = group;
+        syncing = false;
+        if (error != null) {
+            failure = error;
+            logger.atError().withThrowable(error).log("Could not write {}",
+                    file);
+        } else {
+            durable = end;
+            LongConsumer listener = durableListener;
+            if (listener != null) {
+                listener.accept(end);
+            }
+        }
+        synced.signalAll();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Adds a record to the buffer, which must have room for it.
+     *
+     * @param buffer - the buffer.
+     * @param data   - the record.
+     * @return the number of bytes added.
+     */
+    static int putRecord(ByteBuffer buffer, byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return putRecord(buffer, data, crc);
+    }
+
+    private static int putRecord(ByteBuffer buffer, byte[] data, CRC32 crc) {
+        buffer.putInt(data.length).putInt((int) crc.getValue()).put(data);
+        return HEADER_BYTES + data.length;
+    }
+
+    /**
+     * @return the bytes a record of the given length takes in the log.
+     */
+    static int recordSize(int length) {
+        return HEADER_BYTES + length;
+    }
+
+    /**
+     * Passes the data of each whole record in a piece of a log, such as one
+     * being copied from another process, to the reader.  A record cut off at
+     * the end is left in the buffer, which is positioned at its start.
+     *
+     * @param records - the records, in a heap buffer.
+     * @param reader  - called with the data of each record, in order.
+     * @throws IOException if a record is corrupted.
+     */
+    static void forEachRecord(ByteBuffer records, Consumer<ByteBuffer> reader)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        while (records.remaining() >= HEADER_BYTES) {
+            int start = records.position();
+            int length = records.getInt();
+            int checksum = records.getInt();
+            if (length < 0) {
+                throw new IOException("Record has a negative length");
+            }
+            if (length > records.remaining()) {
+                records.position(start);
+                break;
+            }
+            ByteBuffer data = records.slice();
+            data.limit(length);
+            records.position(records.position() + length);
+            crc.reset();
+            crc.update(data.array(), data.arrayOffset(), length);
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Record checksum mismatch");
+            }
+            reader.accept(data);
+        }
+    }
+
+    // Reads the intact records and truncates the file after the last one.
+    private long replay(Consumer<ByteBuffer> reader) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        CRC32 crc = new CRC32();
+        while (position + HEADER_BYTES <= size) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 0 || position + HEADER_BYTES + length > size) {
+                break;
+            }
+            ByteBuffer data = ByteBuffer.allocate(length);
+            readFully(data, position + HEADER_BYTES);
+            crc.reset();
+            crc.update(data.array(), 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            data.flip();
+            reader.accept(data);
+            position += HEADER_BYTES + length;
+        }
+        if (position < size) {
+            logger.atWarn().log("Dropping {} bytes of an incomplete record " +
+                    "at the end of {}", size - position, file);
+            channel.truncate(position);
+        }
+        return position;
+    }
+
+    // Copies the records between two positions to the end of out.
+    private void transfer(long from, long to, FileChannel out)
+            throws IOException {
+        long copied = 0;
+        while (copied < to - from) {
+            copied += channel.transferTo(from - base + copied,
+                    to - from - copied, out);
+        }
+    }
+
+    private static long newId() {
+        return ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    }
+
+    private void readFully(ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+    }
+}
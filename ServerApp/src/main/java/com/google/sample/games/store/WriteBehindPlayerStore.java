@@ -0,0 +1,493 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.store;
+
+import com.google.sample.games.Metrics;
+import com.google.sample.games.model.Player;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A write-behind layer in front of a durable player store.
+ * <p>
+ * Saves are queued in memory and return immediately; a background thread
+ * writes them to the underlying store in batches, when either
+ * <code>batchSize</code> players are pending or <code>flushInterval</code>
+ * has passed.  Repeated saves of the same player before it is written are
+ * coalesced into one write.  When <code>maxPending</code> players are
+ * queued, saves of new players block until the writer catches up.
+ * </p>
+ * <p>
+ * Reads check the queue (and the batch being written) before the
+ * underlying store, by player id or alternate id, so they always see pending
+ * writes.  If the process crashes, at most the writes of the last flush
+ * interval, bounded by <code>maxPending</code> players counting the batch
+ * being written, are lost.
+ * </p>
+ * <p>
+ * A batch that fails is put back and retried.  After it has failed
+ * several rounds in a row, its players are written one at a time, and any
+ * that still fail are logged and dropped, so one bad row or a database
+ * that stays down can't hold up the queue for ever.  Flushing and closing
+ * wait for the queue for a bounded time.
+ * </p>
+ */
+public class WriteBehindPlayerStore implements PlayerStore {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_MAX_PENDING = 10000;
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 1000;
+    public static final long DEFAULT_FLUSH_TIMEOUT_MS = 30000;
+
+    // Rounds in a row a batch may fail before its players are written one
+    // at a time, dropping those that fail again.
+    private static final int MAX_FAILED_ROUNDS = 3;
+
+    private final PlayerStore delegate;
+    private final int batchSize;
+    private final int maxPending;
+    private final long flushIntervalNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workAvailable = lock.newCondition();
+    private final Condition batchWritten = lock.newCondition();
+
+    // Guarded by lock.  Keyed by the players' own id bytes.
+    private LinkedHashMap<PlayerKey, Player> pending = new LinkedHashMap<>();
+    private Map<PlayerKey, Player> writing = Collections.emptyMap();
+    // Alternate id to player key for the queued players, so they can be
+    // found by either id before they reach the underlying store.
+    private final Map<String, PlayerKey> queuedAltIds = new HashMap<>();
+    // Counts the rounds of the writer, each ending with its batch written
+    // or put back in the queue.
+    private long writtenBatches;
+    private boolean flushRequested;
+    private boolean closed;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong blockedSaves = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private final AtomicLong droppedPlayers = new AtomicLong();
+
+    private volatile long flushTimeoutNanos =
+            TimeUnit.MILLISECONDS.toNanos(DEFAULT_FLUSH_TIMEOUT_MS);
+    // Rounds failed in a row.  Only used by the writer thread.
+    private int failedRounds;
+
+    private final Thread writer;
+
+    public WriteBehindPlayerStore(PlayerStore delegate) {
+        this(delegate, DEFAULT_BATCH_SIZE, DEFAULT_MAX_PENDING,
+                DEFAULT_FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the store and starts its writer thread.
+     *
+     * @param delegate      - the durable store written to.
+     * @param batchSize     - write as soon as this many players are pending.
+     * @param maxPending    - block saves when this many players are pending,
+     *                      including the batch being written.
+     * @param flushInterval - write pending players at least this often.
+     * @param unit          - the unit of flushInterval.
+     */
+    public WriteBehindPlayerStore(PlayerStore delegate, int batchSize,
+                                  int maxPending, long flushInterval,
+                                  TimeUnit unit) {
+        this.delegate = delegate;
+        this.batchSize = batchSize;
+        this.maxPending = maxPending;
+        this.flushIntervalNanos = unit.toNanos(flushInterval);
+
+        writer = new Thread(this::writeLoop, "player-write-behind");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @param timeout - how long flush and close wait for the queued players
+     *                to be written.
+     * @param unit    - the unit of timeout.
+     */
+    public void setFlushTimeout(long timeout, TimeUnit unit) {
+        this.flushTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    @Override
+    public void registerMetrics(String prefix) {
+        Metrics.register(prefix + "writeBehind.pending", this::pendingCount);
+        Metrics.register(prefix + "writeBehind.batches", batches::get);
+        Metrics.register(prefix + "writeBehind.coalesced", coalesced::get);
+        Metrics.register(prefix + "writeBehind.blockedSaves",
+                blockedSaves::get);
+        Metrics.register(prefix + "writeBehind.failedBatches",
+                failedBatches::get);
+        Metrics.register(prefix + "writeBehind.droppedPlayers",
+                droppedPlayers::get);
+        delegate.registerMetrics(prefix);
+    }
+
+    @Override
+    public Player get(String playerId) {
+        PlayerKey key = PlayerKey.of(playerId);
+        lock.lock();
+        try {
+            Player player = findQueued(key, playerId);
+            if (player != null) {
+                return player;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return delegate.get(playerId);
+    }
+
+    @Override
+    public Player getOrCreate(String playerId) {
+        PlayerKey key = PlayerKey.of(playerId);
+        while (true) {
+            long batchesBefore;
+            lock.lock();
+            try {
+                Player player = findQueued(key, playerId);
+                if (player != null) {
+                    return player;
+                }
+                batchesBefore = writtenBatches;
+            } finally {
+                lock.unlock();
+            }
+            // Looked up without the lock, so saves don't wait on the
+            // underlying store.
+            Player player = delegate.get(playerId);
+            if (player != null) {
+                return player;
+            }
+            lock.lock();
+            try {
+                // Check again, another request may have created it
+                // meanwhile.  If a batch was written since, the player may
+                // have left the queue for the underlying store; look again.
+                player = findQueued(key, playerId);
+                if (player != null) {
+                    return player;
+                }
+                if (writtenBatches == batchesBefore) {
+                    player = Player.newBuilder(playerId).build();
+                    enqueue(player);
+                    return player;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void save(Player player) {
+        lock.lock();
+        try {
+            enqueue(player);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Must hold the lock.  Looks up a queued player by player id or
+    // alternate id; the key is the player id's.
+    private Player findQueued(PlayerKey key, String playerId) {
+        Player player = pending.get(key);
+        if (player == null) {
+            player = writing.get(key);
+        }
+        if (player == null) {
+            PlayerKey primaryKey = queuedAltIds.get(playerId);
+            if (primaryKey != null) {
+                player = pending.get(primaryKey);
+                if (player == null) {
+                    player = writing.get(primaryKey);
+                }
+            }
+        }
+        return player;
+    }
+
+    // Must hold the lock.
+    private void enqueue(Player player) {
+        PlayerKey id = PlayerKey.of(player);
+        Player queued = pending.get(id);
+        if (queued == null) {
+            queued = writing.get(id);
+        }
+        if (queued != null && queued.getVersion() > player.getVersion()) {
+            // Built from an out of date copy; the queued version stays, as
+            // the underlying store would keep it too.
+            return;
+        }
+        String altId = player.getAltPlayerId();
+        if (altId != null && !altId.isEmpty()) {
+            queuedAltIds.put(altId, id);
+        }
+        if (pending.containsKey(id)) {
+            coalesced.incrementAndGet();
+            pending.put(id, player);
+            return;
+        }
+        // The batch being written counts too, as it is lost as well if the
+        // process crashes before the write ends.
+        if (pending.size() + writing.size() >= maxPending) {
+            blockedSaves.incrementAndGet();
+            workAvailable.signal();
+            while (pending.size() + writing.size() >= maxPending &&
+                    !closed) {
+                batchWritten.awaitUninterruptibly();
+            }
+        }
+        if (closed) {
+            throw new IllegalStateException("Store is closed");
+        }
+        pending.put(id, player);
+        if (pending.size() >= batchSize) {
+            workAvailable.signal();
+        }
+    }
+
+    @Override
+    public void forEachPlayerId(Consumer<String> action) throws IOException {
+        List<Player> queued;
+        lock.lock();
+        try {
+            queued = new ArrayList<>(writing.values());
+            queued.addAll(pending.values());
+        } finally {
+            lock.unlock();
+        }
+        for (Player player : queued) {
+            action.accept(player.getPlayerId());
+            if (!player.getAltPlayerId().isEmpty()) {
+                action.accept(player.getAltPlayerId());
+            }
+        }
+        delegate.forEachPlayerId(action);
+    }
+
+    /**
+     * Writes all pending players to the underlying store and waits until
+     * they are written, up to the flush timeout, then flushes the
+     * underlying store.
+     *
+     * @throws IOException if players were still unwritten at the timeout.
+     */
+    @Override
+    public void flush() throws IOException {
+        int unwritten = drain();
+        delegate.flush();
+        if (unwritten > 0) {
+            throw new IOException(unwritten + " players were not written " +
+                    "within the flush timeout");
+        }
+    }
+
+    /**
+     * Writes the pending players, waiting up to the flush timeout, and
+     * closes the underlying store.  Players still unwritten by then are
+     * logged and dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        drain();
+        lock.lock();
+        try {
+            closed = true;
+            workAvailable.signal();
+            batchWritten.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            // The writer may be stuck in the underlying store.
+            writer.join(Math.max(1,
+                    TimeUnit.NANOSECONDS.toMillis(flushTimeoutNanos)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        delegate.close();
+    }
+
+    // Asks the writer to write everything queued, and waits for it up to the
+    // flush timeout.  Returns the number of players left unwritten.
+    private int drain() {
+        long deadline = System.nanoTime() + flushTimeoutNanos;
+        lock.lock();
+        try {
+            while (!pending.isEmpty() || !writing.isEmpty()) {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0) {
+                    int unwritten = pending.size() + writing.size();
+                    logger.atError().log("{} players are still unwritten " +
+                            "after waiting {} ms for them", unwritten,
+                            TimeUnit.NANOSECONDS.toMillis(flushTimeoutNanos));
+                    return unwritten;
+                }
+                flushRequested = true;
+                workAvailable.signal();
+                try {
+                    batchWritten.awaitNanos(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return pending.size() + writing.size();
+                }
+            }
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int pendingCount() {
+        lock.lock();
+        try {
+            return pending.size() + writing.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            lock.lock();
+            try {
+                long deadline = System.nanoTime() + flushIntervalNanos;
+                long wait;
+                while (!closed && !flushRequested
+                        && pending.size() < batchSize
+                        && (wait = deadline - System.nanoTime()) > 0) {
+                    try {
+                        workAvailable.awaitNanos(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed && pending.isEmpty()) {
+                    return;
+                }
+                flushRequested = false;
+                if (pending.isEmpty()) {
+                    continue;
+                }
+                writing = pending;
+                pending = new LinkedHashMap<>();
+                batchWritten.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            List<Player> batch = new ArrayList<>(writing.values());
+            try {
+                if (failedRounds < MAX_FAILED_ROUNDS) {
+                    delegate.saveAll(batch);
+                } else {
+                    saveEach(batch);
+                }
+                failedRounds = 0;
+                batches.incrementAndGet();
+            } catch (RuntimeException e) {
+                failedRounds++;
+                failedBatches.incrementAndGet();
+                logger.atError().withThrowable(e).log("Write-behind batch " +
+                        "of {} players failed", batch.size());
+                boolean closing;
+                lock.lock();
+                try {
+                    closing = closed;
+                    if (!closing) {
+                        // Put the batch back (behind any newer saves of the
+                        // same players) and try again on the next round.
+                        LinkedHashMap<PlayerKey, Player> retry =
+                                new LinkedHashMap<>(writing);
+                        retry.putAll(pending);
+                        pending = retry;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (closing) {
+                    // Close has stopped waiting for it.
+                    droppedPlayers.addAndGet(batch.size());
+                    logger.atError().log("Dropping {} players that could " +
+                            "not be written before the store closed",
+                            batch.size());
+                } else {
+                    sleepAfterFailure();
+                }
+            }
+
+            lock.lock();
+            try {
+                // The underlying store can resolve the written players'
+                // alternate ids from now on.
+                queuedAltIds.values().removeIf(id ->
+                        writing.containsKey(id) && !pending.containsKey(id));
+                writing = Collections.emptyMap();
+                writtenBatches++;
+                batchWritten.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Writes the players one at a time, after their batch has failed
+    // several rounds, so one that keeps failing can't hold up the others.
+    // Those that fail again are dropped.
+    private void saveEach(List<Player> players) {
+        for (Player player : players) {
+            try {
+                delegate.save(player);
+            } catch (RuntimeException e) {
+                droppedPlayers.incrementAndGet();
+                logger.atError().log("Dropping player {} after {} failed " +
+                        "writes: {}", player.getPlayerId(),
+                        MAX_FAILED_ROUNDS + 1, e.toString());
+            }
+        }
+    }
+
+    private void sleepAfterFailure() {
+        try {
+            TimeUnit.NANOSECONDS.sleep(flushIntervalNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.trace;
+
+import com.google.gson.Gson;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Appends ended spans to a local file, one JSON object per line.
+ */
+public class FileSpanExporter implements SpanExporter {
+
+    private static final Gson GSON = new Gson();
+
+    private final Writer writer;
+
+    /**
+     * @param file - the file to append to; created if it does not exist.
+     * @throws IOException if the file could not be opened.
+     */
+    public FileSpanExporter(File file) throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public synchronized void export(Span span) {
+        try {
+            GSON.toJson(span, writer);
+            writer.write('\n');
+        } catch (IOException e) {
+            // Tracing must never fail the request being traced.
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        writer.flush();
+    }
+}
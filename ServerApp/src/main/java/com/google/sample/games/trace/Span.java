@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.trace;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A timed operation within a trace.  Spans are started with
+ * {@link Tracer#startSpan}, become the current span of the thread, and are
+ * ended by closing them, which restores the previous current span and hands
+ * the span to the exporter:
+ * <pre>
+ *     try (Span span = Tracer.startSpan("verify")) {
+ *         ...
+ *     }
+ * </pre>
+ * A span must be closed on the thread that started it.
+ */
+public final class Span implements AutoCloseable {
+
+    private final String traceId;
+    private final String spanId;
+    private final String parentSpanId;
+    private final String name;
+    private final long startEpochMicros;
+    private long durationMicros;
+    private final Map<String, String> attributes = new LinkedHashMap<>();
+
+    // Not exported.
+    private final transient long startNanos;
+    private final transient Span previous;
+    private transient boolean ended;
+
+    Span(String traceId, String spanId, String parentSpanId, String name,
+         Span previous) {
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentSpanId = parentSpanId;
+        this.name = name;
+        this.previous = previous;
+        this.startEpochMicros = TimeUnit.MILLISECONDS.toMicros(
+                System.currentTimeMillis());
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Adds an attribute to the span.
+     *
+     * @param key   - the attribute name.
+     * @param value - the value, converted with toString().
+     * @return this span.
+     */
+    public Span setAttribute(String key, Object value) {
+        attributes.put(key, String.valueOf(value));
+        return this;
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public String getSpanId() {
+        return spanId;
+    }
+
+    public String getParentSpanId() {
+        return parentSpanId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getStartEpochMicros() {
+        return startEpochMicros;
+    }
+
+    public long getDurationMicros() {
+        return durationMicros;
+    }
+
+    public Map<String, String> getAttributes() {
+        return Collections.unmodifiableMap(attributes);
+    }
+
+    /**
+     * @return the W3C traceparent header value identifying this span as the
+     * parent of a downstream call.
+     */
+    public String traceparent() {
+        return "00-" + traceId + "-" + spanId + "-01";
+    }
+
+    /**
+     * Ends the span.  Closing an already ended span does nothing.
+     */
+    @Override
+    public void close() {
+        if (ended) {
+            return;
+        }
+        ended = true;
+        durationMicros = TimeUnit.NANOSECONDS.toMicros(
+                System.nanoTime() - startNanos);
+        Tracer.end(this, previous);
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.trace;
+
+import java.io.IOException;
+
+/**
+ * Receives spans as they end.  Implementations must be thread safe, and
+ * should be quick since they are called on the request path.
+ */
+public interface SpanExporter {
+
+    /**
+     * Called once for every span when it ends.
+     *
+     * @param span - the ended span.
+     */
+    void export(Span span);
+
+    /**
+     * Writes out any spans that are buffered.
+     *
+     * @throws IOException if the spans could not be written.
+     */
+    void flush() throws IOException;
+}
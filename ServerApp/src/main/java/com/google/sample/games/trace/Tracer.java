@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.trace;
+
+import com.google.api.client.http.HttpHeaders;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Creates spans and tracks the current span of each thread.
+ * <p>
+ * The trace context is propagated to downstream services with the W3C
+ * traceparent header ({@link #inject}), and picked up from incoming
+ * requests with {@link #startSpan(String, String)}.  Work handed to another
+ * thread keeps its parent by being wrapped with {@link #wrap}.
+ * </p>
+ */
+public final class Tracer {
+
+    /**
+     * The W3C trace context header.
+     */
+    public static final String TRACEPARENT_HEADER = "traceparent";
+
+    private static final SpanExporter NO_EXPORTER = new SpanExporter() {
+        @Override
+        public void export(Span span) {
+        }
+
+        @Override
+        public void flush() {
+        }
+    };
+
+    private static final ThreadLocal<Span> current = new ThreadLocal<>();
+    private static volatile SpanExporter exporter = NO_EXPORTER;
+
+    private Tracer() {
+    }
+
+    /**
+     * Sets where ended spans are sent.
+     *
+     * @param spanExporter - the exporter, or null to drop spans.
+     */
+    public static void setExporter(SpanExporter spanExporter) {
+        exporter = spanExporter == null ? NO_EXPORTER : spanExporter;
+    }
+
+    public static SpanExporter getExporter() {
+        return exporter;
+    }
+
+    /**
+     * @return the current span of the thread, or null.
+     */
+    public static Span currentSpan() {
+        return current.get();
+    }
+
+    /**
+     * Starts a span as a child of the thread's current span, or as the root
+     * of a new trace if there is none, and makes it current.
+     *
+     * @param name - the name of the operation.
+     * @return the started span.
+     */
+    public static Span startSpan(String name) {
+        Span parent = current.get();
+        if (parent == null) {
+            return start(name, randomHex(2), null);
+        }
+        return start(name, parent.getTraceId(), parent.getSpanId());
+    }
+
+    /**
+     * Starts a span continuing the trace of an incoming request, and makes it
+     * current.
+     *
+     * @param name        - the name of the operation.
+     * @param traceparent - the request's traceparent header, may be null.
+     * @return the started span, the root of a new trace if the header is
+     * missing or malformed.
+     */
+    public static Span startSpan(String name, String traceparent) {
+        // Format: 00-<32 hex trace id>-<16 hex parent id>-<2 hex flags>
+        if (traceparent != null && traceparent.length() == 55
+                && traceparent.charAt(2) == '-'
+                && traceparent.charAt(35) == '-'
+                && traceparent.charAt(52) == '-') {
+            return start(name, traceparent.substring(3, 35),
+                    traceparent.substring(36, 52));
+        }
+        return start(name, randomHex(2), null);
+    }
+
+    /**
+     * Sets the traceparent header for the thread's current span, if any.
+     * Used as (or from) an HttpRequestInitializer for outbound requests.
+     *
+     * @param headers - the headers of the outbound request.
+     */
+    public static void inject(HttpHeaders headers) {
+        Span span = current.get();
+        if (span != null) {
+            headers.set(TRACEPARENT_HEADER, span.traceparent());
+        }
+    }
+
+    /**
+     * Wraps a task so it runs with the caller's current span as its current
+     * span, on whichever thread it ends up on.
+     *
+     * @param task - the task.
+     * @param <T>  - the result type.
+     * @return the wrapped task.
+     */
+    public static <T> Callable<T> wrap(Callable<T> task) {
+        Span parent = current.get();
+        if (parent == null) {
+            return task;
+        }
+        return () -> {
+            Span previous = current.get();
+            current.set(parent);
+            try {
+                return task.call();
+            } finally {
+                current.set(previous);
+            }
+        };
+    }
+
+    /**
+     * Flushes the exporter.
+     *
+     * @throws IOException if the exporter could not write its spans.
+     */
+    public static void flush() throws IOException {
+        exporter.flush();
+    }
+
+    static void end(Span span, Span previous) {
+        if (current.get() == span) {
+            current.set(previous);
+        }
+        exporter.export(span);
+    }
+
+    private static Span start(String name, String traceId,
+                              String parentSpanId) {
+        Span span = new Span(traceId, randomHex(1), parentSpanId, name,
+                current.get());
+        current.set(span);
+        return span;
+    }
+
+    // Random id made of the given number of longs, as lower case hex.
+    private static String randomHex(int longs) {
+        StringBuilder sb = new StringBuilder(longs * 16);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < longs; i++) {
+            String hex = Long.toHexString(random.nextLong());
+            for (int pad = hex.length(); pad < 16; pad++) {
+                sb.append('0');
+            }
+            sb.append(hex);
+        }
+        return sb.toString();
+    }
+}
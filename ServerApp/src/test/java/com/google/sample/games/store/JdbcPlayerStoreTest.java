@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.store;
+
+import com.google.sample.games.model.Player;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Versions of players kept in the database.
+ */
+public class JdbcPlayerStoreTest {
+
+    // Kept open between connections until the test drops it.
+    private static final String URL =
+            "jdbc:h2:mem:jdbcPlayerStoreTest;DB_CLOSE_DELAY=-1";
+
+    private JdbcPlayerStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new JdbcPlayerStore(URL);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        try (Connection connection = DriverManager.getConnection(URL);
+             Statement statement = connection.createStatement()) {
+            statement.execute("DROP ALL OBJECTS");
+        }
+    }
+
+    @Test
+    public void olderSaveDoesNotReplaceNewerRow() throws Exception {
+        Player v1 = Player.newBuilder("player").setDisplayName("first")
+                .build();
+        Player v2 = named(v1, "second");
+        store.save(v2);
+        store.save(v1);
+
+        assertEquals(2, store.get("player").getVersion());
+        assertEquals("second", store.get("player").getDisplayName());
+        // Read back from the table rather than the cache.
+        JdbcPlayerStore reopened = new JdbcPlayerStore(URL);
+        try {
+            Player player = reopened.get("player");
+            assertEquals(2, player.getVersion());
+            assertEquals("second", player.getDisplayName());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void olderSaveBehindWriteBehindDoesNotReplaceNewer()
+            throws Exception {
+        WriteBehindPlayerStore writeBehind = new WriteBehindPlayerStore(
+                store, 1000, 1000, 1, TimeUnit.HOURS);
+        Player v1 = Player.newBuilder("player").setDisplayName("first")
+                .build();
+        Player v2 = named(v1, "second");
+        try {
+            // The queued v2 is kept over the v1 saved after it.
+            writeBehind.save(v2);
+            writeBehind.save(v1);
+            assertEquals(2, writeBehind.get("player").getVersion());
+
+            writeBehind.flush();
+            JdbcPlayerStore reopened = new JdbcPlayerStore(URL);
+            try {
+                assertEquals("second",
+                        reopened.get("player").getDisplayName());
+            } finally {
+                reopened.close();
+            }
+        } finally {
+            writeBehind.close();
+        }
+    }
+
+    @Test
+    public void tableWithoutVersionsIsUpgraded() throws Exception {
+        store.close();
+        try (Connection connection = DriverManager.getConnection(URL);
+             Statement statement = connection.createStatement()) {
+            statement.execute("DROP ALL OBJECTS");
+            statement.execute("CREATE TABLE old (player_id VARCHAR(64) " +
+                    "PRIMARY KEY, alt_player_id VARCHAR(64), display_name " +
+                    "VARCHAR(256), title VARCHAR(256), visible_profile " +
+                    "BOOLEAN)");
+            statement.execute("INSERT INTO old VALUES ('player', '', " +
+                    "'stored', '', FALSE)");
+        }
+        store = new JdbcPlayerStore(URL, "old",
+                JdbcPlayerStore.DEFAULT_MAX_CONNECTIONS,
+                JdbcPlayerStore.DEFAULT_CACHE_SIZE);
+
+        Player stored = store.get("player");
+        assertEquals(1, stored.getVersion());
+        store.save(named(stored, "saved"));
+        assertEquals(2, store.get("player").getVersion());
+    }
+
+    // The next version of the player, with the name.
+    private static Player named(Player player, String displayName) {
+        return player.toBuilder().setDisplayName(displayName).build();
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.games.store;
+
+import com.google.sample.games.model.Player;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Crash recovery of the write-behind layer.  A crash is simulated by
+ * abandoning the layer: what survives is what reached the underlying store.
+ */
+public class WriteBehindPlayerStoreTest {
+
+    private static final long FLUSH_INTERVAL_MS = 100;
+    // Allowance for a slow machine on top of the flush interval.
+    private static final long SLACK_MS = 2000;
+
+    private final DurableStore durable = new DurableStore();
+    private WriteBehindPlayerStore store;
+
+    @After
+    public void tearDown() throws Exception {
+        durable.writes.countDown();
+        durable.reads.countDown();
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    @Test
+    public void crashAfterFlushIntervalLosesNothing() throws Exception {
+        store = new WriteBehindPlayerStore(durable, 1000, 1000,
+                FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        durable.writes.countDown();
+        for (int i = 0; i < 10; i++) {
+            store.save(named("player" + i, "saved"));
+        }
+        // Fewer than a batch are queued, so only the interval writes them.
+        long deadline = System.currentTimeMillis() + FLUSH_INTERVAL_MS +
+                SLACK_MS;
+        while (durable.size() < 10 &&
+                System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < 10; i++) {
+            Player player = durable.get("player" + i);
+            assertNotNull("player" + i + " lost", player);
+            assertEquals("saved", player.getDisplayName());
+        }
+    }
+
+    @Test
+    public void crashLosesAtMostMaxPendingPlayers() throws Exception {
+        int maxPending = 50;
+        store = new WriteBehindPlayerStore(durable, 10, maxPending,
+                FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        // The underlying store stalls, so nothing is written.
+        Thread saver = new Thread(() -> {
+            for (int i = 0; i < 4 * maxPending; i++) {
+                store.save(named("player" + i, "saved"));
+            }
+        });
+        saver.start();
+        saver.join(FLUSH_INTERVAL_MS + SLACK_MS);
+
+        // Saves past the bound wait instead of queueing more to lose.
+        assertTrue("saves did not block", saver.isAlive());
+        assertTrue(store.pendingCount() <= maxPending);
+        assertEquals(0, durable.size());
+
+        // Once the store catches up, every save is written.
+        durable.writes.countDown();
+        saver.join();
+        store.flush();
+        assertEquals(4 * maxPending, durable.size());
+    }
+
+    @Test
+    public void getOrCreateDoesNotBlockSavesOnTheUnderlyingStore()
+            throws Exception {
+        store = new WriteBehindPlayerStore(durable, 1000, 1000,
+                FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        durable.writes.countDown();
+        durable.stallReadsOf("new");
+        Thread creator = new Thread(() -> store.getOrCreate("new"));
+        creator.start();
+        assertTrue(durable.readStarted.await(SLACK_MS,
+                TimeUnit.MILLISECONDS));
+
+        // The lookup of "new" is stuck in the underlying store.
+        store.save(named("other", "saved"));
+        assertEquals("saved", store.get("other").getDisplayName());
+        assertTrue(creator.isAlive());
+
+        durable.reads.countDown();
+        creator.join();
+        assertNotNull(store.get("new"));
+        assertNull(durable.get("new"));
+    }
+
+    @Test
+    public void playerThatKeepsFailingIsDroppedAndTheRestWritten()
+            throws Exception {
+        store = new WriteBehindPlayerStore(durable, 1000, 1000,
+                FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        durable.writes.countDown();
+        durable.failWritesOf("bad");
+        for (int i = 0; i < 5; i++) {
+            store.save(named("player" + i, "saved"));
+        }
+        store.save(named("bad", "saved"));
+
+        store.flush();
+        assertEquals(5, durable.size());
+        assertNull(store.get("bad"));
+    }
+
+    @Test
+    public void flushGivesUpAtTheTimeout() throws Exception {
+        store = new WriteBehindPlayerStore(durable, 1000, 1000,
+                FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        store.setFlushTimeout(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        // The underlying store never answers.
+        store.save(named("player", "saved"));
+
+        long start = System.currentTimeMillis();
+        try {
+            store.flush();
+            fail("flush did not time out");
+        } catch (IOException expected) {
+        }
+        assertTrue(System.currentTimeMillis() - start <
+                FLUSH_INTERVAL_MS + SLACK_MS);
+        assertEquals(1, store.pendingCount());
+    }
+
+    private static Player named(String playerId, String displayName) {
+        return Player.newBuilder(playerId).setDisplayName(displayName)
+                .build();
+    }
+
+    // An in-memory store standing in for a database, whose writes, and the
+    // reads of one id, can be held up, and whose writes of one id fail.
+    private static final class DurableStore implements PlayerStore {
+        final InMemoryPlayerStore players = new InMemoryPlayerStore();
+        final CountDownLatch writes = new CountDownLatch(1);
+        final CountDownLatch reads = new CountDownLatch(1);
+        final CountDownLatch readStarted = new CountDownLatch(1);
+        private volatile String stalledId;
+        private volatile String failingId;
+
+        void stallReadsOf(String playerId) {
+            stalledId = playerId;
+        }
+
+        void failWritesOf(String playerId) {
+            failingId = playerId;
+        }
+
+        int size() {
+            return players.size();
+        }
+
+        @Override
+        public Player get(String playerId) {
+            if (playerId.equals(stalledId)) {
+                readStarted.countDown();
+                await(reads);
+            }
+            return players.get(playerId);
+        }
+
+        @Override
+        public Player getOrCreate(String playerId) {
+            return players.getOrCreate(playerId);
+        }
+
+        @Override
+        public void save(Player player) {
+            saveAll(Collections.singletonList(player));
+        }
+
+        @Override
+        public void saveAll(Collection<Player> batch) {
+            await(writes);
+            for (Player player : batch) {
+                if (player.getPlayerId().equals(failingId)) {
+                    throw new IllegalStateException("Bad row");
+                }
+            }
+            players.saveAll(batch);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private static void await(CountDownLatch latch) {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}